@@ -34,6 +34,15 @@ public class ItemContainer extends ItemReference {
         createClasses();
     }
 
+    public ItemContainer(long id, long version, Class<? extends PersistableItem> itemClass, String payload,
+                         String visitId) {
+        super(id, version, itemClass);
+        this.payload = payload;
+        this.visitId = visitId;
+
+        createClasses();
+    }
+
     public ItemContainer(ItemContainer itemContainer, long version, String visitId) {
         super(itemContainer);
 
@@ -11,7 +11,11 @@ public class LogToken extends PersistableItem {
     private Set<ItemReference> itemReferences;
 
     public LogToken(String description, Set<ItemReference> itemReferences) {
-        this.date = new Date();
+        this(new Date(), description, itemReferences);
+    }
+
+    public LogToken(Date date, String description, Set<ItemReference> itemReferences) {
+        this.date = date;
         this.description = description;
         this.itemReferences = itemReferences;
     }
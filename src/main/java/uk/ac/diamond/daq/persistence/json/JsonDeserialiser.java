@@ -4,10 +4,16 @@ import uk.ac.diamond.daq.persistence.data.ItemContainer;
 import uk.ac.diamond.daq.persistence.data.PersistableItem;
 import uk.ac.diamond.daq.persistence.service.PersistenceException;
 
+import java.util.Collection;
 import java.util.List;
 
 public interface JsonDeserialiser {
     <T extends PersistableItem> T deserialise(ItemContainer itemContainer) throws PersistenceException;
 
     List<PersistableItem> getCache();
+
+    /**
+     * Supplies containers loaded ahead of time, used in place of a lookup when a reference to them is resolved.
+     */
+    void prefetch(Collection<ItemContainer> itemContainers);
 }
@@ -1,9 +1,19 @@
 package uk.ac.diamond.daq.persistence.json;
 
+import uk.ac.diamond.daq.persistence.service.LoadProfile;
 import uk.ac.diamond.daq.persistence.service.impl.AbstractPersistenceService;
 
 public interface JsonSerialisationFactory {
     JsonSerialiser getJsonSerialiser(AbstractPersistenceService persistenceService, String visitId);
 
     JsonDeserialiser getJsonDeserialiser(AbstractPersistenceService persistenceService, String visitId);
+
+    /**
+     * @return a deserialiser resolving references no further than the depth of the profile; by default one resolving
+     * them all
+     */
+    default JsonDeserialiser getJsonDeserialiser(AbstractPersistenceService persistenceService, String visitId,
+                                                 LoadProfile loadProfile) {
+        return getJsonDeserialiser(persistenceService, visitId);
+    }
 }
@@ -14,33 +14,43 @@ import uk.ac.diamond.daq.persistence.service.impl.AbstractPersistenceService;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
+/**
+ * Deserialises items, resolving their references to other items up to a depth: references from an item reached with
+ * no depth left are left unset.
+ */
 public class DefaultJsonDeserialiser implements JsonDeserialiser {
+    static final int UNLIMITED_DEPTH = -1;
+
     private ObjectMapper objectMapper;
     private AbstractPersistenceService persistenceService;
     private List<PersistableItem> cache;
+    // The depth each cached item was deserialised with, as one with less depth has fewer references resolved
+    private Map<Long, Integer> cachedDepths;
+    private Map<Long, ItemContainer> prefetched;
     private String visitId;
+    // The references left to follow from the item being deserialised
+    private int depth;
 
-    DefaultJsonDeserialiser(AbstractPersistenceService persistenceService, String visitId) {
+    DefaultJsonDeserialiser(AbstractPersistenceService persistenceService, String visitId, int depth) {
         this.objectMapper = new ObjectMapper();
         this.persistenceService = persistenceService;
         this.cache = new ArrayList<>();
+        this.cachedDepths = new HashMap<>();
+        this.prefetched = new HashMap<>();
         this.visitId = visitId;
+        this.depth = depth;
     }
 
-    private PersistableItem getPersistableItemFromJsonNode(JsonNode node) throws PersistenceException {
+    private ItemReference getItemReference(JsonNode node) {
         if (node instanceof ObjectNode) {
             try {
-                ItemReference itemReference = objectMapper.treeToValue(node, ItemReference.class);
-                for (PersistableItem item : cache) {
-                    if (item.getId() == itemReference.getId()) {
-                        return item;
-                    }
-                }
-                return persistenceService.get(itemReference, this, visitId);
+                return objectMapper.treeToValue(node, ItemReference.class);
             } catch (IOException e) {
                 //Do nothing as we will return null if not found
             }
@@ -48,6 +58,47 @@ public class DefaultJsonDeserialiser implements JsonDeserialiser {
         return null;
     }
 
+    private boolean resolveReferences() {
+        return depth != 0;
+    }
+
+    private PersistableItem getPersistableItem(ItemReference itemReference) throws PersistenceException {
+        int referrerDepth = depth;
+        if (depth != UNLIMITED_DEPTH) {
+            depth--;
+        }
+        try {
+            PersistableItem item = getCached(itemReference.getId());
+            if (item != null) {
+                return item;
+            }
+            ItemContainer itemContainer = prefetched.get(itemReference.getId());
+            if (itemContainer != null
+                    && itemReference.getItemClass().isAssignableFrom(itemContainer.getItemClass())) {
+                return deserialise(itemContainer);
+            }
+            return persistenceService.get(itemReference, this, visitId);
+        } finally {
+            depth = referrerDepth;
+        }
+    }
+
+    /**
+     * @return the item if it has been deserialised with at least the current depth, otherwise null
+     */
+    private PersistableItem getCached(long persistenceId) {
+        Integer cachedDepth = cachedDepths.get(persistenceId);
+        if (cachedDepth == null || (cachedDepth != UNLIMITED_DEPTH && cachedDepth < depth)) {
+            return null;
+        }
+        for (PersistableItem item : cache) {
+            if (item.getId() == persistenceId) {
+                return item;
+            }
+        }
+        return null;
+    }
+
     private void deserializeArray(List<ObjectPath> objectPaths, ObjectPath objectPath, ArrayNode arrayNode)
             throws PersistenceException {
         Iterator<JsonNode> iterator = arrayNode.iterator();
@@ -58,10 +109,12 @@ public class DefaultJsonDeserialiser implements JsonDeserialiser {
             JsonNode arrayItemNode = iterator.next();
             if (arrayItemNode instanceof ObjectNode) {
                 ObjectPath childObjectPath = new ObjectPath(objectPath, i);
-                PersistableItem fieldItem = getPersistableItemFromJsonNode(arrayItemNode);
-                if (fieldItem != null) {
-                    childObjectPath.setItem(fieldItem);
-                    objectPaths.add(childObjectPath);
+                ItemReference itemReference = getItemReference(arrayItemNode);
+                if (itemReference != null) {
+                    if (resolveReferences()) {
+                        childObjectPath.setItem(getPersistableItem(itemReference));
+                        objectPaths.add(childObjectPath);
+                    }
                     toRemove.add(i);
                 } else {
                     deserializeObject(objectPaths, childObjectPath, (ObjectNode) arrayItemNode);
@@ -87,10 +140,12 @@ public class DefaultJsonDeserialiser implements JsonDeserialiser {
 
             if (childNode instanceof ObjectNode) {
                 ObjectPath childObjectPath = new ObjectPath(objectPath, entry.getKey());
-                PersistableItem fieldItem = getPersistableItemFromJsonNode(entry.getValue());
-                if (fieldItem != null) {
-                    childObjectPath.setItem(fieldItem);
-                    objectPaths.add(childObjectPath);
+                ItemReference itemReference = getItemReference(entry.getValue());
+                if (itemReference != null) {
+                    if (resolveReferences()) {
+                        childObjectPath.setItem(getPersistableItem(itemReference));
+                        objectPaths.add(childObjectPath);
+                    }
                     objectNode.put(entry.getKey(), JsonNodeFactory.instance.nullNode());
                 } else {
                     deserializeObject(objectPaths, childObjectPath, (ObjectNode) entry.getValue());
@@ -104,10 +159,9 @@ public class DefaultJsonDeserialiser implements JsonDeserialiser {
 
     @Override
     public <T extends PersistableItem> T deserialise(ItemContainer itemContainer) throws PersistenceException {
-        for (PersistableItem item : cache) {
-            if (item.getId() == itemContainer.getId()) {
-                return (T) item;
-            }
+        PersistableItem cached = getCached(itemContainer.getId());
+        if (cached != null) {
+            return (T) cached;
         }
         try {
             List<ObjectPath> objectPaths = new ArrayList<>();
@@ -120,7 +174,10 @@ public class DefaultJsonDeserialiser implements JsonDeserialiser {
             for (ObjectPath foundObjectPath : objectPaths) {
                 foundObjectPath.applyTo(item);
             }
+            // Replaces any copy deserialised with less depth
+            cache.removeIf(each -> each.getId() == itemContainer.getId());
             cache.add(item);
+            cachedDepths.put(itemContainer.getId(), depth);
             return item;
         } catch (IOException | IllegalAccessException e) {
             throw new PersistenceException("Unable to deserialize item " + itemContainer.getJson()
@@ -132,4 +189,12 @@ public class DefaultJsonDeserialiser implements JsonDeserialiser {
     public List<PersistableItem> getCache() {
         return cache;
     }
+
+    @Override
+    public void prefetch(Collection<ItemContainer> itemContainers) {
+        for (ItemContainer itemContainer : itemContainers) {
+            prefetched.merge(itemContainer.getId(), itemContainer,
+                    (current, added) -> added.getVersion() > current.getVersion() ? added : current);
+        }
+    }
 }
@@ -3,6 +3,7 @@ package uk.ac.diamond.daq.persistence.json.impl;
 import uk.ac.diamond.daq.persistence.json.JsonDeserialiser;
 import uk.ac.diamond.daq.persistence.json.JsonSerialisationFactory;
 import uk.ac.diamond.daq.persistence.json.JsonSerialiser;
+import uk.ac.diamond.daq.persistence.service.LoadProfile;
 import uk.ac.diamond.daq.persistence.service.impl.AbstractPersistenceService;
 
 public class DefaultJsonSerialisationFactory implements JsonSerialisationFactory {
@@ -13,6 +14,12 @@ public class DefaultJsonSerialisationFactory implements JsonSerialisationFactory
 
     @Override
     public JsonDeserialiser getJsonDeserialiser(AbstractPersistenceService persistenceService, String visitId) {
-        return new DefaultJsonDeserialiser(persistenceService, visitId);
+        return new DefaultJsonDeserialiser(persistenceService, visitId, DefaultJsonDeserialiser.UNLIMITED_DEPTH);
+    }
+
+    @Override
+    public JsonDeserialiser getJsonDeserialiser(AbstractPersistenceService persistenceService, String visitId,
+                                                LoadProfile loadProfile) {
+        return new DefaultJsonDeserialiser(persistenceService, visitId, loadProfile.getDepth());
     }
 }
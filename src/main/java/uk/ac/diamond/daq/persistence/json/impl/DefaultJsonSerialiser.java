@@ -86,7 +86,7 @@ public class DefaultJsonSerialiser implements JsonSerialiser {
             } else if (PersistableItem.class.isAssignableFrom(item.getClass())) {
                 iterator.remove();
                 PersistableItem fieldItem = (PersistableItem) item;
-                persistenceService.save(fieldItem);
+                persistenceService.save(fieldItem, visitId);
                 ObjectNode newNode = objectMapper.valueToTree(new ItemReference(fieldItem));
                 nodes.add(newNode);
             } else if (item instanceof Map) {
@@ -0,0 +1,26 @@
+package uk.ac.diamond.daq.persistence.logging;
+
+import uk.ac.diamond.daq.persistence.data.LogToken;
+import uk.ac.diamond.daq.persistence.data.PersistableItem;
+import uk.ac.diamond.daq.persistence.service.PersistenceException;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+public interface AsyncConfigurationLogService extends AutoCloseable {
+    CompletableFuture<List<LogToken>> listChanges(long persistenceId);
+
+    /**
+     * Logs the change in the background, so that the caller only queues it. The item, and the items it refers to, are
+     * handed over: they must not be changed until the returned future completes, as they are saved as they are when
+     * the change is written. They are given the ids and versions they were saved with on the background thread;
+     * completing the future publishes those, so read them only once it has completed, through the future.
+     */
+    CompletableFuture<LogToken> logConfigurationChanges(PersistableItem item, String description);
+
+    /**
+     * Waits for the changes already logged to be written, then stops.
+     */
+    @Override
+    void close() throws PersistenceException;
+}
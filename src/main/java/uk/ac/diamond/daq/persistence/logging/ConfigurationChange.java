@@ -0,0 +1,36 @@
+package uk.ac.diamond.daq.persistence.logging;
+
+import uk.ac.diamond.daq.persistence.data.PersistableItem;
+
+import java.util.Date;
+
+/**
+ * A change to be logged, dated when it was made rather than when it is written.
+ */
+public final class ConfigurationChange {
+    private final PersistableItem item;
+    private final String description;
+    private final Date date;
+
+    public ConfigurationChange(PersistableItem item, String description) {
+        this(item, description, new Date());
+    }
+
+    public ConfigurationChange(PersistableItem item, String description, Date date) {
+        this.item = item;
+        this.description = description;
+        this.date = date;
+    }
+
+    public PersistableItem getItem() {
+        return item;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public Date getDate() {
+        return date;
+    }
+}
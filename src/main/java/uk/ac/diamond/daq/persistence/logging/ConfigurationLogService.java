@@ -4,10 +4,26 @@ import uk.ac.diamond.daq.persistence.data.LogToken;
 import uk.ac.diamond.daq.persistence.data.PersistableItem;
 import uk.ac.diamond.daq.persistence.service.PersistenceException;
 
+import java.util.Date;
 import java.util.List;
 
 public interface ConfigurationLogService {
     List<LogToken> listChanges(long persistenceId) throws PersistenceException;
 
+    /**
+     * @param from the earliest time of the changes, or null for all changes up to {@code to}
+     * @param to   the time all changes must be before, or null for all changes from {@code from}
+     * @return the changes to the item in the range, oldest first
+     */
+    List<LogToken> listChanges(long persistenceId, Date from, Date to) throws PersistenceException;
+
     LogToken logConfigurationChanges(PersistableItem item, String description) throws PersistenceException;
+
+    /**
+     * Logs several changes at once, in order.
+     *
+     * @return the token of each change
+     * @throws PartiallyLoggedException if a change could not be logged, with the tokens of the changes before it
+     */
+    List<LogToken> logConfigurationChanges(List<ConfigurationChange> changes) throws PersistenceException;
 }
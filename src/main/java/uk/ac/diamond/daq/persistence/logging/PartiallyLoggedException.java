@@ -0,0 +1,33 @@
+package uk.ac.diamond.daq.persistence.logging;
+
+import uk.ac.diamond.daq.persistence.data.LogToken;
+import uk.ac.diamond.daq.persistence.service.PersistenceException;
+
+import java.util.List;
+
+/**
+ * Thrown when one of several changes could not be logged. The changes before it were logged, and the ones after it
+ * were not attempted.
+ */
+public class PartiallyLoggedException extends PersistenceException {
+    private static final long serialVersionUID = 1L;
+
+    private final List<LogToken> logTokens;
+
+    public PartiallyLoggedException(List<LogToken> logTokens, PersistenceException cause) {
+        super("Logged " + logTokens.size() + " changes before failing", cause);
+        this.logTokens = logTokens;
+    }
+
+    /**
+     * @return the tokens of the changes logged before the failure, in order
+     */
+    public List<LogToken> getLogTokens() {
+        return logTokens;
+    }
+
+    @Override
+    public synchronized PersistenceException getCause() {
+        return (PersistenceException) super.getCause();
+    }
+}
@@ -0,0 +1,246 @@
+package uk.ac.diamond.daq.persistence.logging.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.ac.diamond.daq.persistence.data.LogToken;
+import uk.ac.diamond.daq.persistence.data.PersistableItem;
+import uk.ac.diamond.daq.persistence.logging.AsyncConfigurationLogService;
+import uk.ac.diamond.daq.persistence.logging.ConfigurationChange;
+import uk.ac.diamond.daq.persistence.logging.ConfigurationLogService;
+import uk.ac.diamond.daq.persistence.logging.PartiallyLoggedException;
+import uk.ac.diamond.daq.persistence.service.PersistenceException;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Logs changes on a background thread, so that callers only pay for queueing them. Saving the items, walking their
+ * references and writing the tokens happens in the background, with the changes that queued up meanwhile written
+ * together as one batch. The items are handed over to the background thread, as described by
+ * {@link AsyncConfigurationLogService#logConfigurationChanges}.
+ * <p>
+ * The queue is bounded: when the log falls that far behind, callers wait for room rather than the backlog growing
+ * without limit. Queries run on the same thread, after the changes queued before them.
+ */
+public class BatchingAsyncConfigurationLogService implements AsyncConfigurationLogService {
+    private static final Logger log = LoggerFactory.getLogger(BatchingAsyncConfigurationLogService.class);
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+    public static final int DEFAULT_BATCH_SIZE = 64;
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 60;
+    private static final long ENQUEUE_WAIT_MILLIS = 100;
+
+    private final ConfigurationLogService configurationLogService;
+    private final BlockingQueue<Task> queue;
+    private final int batchSize;
+    private final Thread writer;
+    // Tasks are queued under the read lock, so none can be queued once closed is set under the write lock
+    private final ReadWriteLock closeLock = new ReentrantReadWriteLock();
+    private boolean closed;
+
+    public BatchingAsyncConfigurationLogService(ConfigurationLogService configurationLogService) {
+        this(configurationLogService, DEFAULT_QUEUE_CAPACITY, DEFAULT_BATCH_SIZE);
+    }
+
+    public BatchingAsyncConfigurationLogService(ConfigurationLogService configurationLogService, int queueCapacity,
+                                                int batchSize) {
+        this.configurationLogService = configurationLogService;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.batchSize = batchSize;
+        this.writer = new Thread(this::run, "async-configuration-logger");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @Override
+    public CompletableFuture<List<LogToken>> listChanges(long persistenceId) {
+        Query query = new Query(persistenceId);
+        enqueue(query);
+        return query.future;
+    }
+
+    @Override
+    public CompletableFuture<LogToken> logConfigurationChanges(PersistableItem item, String description) {
+        Change change = new Change(new ConfigurationChange(item, description, new Date()));
+        enqueue(change);
+        return change.future;
+    }
+
+    private void enqueue(Task task) {
+        try {
+            while (true) {
+                // Waits for room a little at a time, so that a full queue does not hold up closing
+                closeLock.readLock().lock();
+                try {
+                    if (closed) {
+                        task.fail(new PersistenceException("Configuration log has been closed"));
+                        return;
+                    }
+                    if (queue.offer(task, ENQUEUE_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+                        return;
+                    }
+                } finally {
+                    closeLock.readLock().unlock();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            task.fail(new PersistenceException("Interrupted waiting to log", e));
+        }
+    }
+
+    /**
+     * @return false if tasks had already stopped being queued
+     */
+    private boolean stopQueueing() {
+        closeLock.writeLock().lock();
+        try {
+            boolean wasClosed = closed;
+            closed = true;
+            return !wasClosed;
+        } finally {
+            closeLock.writeLock().unlock();
+        }
+    }
+
+    private void run() {
+        List<Task> tasks = new ArrayList<>(batchSize);
+        List<Change> batch = new ArrayList<>(batchSize);
+        while (true) {
+            try {
+                tasks.add(queue.take());
+            } catch (InterruptedException e) {
+                stopQueueing();
+                queue.drainTo(tasks);
+                log.warn("Configuration logger interrupted, {} tasks not run", tasks.size());
+                PersistenceException interrupted = new PersistenceException("Configuration logger was interrupted", e);
+                tasks.forEach(task -> task.fail(interrupted));
+                return;
+            }
+            queue.drainTo(tasks, batchSize - 1);
+            for (Task task : tasks) {
+                if (task instanceof Change) {
+                    batch.add((Change) task);
+                    continue;
+                }
+                write(batch);
+                if (task == Stop.STOP) {
+                    return;
+                }
+                ((Query) task).run(configurationLogService);
+            }
+            write(batch);
+            tasks.clear();
+        }
+    }
+
+    /**
+     * Logs the changes together. A change that cannot be logged fails on its own, and the changes after it are logged
+     * again without it.
+     */
+    private void write(List<Change> batch) {
+        List<Change> pending = new ArrayList<>(batch);
+        List<ConfigurationChange> changes = new ArrayList<>(batch.size());
+        for (Change change : batch) {
+            changes.add(change.change);
+        }
+        batch.clear();
+        while (!pending.isEmpty()) {
+            List<LogToken> logTokens;
+            try {
+                logTokens = configurationLogService.logConfigurationChanges(changes);
+            } catch (PartiallyLoggedException e) {
+                logTokens = e.getLogTokens();
+                if (logTokens.size() < pending.size()) {
+                    pending.get(logTokens.size()).fail(e.getCause());
+                }
+            } catch (Exception e) {
+                pending.forEach(change -> change.fail(e));
+                return;
+            }
+            for (int i = 0; i < logTokens.size(); i++) {
+                pending.get(i).complete(logTokens.get(i));
+            }
+            int done = Math.min(logTokens.size() + 1, pending.size());
+            pending = pending.subList(done, pending.size());
+            changes = changes.subList(done, changes.size());
+        }
+    }
+
+    @Override
+    public void close() throws PersistenceException {
+        if (!stopQueueing()) {
+            return;
+        }
+        try {
+            // Queued after everything else, as nothing more can be
+            queue.put(Stop.STOP);
+            writer.join(TimeUnit.SECONDS.toMillis(SHUTDOWN_TIMEOUT_SECONDS));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PersistenceException("Interrupted waiting for pending changes", e);
+        }
+        if (writer.isAlive()) {
+            throw new PersistenceException("Timed out waiting for pending changes");
+        }
+    }
+
+    private interface Task {
+        void fail(Exception e);
+    }
+
+    private enum Stop implements Task {
+        STOP;
+
+        @Override
+        public void fail(Exception e) {
+        }
+    }
+
+    private static final class Change implements Task {
+        private final ConfigurationChange change;
+        private final CompletableFuture<LogToken> future = new CompletableFuture<>();
+
+        private Change(ConfigurationChange change) {
+            this.change = change;
+        }
+
+        private void complete(LogToken logToken) {
+            future.complete(logToken);
+        }
+
+        @Override
+        public void fail(Exception e) {
+            future.completeExceptionally(e);
+        }
+    }
+
+    private static final class Query implements Task {
+        private final long persistenceId;
+        private final CompletableFuture<List<LogToken>> future = new CompletableFuture<>();
+
+        private Query(long persistenceId) {
+            this.persistenceId = persistenceId;
+        }
+
+        private void run(ConfigurationLogService configurationLogService) {
+            try {
+                future.complete(configurationLogService.listChanges(persistenceId));
+            } catch (Exception e) {
+                future.completeExceptionally(e);
+            }
+        }
+
+        @Override
+        public void fail(Exception e) {
+            future.completeExceptionally(e);
+        }
+    }
+}
@@ -0,0 +1,606 @@
+package uk.ac.diamond.daq.persistence.logging.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.ac.diamond.daq.persistence.data.ItemReference;
+import uk.ac.diamond.daq.persistence.data.LogToken;
+import uk.ac.diamond.daq.persistence.data.PersistableItem;
+import uk.ac.diamond.daq.persistence.logging.ConfigurationChange;
+import uk.ac.diamond.daq.persistence.logging.ConfigurationLogService;
+import uk.ac.diamond.daq.persistence.logging.PartiallyLoggedException;
+import uk.ac.diamond.daq.persistence.service.PersistenceException;
+import uk.ac.diamond.daq.persistence.service.PersistenceService;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * A {@link ConfigurationLogService} that keeps its tokens on disk, so the history survives restarts and is not held on
+ * the heap.
+ * <p>
+ * Tokens are appended to segment files of bounded size, which are synced to disk before logging returns. Each token is
+ * indexed in the reverse index file of every item it references, which holds the time and position of each change to
+ * that item. The first token of each segment, and every {@value #TIME_INDEX_INTERVAL}th token after it, is also
+ * indexed in a sparse time index. The changes to an item are found by reading its index file and then the tokens it
+ * points to.
+ * <p>
+ * Token dates never go back: a token appended after one with a later date is given that date, which keeps the segments
+ * in time order for the time index.
+ * <p>
+ * The indexes are derived from the segments, and they are rebuilt when the service is opened after a shutdown without
+ * {@link #close}. A token torn by a crash at the end of the last segment is dropped then.
+ */
+public class FileConfigurationLogService implements ConfigurationLogService {
+    private static final Logger log = LoggerFactory.getLogger(FileConfigurationLogService.class);
+
+    public static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+
+    private static final int ITEM_DIRECTORIES = 256;
+    // The most item index files kept open between appends
+    private static final int ITEM_OUTPUTS = 64;
+    private static final int TIME_INDEX_INTERVAL = 256;
+    private static final String ITEMS = "items";
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String TIME_INDEX = "time.idx";
+    private static final String CLEAN_SHUTDOWN = "clean";
+    // Length and checksum of the token
+    private static final int HEADER_SIZE = 8;
+
+    private final PersistenceService persistenceService;
+    private final File directory;
+    private final long segmentSize;
+
+    // Least recently used first
+    private final Map<Long, DataOutputStream> itemOutputs = new LinkedHashMap<>(16, 0.75f, true);
+    private DataOutputStream timeIndexOutput;
+    private FileOutputStream segmentFileOutput;
+    private DataOutputStream segmentOutput;
+    private int segment;
+    private long segmentPosition;
+    private int tokensSinceTimeIndex;
+    private long lastTime = Long.MIN_VALUE;
+    private boolean closed;
+
+    public FileConfigurationLogService(PersistenceService persistenceService, File directory)
+            throws PersistenceException {
+        this(persistenceService, directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    public FileConfigurationLogService(PersistenceService persistenceService, File directory, long segmentSize)
+            throws PersistenceException {
+        this.persistenceService = persistenceService;
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new PersistenceException("Cannot create log directory " + directory);
+        }
+        try {
+            List<Integer> segments = getSegments();
+            segment = segments.isEmpty() ? 0 : segments.get(segments.size() - 1);
+            File cleanShutdown = new File(directory, CLEAN_SHUTDOWN);
+            Long cleanLastTime = readCleanShutdown(cleanShutdown);
+            if (cleanLastTime == null) {
+                rebuildIndexes(segments);
+            } else {
+                lastTime = cleanLastTime;
+            }
+            // Until the next clean shutdown, the indexes may fall behind the segments
+            delete(cleanShutdown);
+            segmentPosition = getSegmentFile(segment).length();
+            tokensSinceTimeIndex = TIME_INDEX_INTERVAL;
+            openSegment();
+            timeIndexOutput = append(new File(directory, TIME_INDEX));
+        } catch (IOException e) {
+            closeAfterFailure();
+            throw new PersistenceException("Failed to open configuration log in " + directory, e);
+        }
+    }
+
+    @Override
+    public List<LogToken> listChanges(long persistenceId) throws PersistenceException {
+        return listChanges(persistenceId, null, null);
+    }
+
+    @Override
+    public synchronized List<LogToken> listChanges(long persistenceId, Date from, Date to)
+            throws PersistenceException {
+        File itemFile = getItemFile(persistenceId);
+        List<IndexEntry> entries = new ArrayList<>();
+        if (itemFile.exists()) {
+            try (DataInputStream input = read(itemFile)) {
+                for (IndexEntry entry = IndexEntry.read(input); entry != null; entry = IndexEntry.read(input)) {
+                    if (entry.isBetween(from, to)) {
+                        entries.add(entry);
+                    }
+                }
+            } catch (IOException e) {
+                throw new PersistenceException("Failed to read index of item " + persistenceId, e);
+            }
+        }
+        return readTokens(entries);
+    }
+
+    /**
+     * @return the changes to all items logged between the times, in the order they were logged
+     */
+    public synchronized List<LogToken> listChanges(Date from, Date to) throws PersistenceException {
+        IndexEntry start = null;
+        File timeIndex = new File(directory, TIME_INDEX);
+        if (timeIndex.exists()) {
+            try (DataInputStream input = read(timeIndex)) {
+                for (IndexEntry entry = IndexEntry.read(input); entry != null && entry.isBefore(from);
+                     entry = IndexEntry.read(input)) {
+                    start = entry;
+                }
+            } catch (IOException e) {
+                throw new PersistenceException("Failed to read time index", e);
+            }
+        }
+
+        List<LogToken> logTokens = new ArrayList<>();
+        try {
+            for (int each : getSegments()) {
+                if (start != null && each < start.segment) {
+                    continue;
+                }
+                File segmentFile = getSegmentFile(each);
+                try (DataInputStream input = read(segmentFile)) {
+                    long position = start != null && each == start.segment ? skip(input, start.position) : 0;
+                    for (Record record = Record.read(input, position, segmentFile.length()); record != null;
+                         record = Record.read(input, position, segmentFile.length())) {
+                        position = record.end;
+                        if (to != null && record.time >= to.getTime()) {
+                            return logTokens;
+                        }
+                        if (from == null || record.time >= from.getTime()) {
+                            logTokens.add(record.decode());
+                        }
+                    }
+                }
+            }
+        } catch (IOException | ClassNotFoundException e) {
+            throw new PersistenceException("Failed to read configuration log", e);
+        }
+        return logTokens;
+    }
+
+    @Override
+    public LogToken logConfigurationChanges(PersistableItem item, String description) throws PersistenceException {
+        try {
+            return logConfigurationChanges(Collections.singletonList(new ConfigurationChange(item, description))).get(0);
+        } catch (PartiallyLoggedException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Writes the tokens of all of the changes together. When an item cannot be saved, the tokens of the changes saved
+     * before it are still written.
+     *
+     * @return the tokens as they were written, dated no earlier than the tokens before them
+     */
+    @Override
+    public List<LogToken> logConfigurationChanges(List<ConfigurationChange> changes) throws PersistenceException {
+        List<LogToken> logTokens = new ArrayList<>(changes.size());
+        for (ConfigurationChange change : changes) {
+            try {
+                persistenceService.save(change.getItem());
+                logTokens.add(new LogToken(change.getDate(), change.getDescription(),
+                        ItemReferences.of(change.getItem())));
+            } catch (PersistenceException e) {
+                throw new PartiallyLoggedException(append(logTokens), e);
+            }
+        }
+        return append(logTokens);
+    }
+
+    private synchronized List<LogToken> append(List<LogToken> logTokens) throws PersistenceException {
+        if (closed) {
+            throw new PersistenceException("Configuration log in " + directory + " has been closed");
+        }
+        List<LogToken> appended = new ArrayList<>(logTokens.size());
+        try {
+            for (LogToken logToken : logTokens) {
+                if (logToken.getDate().getTime() < lastTime) {
+                    logToken = new LogToken(new Date(lastTime), logToken.getDescription(),
+                            logToken.getItemReferences());
+                }
+                lastTime = logToken.getDate().getTime();
+                byte[] record = Record.encode(logToken);
+                if (segmentPosition > 0 && segmentPosition + record.length > segmentSize) {
+                    closeSegment();
+                    segment++;
+                    segmentPosition = 0;
+                    openSegment();
+                }
+                segmentOutput.write(record);
+                Set<Long> persistenceIds = new HashSet<>();
+                for (ItemReference itemReference : logToken.getItemReferences()) {
+                    persistenceIds.add(itemReference.getId());
+                }
+                index(logToken.getDate().getTime(), persistenceIds, segment, segmentPosition);
+                segmentPosition += record.length;
+                appended.add(logToken);
+            }
+            // The tokens first, so that the indexes never point past them
+            syncSegment();
+            for (DataOutputStream itemOutput : itemOutputs.values()) {
+                itemOutput.flush();
+            }
+            timeIndexOutput.flush();
+        } catch (IOException e) {
+            throw new PersistenceException("Failed to log configuration changes", e);
+        }
+        return appended;
+    }
+
+    private void index(long time, Set<Long> persistenceIds, int tokenSegment, long position) throws IOException {
+        IndexEntry entry = new IndexEntry(time, tokenSegment, position);
+        for (long persistenceId : persistenceIds) {
+            entry.write(getItemOutput(persistenceId));
+        }
+        if (position == 0 || ++tokensSinceTimeIndex >= TIME_INDEX_INTERVAL) {
+            entry.write(timeIndexOutput);
+            tokensSinceTimeIndex = 0;
+        }
+    }
+
+    private List<LogToken> readTokens(List<IndexEntry> entries) throws PersistenceException {
+        List<LogToken> logTokens = new ArrayList<>(entries.size());
+        Map<Integer, RandomAccessFile> segments = new HashMap<>();
+        try {
+            for (IndexEntry entry : entries) {
+                RandomAccessFile segmentFile = segments.get(entry.segment);
+                if (segmentFile == null) {
+                    segmentFile = new RandomAccessFile(getSegmentFile(entry.segment), "r");
+                    segments.put(entry.segment, segmentFile);
+                }
+                segmentFile.seek(entry.position);
+                byte[] header = new byte[HEADER_SIZE];
+                segmentFile.readFully(header);
+                DataInputStream headerInput = new DataInputStream(new ByteArrayInputStream(header));
+                byte[] body = new byte[headerInput.readInt()];
+                int checksum = headerInput.readInt();
+                segmentFile.readFully(body);
+                if (Record.checksum(body) != checksum) {
+                    throw new PersistenceException("Corrupt token in segment " + entry.segment + " at "
+                            + entry.position);
+                }
+                logTokens.add(new Record(body, entry.position).decode());
+            }
+        } catch (IOException | ClassNotFoundException e) {
+            throw new PersistenceException("Failed to read configuration log", e);
+        } finally {
+            for (RandomAccessFile segmentFile : segments.values()) {
+                try {
+                    segmentFile.close();
+                } catch (IOException e) {
+                    log.warn("Failed to close log segment", e);
+                }
+            }
+        }
+        return logTokens;
+    }
+
+    private void rebuildIndexes(List<Integer> segments) throws IOException {
+        log.info("Rebuilding indexes of configuration log in {}", directory);
+        closeIndexes();
+        deleteTree(new File(directory, ITEMS));
+        File timeIndex = new File(directory, TIME_INDEX);
+        delete(timeIndex);
+        timeIndexOutput = append(timeIndex);
+        for (int each : segments) {
+            File segmentFile = getSegmentFile(each);
+            long position = 0;
+            tokensSinceTimeIndex = 0;
+            try (DataInputStream input = read(segmentFile)) {
+                for (Record record = Record.read(input, position, segmentFile.length()); record != null;
+                     record = Record.read(input, position, segmentFile.length())) {
+                    index(record.time, record.persistenceIds, each, position);
+                    lastTime = Math.max(lastTime, record.time);
+                    position = record.end;
+                }
+            }
+            if (position == segmentFile.length()) {
+                continue;
+            }
+            if (each != segment) {
+                log.warn("Log segment {} is unreadable after {} of its {} bytes", each, position,
+                        segmentFile.length());
+            } else {
+                log.warn("Truncating token torn at {} of the {} bytes of log segment {}", position,
+                        segmentFile.length(), each);
+                try (RandomAccessFile truncated = new RandomAccessFile(segmentFile, "rw")) {
+                    truncated.setLength(position);
+                }
+            }
+        }
+        closeIndexes();
+    }
+
+    /**
+     * Closes the log. Changes cannot be logged after this, but they can still be listed.
+     */
+    public synchronized void close() throws PersistenceException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            closeSegment();
+            closeIndexes();
+            // Records the date of the last token, which later tokens are dated no earlier than
+            try (DataOutputStream output = new DataOutputStream(
+                    new FileOutputStream(new File(directory, CLEAN_SHUTDOWN)))) {
+                output.writeLong(lastTime);
+            }
+        } catch (IOException e) {
+            throw new PersistenceException("Failed to close configuration log in " + directory, e);
+        }
+    }
+
+    /**
+     * @return the date of the last token recorded at a clean shutdown, or null if there was none
+     */
+    private static Long readCleanShutdown(File cleanShutdown) throws IOException {
+        if (!cleanShutdown.exists()) {
+            return null;
+        }
+        try (DataInputStream input = read(cleanShutdown)) {
+            return input.readLong();
+        }
+    }
+
+    private void openSegment() throws IOException {
+        segmentFileOutput = new FileOutputStream(getSegmentFile(segment), true);
+        segmentOutput = new DataOutputStream(new BufferedOutputStream(segmentFileOutput));
+    }
+
+    private void syncSegment() throws IOException {
+        segmentOutput.flush();
+        segmentFileOutput.getFD().sync();
+    }
+
+    private void closeSegment() throws IOException {
+        syncSegment();
+        segmentOutput.close();
+    }
+
+    private void closeAfterFailure() {
+        if (segmentOutput != null) {
+            try {
+                segmentOutput.close();
+            } catch (IOException e) {
+                log.warn("Failed to close log segment", e);
+            }
+        }
+        try {
+            closeIndexes();
+        } catch (IOException e) {
+            log.warn("Failed to close log indexes", e);
+        }
+    }
+
+    private void closeIndexes() throws IOException {
+        for (DataOutputStream itemOutput : itemOutputs.values()) {
+            itemOutput.close();
+        }
+        itemOutputs.clear();
+        if (timeIndexOutput != null) {
+            timeIndexOutput.close();
+            timeIndexOutput = null;
+        }
+    }
+
+    private DataOutputStream getItemOutput(long persistenceId) throws IOException {
+        DataOutputStream itemOutput = itemOutputs.get(persistenceId);
+        if (itemOutput == null) {
+            File itemFile = getItemFile(persistenceId);
+            if (!itemFile.getParentFile().isDirectory() && !itemFile.getParentFile().mkdirs()) {
+                throw new IOException("Cannot create index directory " + itemFile.getParentFile());
+            }
+            itemOutput = append(itemFile);
+            itemOutputs.put(persistenceId, itemOutput);
+            if (itemOutputs.size() > ITEM_OUTPUTS) {
+                Iterator<DataOutputStream> eldest = itemOutputs.values().iterator();
+                eldest.next().close();
+                eldest.remove();
+            }
+        }
+        return itemOutput;
+    }
+
+    /**
+     * @return the reverse index file of the item, in one of a fixed number of directories so that none grows too large
+     */
+    private File getItemFile(long persistenceId) {
+        String itemDirectory = String.format("%02x", Math.floorMod(persistenceId, (long) ITEM_DIRECTORIES));
+        return new File(new File(new File(directory, ITEMS), itemDirectory), persistenceId + ".idx");
+    }
+
+    private File getSegmentFile(int segmentNumber) {
+        return new File(directory, String.format("%s%010d%s", SEGMENT_PREFIX, segmentNumber, SEGMENT_SUFFIX));
+    }
+
+    private List<Integer> getSegments() {
+        List<Integer> segments = new ArrayList<>();
+        String[] names = directory.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                    segments.add(Integer.valueOf(name.substring(SEGMENT_PREFIX.length(),
+                            name.length() - SEGMENT_SUFFIX.length())));
+                }
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private static DataOutputStream append(File file) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+    }
+
+    private static DataInputStream read(File file) throws IOException {
+        return new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    }
+
+    private static long skip(DataInputStream input, long position) throws IOException {
+        long skipped = 0;
+        while (skipped < position) {
+            long count = input.skip(position - skipped);
+            if (count <= 0) {
+                throw new EOFException("Log segment ends before " + position);
+            }
+            skipped += count;
+        }
+        return position;
+    }
+
+    private static void delete(File file) throws IOException {
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Cannot delete " + file);
+        }
+    }
+
+    private static void deleteTree(File file) throws IOException {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteTree(child);
+            }
+        }
+        delete(file);
+    }
+
+    /**
+     * The time and position of a token.
+     */
+    private static final class IndexEntry {
+        private final long time;
+        private final int segment;
+        private final long position;
+
+        private IndexEntry(long time, int segment, long position) {
+            this.time = time;
+            this.segment = segment;
+            this.position = position;
+        }
+
+        private boolean isBefore(Date date) {
+            return date != null && time < date.getTime();
+        }
+
+        private boolean isBetween(Date from, Date to) {
+            return (from == null || time >= from.getTime()) && (to == null || time < to.getTime());
+        }
+
+        private void write(DataOutputStream output) throws IOException {
+            output.writeLong(time);
+            output.writeInt(segment);
+            output.writeLong(position);
+        }
+
+        /**
+         * @return the next entry, or null at the end of the index or at an entry torn by a crash
+         */
+        private static IndexEntry read(DataInputStream input) throws IOException {
+            try {
+                return new IndexEntry(input.readLong(), input.readInt(), input.readLong());
+            } catch (EOFException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * A token as it is stored in a segment: its length and checksum, then its time, description and references. The
+     * time and referenced ids are read without loading the classes of the references.
+     */
+    private static final class Record {
+        private final byte[] body;
+        private final long time;
+        private final Set<Long> persistenceIds = new HashSet<>();
+        private final long end;
+
+        private Record(byte[] body, long position) throws IOException {
+            this.body = body;
+            this.end = position + HEADER_SIZE + body.length;
+            DataInputStream input = new DataInputStream(new ByteArrayInputStream(body));
+            time = input.readLong();
+            input.readUTF();
+            int count = input.readInt();
+            for (int i = 0; i < count; i++) {
+                persistenceIds.add(input.readLong());
+                input.readLong();
+                input.readUTF();
+            }
+        }
+
+        private static byte[] encode(LogToken logToken) throws IOException {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            DataOutputStream output = new DataOutputStream(body);
+            output.writeLong(logToken.getDate().getTime());
+            output.writeUTF(logToken.getDescription() == null ? "" : logToken.getDescription());
+            output.writeInt(logToken.getItemReferences().size());
+            for (ItemReference itemReference : logToken.getItemReferences()) {
+                output.writeLong(itemReference.getId());
+                output.writeLong(itemReference.getVersion());
+                output.writeUTF(itemReference.getItemClass().getName());
+            }
+            output.flush();
+
+            byte[] bodyBytes = body.toByteArray();
+            ByteArrayOutputStream record = new ByteArrayOutputStream(HEADER_SIZE + bodyBytes.length);
+            DataOutputStream recordOutput = new DataOutputStream(record);
+            recordOutput.writeInt(bodyBytes.length);
+            recordOutput.writeInt(checksum(bodyBytes));
+            recordOutput.write(bodyBytes);
+            recordOutput.flush();
+            return record.toByteArray();
+        }
+
+        @SuppressWarnings("unchecked")
+        private LogToken decode() throws IOException, ClassNotFoundException {
+            DataInputStream input = new DataInputStream(new ByteArrayInputStream(body));
+            Date date = new Date(input.readLong());
+            String description = input.readUTF();
+            int count = input.readInt();
+            Set<ItemReference> itemReferences = new HashSet<>();
+            for (int i = 0; i < count; i++) {
+                long id = input.readLong();
+                long version = input.readLong();
+                Class<? extends PersistableItem> itemClass =
+                        (Class<? extends PersistableItem>) Class.forName(input.readUTF());
+                itemReferences.add(new ItemReference(id, version, itemClass));
+            }
+            return new LogToken(date, description, itemReferences);
+        }
+
+        /**
+         * @param length the length of the segment
+         * @return the token at the position, or null at the end of the segment or at a token torn by a crash
+         */
+        private static Record read(DataInputStream input, long position, long length) throws IOException {
+            if (position + HEADER_SIZE > length) {
+                return null;
+            }
+            int bodyLength = input.readInt();
+            int checksum = input.readInt();
+            if (bodyLength < 0 || position + HEADER_SIZE + bodyLength > length) {
+                return null;
+            }
+            byte[] body = new byte[bodyLength];
+            input.readFully(body);
+            return checksum(body) == checksum ? new Record(body, position) : null;
+        }
+
+        private static int checksum(byte[] body) {
+            CRC32 crc = new CRC32();
+            crc.update(body);
+            return (int) crc.getValue();
+        }
+    }
+}
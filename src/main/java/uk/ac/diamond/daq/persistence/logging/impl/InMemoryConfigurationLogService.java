@@ -3,69 +3,85 @@ package uk.ac.diamond.daq.persistence.logging.impl;
 import uk.ac.diamond.daq.persistence.data.ItemReference;
 import uk.ac.diamond.daq.persistence.data.LogToken;
 import uk.ac.diamond.daq.persistence.data.PersistableItem;
+import uk.ac.diamond.daq.persistence.logging.ConfigurationChange;
 import uk.ac.diamond.daq.persistence.logging.ConfigurationLogService;
+import uk.ac.diamond.daq.persistence.logging.PartiallyLoggedException;
 import uk.ac.diamond.daq.persistence.service.PersistenceException;
 import uk.ac.diamond.daq.persistence.service.PersistenceService;
 
-import java.lang.reflect.Field;
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Set;
+import java.util.*;
 
 public class InMemoryConfigurationLogService implements ConfigurationLogService {
     private PersistenceService persistenceService;
-    private Set<LogToken> logTokens = new HashSet<>();
+    // The tokens referencing each item, oldest first
+    private Map<Long, List<LogToken>> logTokensByPersistenceId = new HashMap<>();
 
     public InMemoryConfigurationLogService(PersistenceService persistenceService) {
         this.persistenceService = persistenceService;
     }
 
-    private static void addItemReferences(Object object, Class clazz, Set<ItemReference> itemReferences) throws IllegalAccessException {
-        if (PersistableItem.class.isAssignableFrom(clazz)) {
-            PersistableItem item = (PersistableItem) object;
-            itemReferences.add(new ItemReference(item.getId(), item.getVersion(), item.getClass()));
-        }
-        for (Field field : clazz.getDeclaredFields()) {
-            if (PersistenceService.isPersistable(field)) {
-                field.setAccessible(true);
-                addItemReferences(field.get(object), field.getType(), itemReferences);
-            }
-        }
-        Class<?> parent = clazz.getSuperclass();
-        if (parent != null) {
-            addItemReferences(object, parent, itemReferences);
-        }
+    @Override
+    public List<LogToken> listChanges(long persistenceId) throws PersistenceException {
+        return listChanges(persistenceId, null, null);
     }
 
     @Override
-    public List<LogToken> listChanges(long persistenceId) throws PersistenceException {
-        List<LogToken> result = new ArrayList<>();
+    public List<LogToken> listChanges(long persistenceId, Date from, Date to) throws PersistenceException {
+        List<LogToken> logTokens = logTokensByPersistenceId.getOrDefault(persistenceId, Collections.emptyList());
+        int fromIndex = from == null ? 0 : indexBefore(logTokens, from) + 1;
+        int toIndex = to == null ? logTokens.size() : indexBefore(logTokens, to) + 1;
+        return new ArrayList<>(logTokens.subList(fromIndex, Math.max(fromIndex, toIndex)));
+    }
 
-        for (LogToken logToken : logTokens) {
-            for (ItemReference itemReference : logToken.getItemReferences()) {
-                if (persistenceId == itemReference.getId()) {
-                    result.add(logToken);
-                    break;
-                }
+    /**
+     * @return the index of the last token logged before the date, or -1 if there is none
+     */
+    private static int indexBefore(List<LogToken> logTokens, Date date) {
+        int low = 0;
+        int high = logTokens.size() - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (logTokens.get(middle).getDate().before(date)) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
             }
         }
-
-        return result;
+        return high;
     }
 
     @Override
     public LogToken logConfigurationChanges(PersistableItem item, String description) throws PersistenceException {
-        persistenceService.save(item);
-        Set<ItemReference> itemReferences = new HashSet<>();
         try {
-            addItemReferences(item, item.getClass(), itemReferences);
-        } catch (IllegalAccessException e) {
-            throw new PersistenceException("Unable to add item references", e);
+            return logConfigurationChanges(Collections.singletonList(new ConfigurationChange(item, description))).get(0);
+        } catch (PartiallyLoggedException e) {
+            throw e.getCause();
         }
+    }
 
-        LogToken logToken = new LogToken(description, itemReferences);
-        logTokens.add(logToken);
-        return logToken;
+    @Override
+    public List<LogToken> logConfigurationChanges(List<ConfigurationChange> changes) throws PersistenceException {
+        List<LogToken> logged = new ArrayList<>(changes.size());
+        for (ConfigurationChange change : changes) {
+            LogToken logToken;
+            try {
+                persistenceService.save(change.getItem());
+                logToken = new LogToken(change.getDate(), change.getDescription(), ItemReferences.of(change.getItem()));
+            } catch (PersistenceException e) {
+                throw new PartiallyLoggedException(logged, e);
+            }
+            Set<Long> persistenceIds = new HashSet<>();
+            for (ItemReference itemReference : logToken.getItemReferences()) {
+                if (persistenceIds.add(itemReference.getId())) {
+                    List<LogToken> logTokens = logTokensByPersistenceId.computeIfAbsent(itemReference.getId(),
+                            key -> new ArrayList<>());
+                    // Kept in time order even if the clock goes back
+                    Date after = new Date(logToken.getDate().getTime() + 1);
+                    logTokens.add(indexBefore(logTokens, after) + 1, logToken);
+                }
+            }
+            logged.add(logToken);
+        }
+        return logged;
     }
 }
@@ -0,0 +1,124 @@
+package uk.ac.diamond.daq.persistence.logging.impl;
+
+import uk.ac.diamond.daq.persistence.annotation.Listable;
+import uk.ac.diamond.daq.persistence.annotation.Persisted;
+import uk.ac.diamond.daq.persistence.annotation.Searchable;
+import uk.ac.diamond.daq.persistence.data.ItemReference;
+import uk.ac.diamond.daq.persistence.data.PersistableItem;
+import uk.ac.diamond.daq.persistence.service.PersistenceException;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Finds the items a logged item refers to, which are recorded along with it in its log token.
+ * <p>
+ * The persisted fields of each class that may hold items are found once and read through method handles. The walk
+ * follows the runtime class of each value, goes into collections, maps and arrays, and visits each object only once,
+ * so cyclic configurations terminate.
+ */
+final class ItemReferences {
+    private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+
+    private static final Map<Class<?>, List<MethodHandle>> plans = new ConcurrentHashMap<>();
+
+    private ItemReferences() {
+    }
+
+    static Set<ItemReference> of(PersistableItem item) throws PersistenceException {
+        Set<ItemReference> itemReferences = new HashSet<>();
+        Deque<Object> pending = new ArrayDeque<>();
+        Set<Object> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        pending.push(item);
+        while (!pending.isEmpty()) {
+            Object object = pending.pop();
+            if (!visited.add(object)) {
+                continue;
+            }
+            if (object instanceof PersistableItem) {
+                itemReferences.add(new ItemReference((PersistableItem) object));
+            }
+            if (object instanceof Collection) {
+                push((Collection<?>) object, pending);
+            } else if (object instanceof Map) {
+                push(((Map<?, ?>) object).keySet(), pending);
+                push(((Map<?, ?>) object).values(), pending);
+            } else if (object instanceof Object[]) {
+                push(Arrays.asList((Object[]) object), pending);
+            } else {
+                for (MethodHandle getter : getPlan(object.getClass())) {
+                    push(read(getter, object), pending);
+                }
+            }
+        }
+        return itemReferences;
+    }
+
+    private static void push(Collection<?> values, Deque<Object> pending) {
+        for (Object value : values) {
+            push(value, pending);
+        }
+    }
+
+    private static void push(Object value, Deque<Object> pending) {
+        if (value != null && mayReferenceItems(value.getClass())) {
+            pending.push(value);
+        }
+    }
+
+    private static Object read(MethodHandle getter, Object object) throws PersistenceException {
+        try {
+            return (Object) getter.invokeExact(object);
+        } catch (Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new PersistenceException("Unable to add item references of " + object.getClass(), e);
+        }
+    }
+
+    private static List<MethodHandle> getPlan(Class<?> clazz) throws PersistenceException {
+        List<MethodHandle> plan = plans.get(clazz);
+        if (plan == null) {
+            plan = createPlan(clazz);
+            plans.putIfAbsent(clazz, plan);
+        }
+        return plan;
+    }
+
+    private static List<MethodHandle> createPlan(Class<?> clazz) throws PersistenceException {
+        List<MethodHandle> plan = new ArrayList<>();
+        for (Class<?> current = clazz; current != null && !current.equals(Object.class);
+             current = current.getSuperclass()) {
+            for (Field field : current.getDeclaredFields()) {
+                if (isPersisted(field) && mayReferenceItems(field.getType())) {
+                    try {
+                        field.setAccessible(true);
+                        plan.add(MethodHandles.lookup().unreflectGetter(field).asType(GETTER_TYPE));
+                    } catch (IllegalAccessException | RuntimeException e) {
+                        throw new PersistenceException("Unable to access " + field, e);
+                    }
+                }
+            }
+        }
+        return plan.isEmpty() ? Collections.emptyList() : plan;
+    }
+
+    private static boolean isPersisted(Field field) {
+        return field.isAnnotationPresent(Persisted.class) || field.isAnnotationPresent(Listable.class)
+                || field.isAnnotationPresent(Searchable.class);
+    }
+
+    /**
+     * @return false for the types of simple values, which cannot lead to any items
+     */
+    private static boolean mayReferenceItems(Class<?> type) {
+        return !type.isPrimitive() && !type.isEnum() && !CharSequence.class.isAssignableFrom(type)
+                && !Number.class.isAssignableFrom(type) && !Boolean.class.equals(type)
+                && !Character.class.equals(type) && !Date.class.isAssignableFrom(type)
+                && !(type.isArray() && type.getComponentType().isPrimitive());
+    }
+}
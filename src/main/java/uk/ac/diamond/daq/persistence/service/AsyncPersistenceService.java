@@ -0,0 +1,39 @@
+package uk.ac.diamond.daq.persistence.service;
+
+import uk.ac.diamond.daq.persistence.data.PersistableItem;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+public interface AsyncPersistenceService extends AutoCloseable {
+    CompletableFuture<PersistableItem> save(PersistableItem item);
+
+    <T extends PersistableItem> CompletableFuture<SearchResult> get(Class<T> clazz);
+
+    <T extends PersistableItem> CompletableFuture<SearchResult> get(Class<T> clazz, SortRequest sortRequest);
+
+    <T extends PersistableItem> CompletableFuture<SearchResult> get(Map<String, String> searchParameters,
+                                                                    Class<T> clazz);
+
+    <T extends PersistableItem> CompletableFuture<SearchResult> get(SearchPredicate predicate, Class<T> clazz);
+
+    <T extends PersistableItem> CompletableFuture<SearchResult> get(SearchPredicate predicate,
+                                                                    SortRequest sortRequest, Class<T> clazz);
+
+    <T extends PersistableItem> CompletableFuture<SearchResult> search(String text, Class<T> clazz);
+
+    <T extends PersistableItem> CompletableFuture<Long> count(SearchPredicate predicate, Class<T> clazz);
+
+    <T extends PersistableItem> CompletableFuture<Map<String, Long>> countBy(String key, SearchPredicate predicate,
+                                                                            Class<T> clazz);
+
+    <T extends PersistableItem> CompletableFuture<SearchResultPage> get(Class<T> clazz, PageRequest pageRequest);
+
+    <T extends PersistableItem> CompletableFuture<T> get(long persistenceId, Class<T> clazz);
+
+    /**
+     * Waits for all writes submitted so far to complete and releases the threads owned by the service.
+     */
+    @Override
+    void close() throws PersistenceException;
+}
@@ -0,0 +1,24 @@
+package uk.ac.diamond.daq.persistence.service;
+
+import uk.ac.diamond.daq.persistence.annotation.Searchable;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Finds the items of one visit by words, or fragments of words, of their {@link Searchable} text.
+ */
+public interface FullTextIndex {
+
+    /**
+     * Replaces the text held for the item.
+     */
+    void index(long persistenceId, Collection<String> texts);
+
+    void remove(long persistenceId);
+
+    /**
+     * @return the ids of the items matching every word of the query, best match first
+     */
+    List<Long> search(String query);
+}
@@ -0,0 +1,233 @@
+package uk.ac.diamond.daq.persistence.service;
+
+import uk.ac.diamond.daq.persistence.annotation.Listable;
+import uk.ac.diamond.daq.persistence.annotation.Searchable;
+import uk.ac.diamond.daq.persistence.data.PersistableItem;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The {@link Listable} and {@link Searchable} members of a class, found once per class and read through method
+ * handles rather than by scanning and invoking reflectively for every item.
+ */
+public final class ItemExtractor {
+    private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+
+    private static final Map<Class<?>, ItemExtractor> listingExtractors = new ConcurrentHashMap<>();
+    private static final Map<Class<?>, ItemExtractor> searchableExtractors = new ConcurrentHashMap<>();
+
+    private final List<Property> properties;
+    private final List<Property> nested;
+    private volatile Map<String, Class<?>> types;
+
+    private ItemExtractor(List<Property> properties, List<Property> nested) {
+        this.properties = Collections.unmodifiableList(properties);
+        this.nested = Collections.unmodifiableList(nested);
+    }
+
+    /**
+     * The columns shown for a class in a {@link SearchResult}: the declared {@link Listable} or {@link Searchable}
+     * fields and methods of the class and its superclasses below {@link PersistableItem}.
+     */
+    public static ItemExtractor forListing(Class<?> clazz) throws PersistenceException {
+        ItemExtractor extractor = listingExtractors.get(clazz);
+        if (extractor == null) {
+            extractor = createListingExtractor(clazz);
+            listingExtractors.putIfAbsent(clazz, extractor);
+        }
+        return extractor;
+    }
+
+    /**
+     * The {@link Searchable} values of a class, including those of its persistable fields.
+     */
+    public static ItemExtractor forSearching(Class<?> clazz) throws PersistenceException {
+        ItemExtractor extractor = searchableExtractors.get(clazz);
+        if (extractor == null) {
+            extractor = createSearchableExtractor(clazz);
+            searchableExtractors.putIfAbsent(clazz, extractor);
+        }
+        return extractor;
+    }
+
+    public List<Property> getProperties() {
+        return properties;
+    }
+
+    /**
+     * @return the declared types of the searchable values, by title, including those of persistable fields. As for
+     * values, those of the item itself win over those of its fields.
+     */
+    public Map<String, Class<?>> getTypes() throws PersistenceException {
+        Map<String, Class<?>> found = types;
+        if (found == null) {
+            found = new HashMap<>();
+            addTypes(found, Collections.newSetFromMap(new IdentityHashMap<>()));
+            types = found = Collections.unmodifiableMap(found);
+        }
+        return found;
+    }
+
+    private void addTypes(Map<String, Class<?>> found, Set<ItemExtractor> visited) throws PersistenceException {
+        if (!visited.add(this)) {
+            return;
+        }
+        for (Property property : properties) {
+            found.put(property.title, property.type);
+        }
+        Map<String, Class<?>> nestedTypes = new HashMap<>();
+        for (Property property : nested) {
+            forSearching(property.type).addTypes(nestedTypes, visited);
+        }
+        nestedTypes.forEach(found::putIfAbsent);
+    }
+
+    public void getSearchableValues(Object item, Map<String, Object> searchableValues) throws PersistenceException {
+        for (Property property : properties) {
+            searchableValues.put(property.title, property.get(item));
+        }
+        if (nested.isEmpty()) {
+            return;
+        }
+        // The values of the item itself win over those of its fields
+        Map<String, Object> nestedValues = new HashMap<>();
+        for (Property property : nested) {
+            Object value = property.get(item);
+            if (value != null) {
+                forSearching(property.type).getSearchableValues(value, nestedValues);
+            }
+        }
+        nestedValues.forEach(searchableValues::putIfAbsent);
+    }
+
+    /**
+     * @return the searchable values that are text, for a {@link FullTextIndex}
+     */
+    public List<String> getSearchableText(Object item) throws PersistenceException {
+        Map<String, Object> searchableValues = new HashMap<>();
+        getSearchableValues(item, searchableValues);
+        List<String> texts = new ArrayList<>();
+        for (Object value : searchableValues.values()) {
+            if (value instanceof CharSequence) {
+                texts.add(value.toString());
+            }
+        }
+        return texts;
+    }
+
+    private static ItemExtractor createListingExtractor(Class<?> clazz) throws PersistenceException {
+        List<Property> properties = new ArrayList<>();
+        for (Class<?> current = clazz; current != null && !current.equals(PersistableItem.class);
+             current = current.getSuperclass()) {
+            for (Field field : current.getDeclaredFields()) {
+                addListed(field, properties);
+            }
+            for (Method method : current.getDeclaredMethods()) {
+                addListed(method, properties);
+            }
+        }
+        return new ItemExtractor(properties, Collections.emptyList());
+    }
+
+    private static void addListed(AccessibleObject member, List<Property> properties) throws PersistenceException {
+        Listable listable = member.getDeclaredAnnotation(Listable.class);
+        if (listable != null) {
+            properties.add(new Property(listable.value(), listable.priority(), member));
+            return;
+        }
+        Searchable searchable = member.getDeclaredAnnotation(Searchable.class);
+        if (searchable != null) {
+            properties.add(new Property(searchable.value(), searchable.priority(), member));
+        }
+    }
+
+    private static ItemExtractor createSearchableExtractor(Class<?> clazz) throws PersistenceException {
+        List<Property> properties = new ArrayList<>();
+        List<Property> nested = new ArrayList<>();
+        for (Class<?> current = clazz; current != null && !current.equals(Object.class);
+             current = current.getSuperclass()) {
+            for (Field field : current.getDeclaredFields()) {
+                Searchable searchable = field.getDeclaredAnnotation(Searchable.class);
+                if (searchable != null) {
+                    properties.add(new Property(searchable.value(), searchable.priority(), field));
+                } else if (PersistenceService.isPersistable(field) && mayHaveSearchableMembers(field.getType())) {
+                    nested.add(new Property(field.getName(), 0, field));
+                }
+            }
+        }
+        // Later values win, so methods take precedence over fields of the same name
+        for (Method method : clazz.getMethods()) {
+            Searchable searchable = method.getDeclaredAnnotation(Searchable.class);
+            if (searchable != null) {
+                properties.add(new Property(searchable.value(), searchable.priority(), method));
+            }
+        }
+        return new ItemExtractor(properties, nested);
+    }
+
+    /**
+     * @return false for primitives, arrays and library types such as strings and collections
+     */
+    private static boolean mayHaveSearchableMembers(Class<?> type) {
+        return !type.isPrimitive() && !type.isArray() && !type.getName().startsWith("java.");
+    }
+
+    public static final class Property {
+        private final String title;
+        private final int priority;
+        private final String searchableKey;
+        private final Class<?> type;
+        private final MethodHandle getter;
+
+        private Property(String title, int priority, AccessibleObject member) throws PersistenceException {
+            this.title = title;
+            this.priority = priority;
+            Searchable searchable = member.getDeclaredAnnotation(Searchable.class);
+            this.searchableKey = searchable == null ? null : searchable.value();
+            try {
+                member.setAccessible(true);
+                if (member instanceof Field) {
+                    type = ((Field) member).getType();
+                    getter = MethodHandles.lookup().unreflectGetter((Field) member).asType(GETTER_TYPE);
+                } else {
+                    type = ((Method) member).getReturnType();
+                    getter = MethodHandles.lookup().unreflect((Method) member).asType(GETTER_TYPE);
+                }
+            } catch (IllegalAccessException | RuntimeException e) {
+                throw new PersistenceException("Unable to access " + member, e);
+            }
+        }
+
+        public String getTitle() {
+            return title;
+        }
+
+        public int getPriority() {
+            return priority;
+        }
+
+        /**
+         * @return the key the member is searched by, or null if it is not {@link Searchable}
+         */
+        public String getSearchableKey() {
+            return searchableKey;
+        }
+
+        public Object get(Object item) throws PersistenceException {
+            try {
+                return (Object) getter.invokeExact(item);
+            } catch (Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new PersistenceException("Unable to read " + title, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package uk.ac.diamond.daq.persistence.service;
+
+/**
+ * How much of the item graph a read hydrates. Listings load only the item's own properties and leave references to
+ * other items unset, entities also load the items they reference directly, and graphs follow references up to the
+ * given depth.
+ */
+public class LoadProfile {
+    public static final LoadProfile LISTING = new LoadProfile(0);
+    public static final LoadProfile ENTITY = new LoadProfile(1);
+
+    private final int depth;
+
+    private LoadProfile(int depth) {
+        this.depth = depth;
+    }
+
+    public static LoadProfile graph(int depth) {
+        if (depth < 0) {
+            throw new IllegalArgumentException("Depth cannot be negative, was " + depth);
+        }
+        return depth == 0 ? LISTING : depth == 1 ? ENTITY : new LoadProfile(depth);
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public boolean isListing() {
+        return depth == 0;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        return depth == ((LoadProfile) o).depth;
+    }
+
+    @Override
+    public int hashCode() {
+        return Integer.hashCode(depth);
+    }
+
+    @Override
+    public String toString() {
+        return "LoadProfile{depth=" + depth + '}';
+    }
+}
@@ -0,0 +1,49 @@
+package uk.ac.diamond.daq.persistence.service;
+
+import uk.ac.diamond.daq.persistence.data.PersistableItem;
+
+public class PageRequest {
+    private final long afterPersistenceId;
+    private final int offset;
+    private final int limit;
+
+    private PageRequest(long afterPersistenceId, int offset, int limit) {
+        if (offset < 0) {
+            throw new IllegalArgumentException("Offset cannot be negative, was " + offset);
+        }
+        if (limit < 1) {
+            throw new IllegalArgumentException("Limit must be positive, was " + limit);
+        }
+        this.afterPersistenceId = afterPersistenceId;
+        this.offset = offset;
+        this.limit = limit;
+    }
+
+    public static PageRequest first(int limit) {
+        return new PageRequest(PersistableItem.INVALID_ID, 0, limit);
+    }
+
+    public static PageRequest of(int offset, int limit) {
+        return new PageRequest(PersistableItem.INVALID_ID, offset, limit);
+    }
+
+    public static PageRequest after(long persistenceId, int limit) {
+        return new PageRequest(persistenceId, 0, limit);
+    }
+
+    /**
+     * Rows are ordered by persistence id, so a page continues from the last id of the previous page rather than
+     * counting past everything before it.
+     */
+    public long getAfterPersistenceId() {
+        return afterPersistenceId;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+}
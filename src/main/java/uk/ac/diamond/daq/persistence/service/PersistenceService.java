@@ -5,36 +5,88 @@ import uk.ac.diamond.daq.persistence.annotation.Persisted;
 import uk.ac.diamond.daq.persistence.annotation.Searchable;
 import uk.ac.diamond.daq.persistence.data.PersistableItem;
 
-import java.lang.annotation.Annotation;
 import java.lang.reflect.Field;
 import java.util.List;
 import java.util.Map;
 
 public interface PersistenceService {
     static boolean isPersistable(Field field) {
-        Annotation[] annotations = field.getAnnotations();
-        for (Annotation annotation : annotations) {
-            Class<? extends Annotation> clazz = annotation.getClass();
-            if (Persisted.class.equals(clazz) || Listable.class.equals(clazz) || Searchable.class.equals(clazz)) {
-                return true;
-            }
-        }
-        return false;
+        return field.isAnnotationPresent(Persisted.class) || field.isAnnotationPresent(Listable.class)
+                || field.isAnnotationPresent(Searchable.class);
     }
 
     void save(PersistableItem item) throws PersistenceException;
 
+    /**
+     * Removes the item from gets, searches, counts and pages. Its versions stay in the archive, where
+     * {@link #getVersions} and {@link #getArchive} still find them.
+     *
+     * @return true if there was an item to delete
+     */
     boolean delete(long persistenceId);
 
+    /**
+     * Loads the items with the references each backend has always loaded: all of them on the JSON backends, those
+     * of {@link LoadProfile#ENTITY} on Neo4j native. Pass a profile to bound the work.
+     */
     <T extends PersistableItem> SearchResult get(Class<T> clazz)
             throws PersistenceException;
 
+    <T extends PersistableItem> SearchResult get(Class<T> clazz, LoadProfile loadProfile)
+            throws PersistenceException;
+
+    /**
+     * Lists every item in the order of the request, which may name a searchable key or a {@link Listable} heading.
+     *
+     * @throws PersistenceException if the request names the heading of a member that is not searchable
+     */
+    <T extends PersistableItem> SearchResult get(Class<T> clazz, SortRequest sortRequest)
+            throws PersistenceException;
+
     <T extends PersistableItem> SearchResult get(Map<String, String> searchParameters, Class<T> clazz)
             throws PersistenceException;
 
+    <T extends PersistableItem> SearchResult get(SearchPredicate predicate, Class<T> clazz)
+            throws PersistenceException;
+
+    <T extends PersistableItem> SearchResult get(SearchPredicate predicate, SortRequest sortRequest, Class<T> clazz)
+            throws PersistenceException;
+
+    /**
+     * Finds items by words, or fragments of words, of their searchable text.
+     *
+     * @return the matching items, best match first
+     */
+    <T extends PersistableItem> SearchResult search(String text, Class<T> clazz) throws PersistenceException;
+
+    <T extends PersistableItem> long count(Class<T> clazz) throws PersistenceException;
+
+    <T extends PersistableItem> long count(SearchPredicate predicate, Class<T> clazz) throws PersistenceException;
+
+    /**
+     * Counts the matching items by their searchable value for the key, without loading them. Items without a value
+     * are not counted.
+     *
+     * @return the number of items with each value, keyed by the text of the value
+     */
+    <T extends PersistableItem> Map<String, Long> countBy(String key, SearchPredicate predicate, Class<T> clazz)
+            throws PersistenceException;
+
+    <T extends PersistableItem> SearchResultPage get(Class<T> clazz, PageRequest pageRequest)
+            throws PersistenceException;
+
+    /**
+     * Loads the item with the same references as {@link #get(Class)}.
+     */
     <T extends PersistableItem> T get(long persistenceId, Class<T> clazz) throws PersistenceException;
 
+    <T extends PersistableItem> T get(long persistenceId, Class<T> clazz, LoadProfile loadProfile)
+            throws PersistenceException;
+
     List<Long> getVersions(long persistenceId);
 
     <T extends PersistableItem> T getArchive(long persistenceId, long version, Class<T> clazz) throws PersistenceException;
+
+    <T extends PersistableItem> List<T> getArchives(long persistenceId, long fromVersion, long toVersion, Class<T> clazz)
+            throws PersistenceException;
 }
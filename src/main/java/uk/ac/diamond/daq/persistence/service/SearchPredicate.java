@@ -0,0 +1,289 @@
+package uk.ac.diamond.daq.persistence.service;
+
+import uk.ac.diamond.daq.persistence.annotation.Searchable;
+
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * A condition on the {@link Searchable} values of items. Each backend translates predicates into its own query
+ * language through a {@link Visitor}, so items are filtered where they are stored; {@link #test} evaluates a predicate
+ * against values already in memory.
+ * <p>
+ * Numbers are compared numerically whatever their width and other values by their natural ordering. Values given as
+ * strings, as in search parameters entered by users, are converted to the type of the searchable member they are
+ * compared with by {@link #forClass}.
+ */
+public abstract class SearchPredicate {
+
+    private SearchPredicate() {
+    }
+
+    public static SearchPredicate eq(String key, Object value) {
+        return new Comparison(Kind.EQ, key, Collections.singletonList(value));
+    }
+
+    /**
+     * Matches items that have a value for the key other than the given one.
+     */
+    public static SearchPredicate ne(String key, Object value) {
+        return new Comparison(Kind.NE, key, Collections.singletonList(value));
+    }
+
+    /**
+     * Matches values between the bounds, inclusive. Either bound may be null for a range open at that end.
+     */
+    public static SearchPredicate range(String key, Object from, Object to) {
+        if (from == null && to == null) {
+            throw new IllegalArgumentException("A range on " + key + " needs at least one bound");
+        }
+        return new Comparison(Kind.RANGE, key, Arrays.asList(from, to));
+    }
+
+    public static SearchPredicate prefix(String key, String prefix) {
+        return new Comparison(Kind.PREFIX, key, Collections.singletonList(prefix));
+    }
+
+    public static SearchPredicate in(String key, Collection<?> values) {
+        return new Comparison(Kind.IN, key, new ArrayList<>(values));
+    }
+
+    public static SearchPredicate and(SearchPredicate... predicates) {
+        return and(Arrays.asList(predicates));
+    }
+
+    /**
+     * @return a predicate matching items that match all of the given predicates, or every item if there are none
+     */
+    public static SearchPredicate and(Collection<SearchPredicate> predicates) {
+        return new Junction(true, new ArrayList<>(predicates));
+    }
+
+    public static SearchPredicate or(SearchPredicate... predicates) {
+        return or(Arrays.asList(predicates));
+    }
+
+    /**
+     * @return a predicate matching items that match any of the given predicates, or no items if there are none
+     */
+    public static SearchPredicate or(Collection<SearchPredicate> predicates) {
+        return new Junction(false, new ArrayList<>(predicates));
+    }
+
+    /**
+     * The equivalent of a map of search parameters: every key must have its value. The keys are sorted so that the
+     * same set of keys always gives the same query.
+     */
+    public static SearchPredicate allEqual(Map<String, ?> values) {
+        List<SearchPredicate> predicates = new ArrayList<>();
+        for (String key : new TreeSet<>(values.keySet())) {
+            predicates.add(eq(key, values.get(key)));
+        }
+        return and(predicates);
+    }
+
+    public abstract boolean test(Map<String, ?> values);
+
+    public abstract <R> R accept(Visitor<R> visitor);
+
+    /**
+     * @return this predicate with its values converted to the types of the searchable members of the class
+     */
+    public SearchPredicate forClass(Class<?> clazz) throws PersistenceException {
+        return convert(ItemExtractor.forSearching(clazz).getTypes()::get);
+    }
+
+    abstract SearchPredicate convert(Function<String, Class<?>> types);
+
+    public interface Visitor<R> {
+        R eq(String key, Object value);
+
+        R ne(String key, Object value);
+
+        R range(String key, Object from, Object to);
+
+        R prefix(String key, String prefix);
+
+        R in(String key, List<Object> values);
+
+        R and(List<R> operands);
+
+        R or(List<R> operands);
+    }
+
+    private enum Kind {
+        EQ, NE, RANGE, PREFIX, IN
+    }
+
+    private static final class Comparison extends SearchPredicate {
+        private final Kind kind;
+        private final String key;
+        private final List<Object> values;
+
+        private Comparison(Kind kind, String key, List<Object> values) {
+            this.kind = Objects.requireNonNull(kind);
+            this.key = Objects.requireNonNull(key);
+            this.values = values;
+        }
+
+        @Override
+        public boolean test(Map<String, ?> itemValues) {
+            Object actual = itemValues.get(key);
+            if (actual == null) {
+                return false;
+            }
+            switch (kind) {
+                case EQ:
+                    return equal(actual, values.get(0));
+                case NE:
+                    return !equal(actual, values.get(0));
+                case RANGE:
+                    return (values.get(0) == null || compare(actual, values.get(0)) >= 0)
+                            && (values.get(1) == null || compare(actual, values.get(1)) <= 0);
+                case PREFIX:
+                    return (actual instanceof String || actual instanceof Enum || actual instanceof Character)
+                            && actual.toString().startsWith((String) values.get(0));
+                case IN:
+                    for (Object value : values) {
+                        if (equal(actual, value)) {
+                            return true;
+                        }
+                    }
+                    return false;
+                default:
+                    throw new IllegalStateException("Unknown comparison " + kind);
+            }
+        }
+
+        @Override
+        public <R> R accept(Visitor<R> visitor) {
+            switch (kind) {
+                case EQ:
+                    return visitor.eq(key, values.get(0));
+                case NE:
+                    return visitor.ne(key, values.get(0));
+                case RANGE:
+                    return visitor.range(key, values.get(0), values.get(1));
+                case PREFIX:
+                    return visitor.prefix(key, (String) values.get(0));
+                case IN:
+                    return visitor.in(key, Collections.unmodifiableList(values));
+                default:
+                    throw new IllegalStateException("Unknown comparison " + kind);
+            }
+        }
+
+        @Override
+        SearchPredicate convert(Function<String, Class<?>> types) {
+            Class<?> type = types.apply(key);
+            if (type == null || kind == Kind.PREFIX) {
+                return this;
+            }
+            List<Object> converted = new ArrayList<>(values.size());
+            for (Object value : values) {
+                converted.add(SearchPredicate.convert(value, type));
+            }
+            return new Comparison(kind, key, converted);
+        }
+
+        @Override
+        public String toString() {
+            return key + " " + kind + " " + values;
+        }
+    }
+
+    private static final class Junction extends SearchPredicate {
+        private final boolean all;
+        private final List<SearchPredicate> operands;
+
+        private Junction(boolean all, List<SearchPredicate> operands) {
+            this.all = all;
+            this.operands = operands;
+        }
+
+        @Override
+        public boolean test(Map<String, ?> values) {
+            for (SearchPredicate operand : operands) {
+                if (operand.test(values) != all) {
+                    return !all;
+                }
+            }
+            return all;
+        }
+
+        @Override
+        public <R> R accept(Visitor<R> visitor) {
+            List<R> translated = new ArrayList<>(operands.size());
+            for (SearchPredicate operand : operands) {
+                translated.add(operand.accept(visitor));
+            }
+            return all ? visitor.and(translated) : visitor.or(translated);
+        }
+
+        @Override
+        SearchPredicate convert(Function<String, Class<?>> types) {
+            List<SearchPredicate> converted = new ArrayList<>(operands.size());
+            for (SearchPredicate operand : operands) {
+                converted.add(operand.convert(types));
+            }
+            return new Junction(all, converted);
+        }
+
+        @Override
+        public String toString() {
+            return (all ? "and" : "or") + operands;
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Object convert(Object value, Class<?> type) {
+        if (!(value instanceof String) || String.class.equals(type)) {
+            return value;
+        }
+        String text = ((String) value).trim();
+        try {
+            if (type == int.class || type == Integer.class) {
+                return Integer.valueOf(text);
+            } else if (type == long.class || type == Long.class) {
+                return Long.valueOf(text);
+            } else if (type == short.class || type == Short.class) {
+                return Short.valueOf(text);
+            } else if (type == byte.class || type == Byte.class) {
+                return Byte.valueOf(text);
+            } else if (type == double.class || type == Double.class) {
+                return Double.valueOf(text);
+            } else if (type == float.class || type == Float.class) {
+                return Float.valueOf(text);
+            } else if (type == boolean.class || type == Boolean.class) {
+                return Boolean.valueOf(text);
+            } else if (type.isEnum()) {
+                return Enum.valueOf((Class<Enum>) type, text);
+            }
+        } catch (IllegalArgumentException e) {
+            // Not a value of the member's type, so it cannot match
+        }
+        return value;
+    }
+
+    private static boolean equal(Object actual, Object expected) {
+        return expected != null && compare(actual, expected) == 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    static int compare(Object actual, Object expected) {
+        if (actual instanceof Number && expected instanceof Number) {
+            if (isIntegral(actual) && isIntegral(expected)) {
+                return Long.compare(((Number) actual).longValue(), ((Number) expected).longValue());
+            }
+            return Double.compare(((Number) actual).doubleValue(), ((Number) expected).doubleValue());
+        }
+        if (actual instanceof Comparable && actual.getClass().isInstance(expected)) {
+            return ((Comparable<Object>) actual).compareTo(expected);
+        }
+        return actual.toString().compareTo(expected.toString());
+    }
+
+    private static boolean isIntegral(Object value) {
+        return value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte;
+    }
+}
@@ -1,70 +1,179 @@
 package uk.ac.diamond.daq.persistence.service;
 
-import uk.ac.diamond.daq.persistence.annotation.Listable;
-import uk.ac.diamond.daq.persistence.annotation.Searchable;
 import uk.ac.diamond.daq.persistence.data.PersistableItem;
 
-import java.lang.reflect.Field;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.util.*;
 
+/**
+ * Search results stored by column: the ids and versions as {@code long} arrays and each heading as a dictionary of its
+ * distinct values with one code per row, so repeated values such as class names are only held once. Rows are only
+ * created when read through {@link #getRows()}.
+ */
 public class SearchResult {
-    private Set<SearchResultHeading> headings = new HashSet<>();
-    private List<SearchResultRow> rows = new ArrayList<>();
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int ABSENT = -1;
 
-    private void add(String title, String value, Map<SearchResultHeading, String> values) {
-        SearchResultHeading heading = new SearchResultHeading(title, -1);
-        headings.add(heading);
-        values.put(heading, value);
+    private final List<SearchResultHeading> headings = new ArrayList<>();
+    private final Map<String, Column> columns = new HashMap<>();
+    private long[] persistenceIds = new long[INITIAL_CAPACITY];
+    private long[] versions = new long[INITIAL_CAPACITY];
+    private int size;
+
+    private Column column(String title, int priority) {
+        Column column = columns.get(title);
+        if (column == null) {
+            column = new Column(headings.size(), persistenceIds.length);
+            columns.put(title, column);
+            headings.add(new SearchResultHeading(title, priority));
+        } else if (headings.get(column.index).getPriority() < priority) {
+            headings.set(column.index, new SearchResultHeading(title, priority));
+        }
+        return column;
     }
 
-    private void add(Object object, Class<?> clazz, Map<SearchResultHeading, String> values)
-            throws IllegalAccessException, InvocationTargetException {
-        for (Field field : clazz.getDeclaredFields()) {
-            if (field.isAnnotationPresent(Listable.class)) {
-                field.setAccessible(true);
-                Listable listable = field.getDeclaredAnnotation(Listable.class);
-                add(listable.value(), field.get(object).toString(), values);
-            } else if (field.isAnnotationPresent(Searchable.class)) {
-                field.setAccessible(true);
-                Searchable searchable = field.getDeclaredAnnotation(Searchable.class);
-                add(searchable.value(), field.get(object).toString(), values);
-            }
+    public void addResult(PersistableItem item) throws PersistenceException {
+        List<ItemExtractor.Property> properties = ItemExtractor.forListing(item.getClass()).getProperties();
+        String[] values = new String[properties.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = properties.get(i).get(item).toString();
         }
-        for (Method method : clazz.getDeclaredMethods()) {
-            if (method.isAnnotationPresent(Listable.class)) {
-                method.setAccessible(true);
-                Listable listable = method.getDeclaredAnnotation(Listable.class);
-                add(listable.value(), method.invoke(object).toString(), values);
-            } else if (method.isAnnotationPresent(Searchable.class)) {
-                method.setAccessible(true);
-                Searchable searchable = method.getDeclaredAnnotation(Searchable.class);
-                add(searchable.value(), method.invoke(object).toString(), values);
+
+        if (size == persistenceIds.length) {
+            int capacity = size * 2;
+            persistenceIds = Arrays.copyOf(persistenceIds, capacity);
+            versions = Arrays.copyOf(versions, capacity);
+            for (Column column : columns.values()) {
+                column.grow(capacity);
             }
         }
-
-        Class<?> parent = clazz.getSuperclass();
-        if (parent != null && !parent.equals(PersistableItem.class)) {
-            add(object, parent, values);
+        for (int i = 0; i < values.length; i++) {
+            ItemExtractor.Property property = properties.get(i);
+            column(property.getTitle(), property.getPriority()).set(size, values[i]);
         }
+        persistenceIds[size] = item.getId();
+        versions[size] = item.getVersion();
+        size++;
     }
 
-    public void addResult(PersistableItem item) throws PersistenceException {
-        try {
-            Map<SearchResultHeading, String> values = new HashMap<>();
-            add(item, item.getClass(), values);
-            rows.add(new SearchResultRow(item.getId(), item.getVersion(), values));
-        } catch (IllegalAccessException | InvocationTargetException e) {
-            throw new PersistenceException("Unable to add search results", e);
-        }
+    public int size() {
+        return size;
+    }
+
+    public long getPersistenceId(int row) {
+        checkRow(row);
+        return persistenceIds[row];
+    }
+
+    public long getVersion(int row) {
+        checkRow(row);
+        return versions[row];
+    }
+
+    /**
+     * @return the value of the heading in the row, or null if the row's item has no such value
+     */
+    public String getValue(int row, SearchResultHeading heading) {
+        checkRow(row);
+        Column column = columns.get(heading.getTitle());
+        return column == null ? null : column.get(row);
+    }
+
+    /**
+     * @return the values of the heading for every row, null where the row's item has no such value
+     */
+    public List<String> getColumn(SearchResultHeading heading) {
+        Column column = columns.get(heading.getTitle());
+        return new AbstractList<String>() {
+            @Override
+            public String get(int row) {
+                checkRow(row);
+                return column == null ? null : column.get(row);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
     }
 
+    /**
+     * @return the headings by their {@link uk.ac.diamond.daq.persistence.annotation.Listable} priority, highest
+     * first, with headings of the same priority in the order they were first met
+     */
     public Set<SearchResultHeading> getHeadings() {
-        return headings;
+        return Collections.unmodifiableSet(new LinkedHashSet<>(sortedHeadings()));
     }
 
+    private List<SearchResultHeading> sortedHeadings() {
+        List<SearchResultHeading> sortedHeadings = new ArrayList<>(headings);
+        sortedHeadings.sort((lhs, rhs) -> SearchResultHeading.compare(rhs, lhs));
+        return sortedHeadings;
+    }
+
+    /**
+     * @return the rows, each holding its values in the order of {@link #getHeadings()}
+     */
     public List<SearchResultRow> getRows() {
-        return rows;
+        List<SearchResultHeading> sortedHeadings = sortedHeadings();
+        return new AbstractList<SearchResultRow>() {
+            @Override
+            public SearchResultRow get(int row) {
+                checkRow(row);
+                Map<SearchResultHeading, String> values = new LinkedHashMap<>();
+                for (SearchResultHeading heading : sortedHeadings) {
+                    String value = columns.get(heading.getTitle()).get(row);
+                    if (value != null) {
+                        values.put(heading, value);
+                    }
+                }
+                return new SearchResultRow(persistenceIds[row], versions[row], values);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    private void checkRow(int row) {
+        if (row < 0 || row >= size) {
+            throw new IndexOutOfBoundsException("Row " + row + " of " + size);
+        }
+    }
+
+    private static final class Column {
+        private final int index;
+        private final Map<String, Integer> codes = new HashMap<>();
+        private final List<String> dictionary = new ArrayList<>();
+        private int[] rows;
+
+        private Column(int index, int capacity) {
+            this.index = index;
+            rows = new int[capacity];
+            Arrays.fill(rows, ABSENT);
+        }
+
+        private void grow(int capacity) {
+            int previous = rows.length;
+            rows = Arrays.copyOf(rows, capacity);
+            Arrays.fill(rows, previous, capacity, ABSENT);
+        }
+
+        private void set(int row, String value) {
+            Integer code = codes.get(value);
+            if (code == null) {
+                code = dictionary.size();
+                dictionary.add(value);
+                codes.put(value, code);
+            }
+            rows[row] = code;
+        }
+
+        private String get(int row) {
+            int code = rows[row];
+            return code == ABSENT ? null : dictionary.get(code);
+        }
     }
 }
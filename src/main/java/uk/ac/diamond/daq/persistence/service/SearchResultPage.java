@@ -0,0 +1,29 @@
+package uk.ac.diamond.daq.persistence.service;
+
+public class SearchResultPage extends SearchResult {
+    private final PageRequest pageRequest;
+    private PageRequest nextPage;
+
+    public SearchResultPage(PageRequest pageRequest) {
+        this.pageRequest = pageRequest;
+    }
+
+    public boolean isFull() {
+        return size() >= pageRequest.getLimit();
+    }
+
+    public void moreAvailable() {
+        if (size() > 0) {
+            long lastId = getPersistenceId(size() - 1);
+            nextPage = PageRequest.after(lastId, pageRequest.getLimit());
+        }
+    }
+
+    public boolean hasNextPage() {
+        return nextPage != null;
+    }
+
+    public PageRequest getNextPage() {
+        return nextPage;
+    }
+}
@@ -0,0 +1,143 @@
+package uk.ac.diamond.daq.persistence.service;
+
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * The order of a search and, optionally, how many of the first items to return, e.g. the latest 50 items with
+ * {@code SortRequest.descending(SortRequest.VERSION).top(50)}. Items are ordered by a searchable key, the heading of a
+ * searchable {@link uk.ac.diamond.daq.persistence.annotation.Listable} member, or their id or version, and backends
+ * sort and limit where the items are stored.
+ * <p>
+ * Items without a value for the key sort as if their value were smaller than any other, so they come first in
+ * ascending order and last in descending order, on every backend.
+ */
+public class SortRequest {
+    public static final String PERSISTENCE_ID = "id";
+    public static final String VERSION = "version";
+
+    private static final int NO_LIMIT = -1;
+
+    private final String key;
+    private final boolean ascending;
+    private final int limit;
+
+    private SortRequest(String key, boolean ascending, int limit) {
+        this.key = Objects.requireNonNull(key);
+        this.ascending = ascending;
+        this.limit = limit;
+    }
+
+    public static SortRequest ascending(String key) {
+        return new SortRequest(key, true, NO_LIMIT);
+    }
+
+    public static SortRequest descending(String key) {
+        return new SortRequest(key, false, NO_LIMIT);
+    }
+
+    /**
+     * @return this order, keeping only the first {@code limit} items
+     */
+    public SortRequest top(int limit) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("Limit must be positive, was " + limit);
+        }
+        return new SortRequest(key, ascending, limit);
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public boolean isAscending() {
+        return ascending;
+    }
+
+    public boolean isLimited() {
+        return limit != NO_LIMIT;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * @return false if the key is the id or version, which every item has
+     */
+    public boolean mayLackValues() {
+        return !PERSISTENCE_ID.equals(key) && !VERSION.equals(key);
+    }
+
+    /**
+     * @return this order with a {@link uk.ac.diamond.daq.persistence.annotation.Listable} heading of the class
+     * replaced by the searchable key of the same member, which is what backends sort by
+     * @throws PersistenceException if the key is the heading of a member that is not searchable, so is not stored in
+     *                              a form backends can sort
+     */
+    public SortRequest forClass(Class<?> clazz) throws PersistenceException {
+        if (!mayLackValues() || ItemExtractor.forSearching(clazz).getTypes().containsKey(key)) {
+            return this;
+        }
+        for (ItemExtractor.Property property : ItemExtractor.forListing(clazz).getProperties()) {
+            if (property.getTitle().equals(key)) {
+                if (property.getSearchableKey() == null) {
+                    throw new PersistenceException("Cannot sort " + clazz.getName() + " by " + key
+                            + ", as it is not searchable");
+                }
+                return new SortRequest(property.getSearchableKey(), ascending, limit);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Orders elements by the value of the key, with elements lacking a value as if it were the smallest.
+     */
+    public <E> Comparator<E> comparator(Function<E, ?> value) {
+        return (lhs, rhs) -> {
+            Object lhsValue = value.apply(lhs);
+            Object rhsValue = value.apply(rhs);
+            int compared;
+            if (lhsValue == null || rhsValue == null) {
+                compared = lhsValue == null ? (rhsValue == null ? 0 : -1) : 1;
+            } else {
+                compared = SearchPredicate.compare(lhsValue, rhsValue);
+            }
+            return ascending ? compared : -compared;
+        };
+    }
+
+    /**
+     * Sorts in memory. When limited, only the first items are kept while scanning, so the cost grows with the limit
+     * rather than with the number of elements.
+     */
+    public <E> List<E> sort(Iterable<E> elements, Function<E, ?> value) {
+        Comparator<E> comparator = comparator(value);
+        if (!isLimited()) {
+            List<E> sorted = new ArrayList<>();
+            elements.forEach(sorted::add);
+            sorted.sort(comparator);
+            return sorted;
+        }
+        // The head of the heap is the last of the items kept so far
+        PriorityQueue<E> kept = new PriorityQueue<>(Math.min(limit, 1024) + 1, comparator.reversed());
+        for (E element : elements) {
+            if (kept.size() < limit) {
+                kept.add(element);
+            } else if (comparator.compare(element, kept.peek()) < 0) {
+                kept.poll();
+                kept.add(element);
+            }
+        }
+        List<E> sorted = new ArrayList<>(kept);
+        sorted.sort(comparator);
+        return sorted;
+    }
+
+    @Override
+    public String toString() {
+        return "SortRequest{" + key + (ascending ? " ascending" : " descending")
+                + (isLimited() ? ", top " + limit : "") + '}';
+    }
+}
@@ -10,13 +10,14 @@ import uk.ac.diamond.daq.persistence.json.JsonSerialiser;
 import uk.ac.diamond.daq.persistence.service.*;
 
 import java.lang.reflect.Field;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
 public abstract class AbstractPersistenceService implements PersistenceService, VisitServiceListener {
 
     JsonSerialisationFactory jsonSerialisationFactory;
-    private String currentVisitId;
+    private volatile String currentVisitId;
     AbstractPersistenceService(JsonSerialisationFactory jsonSerialisationFactory, VisitService visitService) {
         this.currentVisitId = visitService.getCurrentVisitId();
         this.jsonSerialisationFactory = jsonSerialisationFactory;
@@ -67,22 +68,34 @@ public abstract class AbstractPersistenceService implements PersistenceService,
         currentVisitId = newVisitId;
     }
 
-    protected abstract long getNextPersistenceId();
+    String getCurrentVisitId() {
+        return currentVisitId;
+    }
+
+    protected abstract long getNextPersistenceId() throws PersistenceException;
 
     protected abstract ItemContainer getActive(long persistenceId, String visitId);
 
     protected abstract void saveToActiveItems(ItemContainer itemContainer);
 
-    protected abstract void saveToArchiveItems(ItemContainer itemContainer);
+    protected abstract void saveToArchiveItems(ItemContainer itemContainer) throws PersistenceException;
+
+    /**
+     * Removes the item from the active items of the visit, ahead of saving a new version of it. Backends that keep the
+     * active items of all visits together may ignore the visit.
+     */
+    protected boolean delete(long persistenceId, String visitId) {
+        return delete(persistenceId);
+    }
 
     public void save(PersistableItem item, String visitId) throws PersistenceException {
         if (item == null) {
             throw new PersistenceException("Cannot save null");
         }
         SaveAction saveAction;
-        ItemContainer itemContainer = getActive(item.getId(), currentVisitId);
+        ItemContainer itemContainer = getActive(item.getId(), visitId);
         if (itemContainer != null) {
-            JsonDeserialiser jsonDeserialiser = jsonSerialisationFactory.getJsonDeserialiser(this, currentVisitId);
+            JsonDeserialiser jsonDeserialiser = jsonSerialisationFactory.getJsonDeserialiser(this, visitId);
             saveAction = calculateChangeType(item, jsonDeserialiser.deserialise(itemContainer));
         } else {
             saveAction = SaveAction.createNewInstance;
@@ -99,14 +112,18 @@ public abstract class AbstractPersistenceService implements PersistenceService,
             item.setVersion(itemContainer.getVersion() + 1);
         }
 
-        delete(item.getId());
-        JsonSerialiser jsonSerialiser = jsonSerialisationFactory.getJsonSerialiser(this, visitId);
-        String json = jsonSerialiser.serialise(item);
+        delete(item.getId(), visitId);
+        String json = serialise(item, visitId);
         itemContainer = new ItemContainer(item, json, visitId);
         saveToActiveItems(itemContainer);
         saveToArchiveItems(itemContainer);
     }
 
+    protected String serialise(PersistableItem item, String visitId) throws PersistenceException {
+        JsonSerialiser jsonSerialiser = jsonSerialisationFactory.getJsonSerialiser(this, visitId);
+        return jsonSerialiser.serialise(item);
+    }
+
     @Override
     public void save(PersistableItem item) throws PersistenceException {
         save(item, currentVisitId);
@@ -119,9 +136,21 @@ public abstract class AbstractPersistenceService implements PersistenceService,
         return get(clazz, currentVisitId);
     }
 
-    protected abstract <T extends PersistableItem> SearchResult get(Map<String, String> searchParameters,
-                                                                    Class<T> clazz, String visitId)
-            throws PersistenceException;
+    protected <T extends PersistableItem> SearchResult get(Class<T> clazz, String visitId, LoadProfile loadProfile)
+            throws PersistenceException {
+        return get(clazz, visitId);
+    }
+
+    @Override
+    public <T extends PersistableItem> SearchResult get(Class<T> clazz, LoadProfile loadProfile)
+            throws PersistenceException {
+        return get(clazz, currentVisitId, loadProfile);
+    }
+
+    protected <T extends PersistableItem> SearchResult get(Map<String, String> searchParameters, Class<T> clazz,
+                                                           String visitId) throws PersistenceException {
+        return get(SearchPredicate.allEqual(searchParameters).forClass(clazz), clazz, visitId);
+    }
 
     @Override
     public <T extends PersistableItem> SearchResult get(Map<String, String> searchParameters, Class<T> clazz)
@@ -129,6 +158,83 @@ public abstract class AbstractPersistenceService implements PersistenceService,
         return get(searchParameters, clazz, currentVisitId);
     }
 
+    protected <T extends PersistableItem> SearchResult get(SearchPredicate predicate, Class<T> clazz,
+                                                           String visitId) throws PersistenceException {
+        return get(predicate, null, clazz, visitId);
+    }
+
+    @Override
+    public <T extends PersistableItem> SearchResult get(SearchPredicate predicate, Class<T> clazz)
+            throws PersistenceException {
+        return get(predicate.forClass(clazz), clazz, currentVisitId);
+    }
+
+    /**
+     * @param predicate   the predicate, with its values already converted by {@link SearchPredicate#forClass}
+     * @param sortRequest the order of the results, with headings already converted by {@link SortRequest#forClass},
+     *                    or null if any order will do
+     */
+    protected abstract <T extends PersistableItem> SearchResult get(SearchPredicate predicate, SortRequest sortRequest,
+                                                                    Class<T> clazz, String visitId)
+            throws PersistenceException;
+
+    @Override
+    public <T extends PersistableItem> SearchResult get(SearchPredicate predicate, SortRequest sortRequest,
+                                                        Class<T> clazz) throws PersistenceException {
+        return get(predicate.forClass(clazz), sortRequest == null ? null : sortRequest.forClass(clazz), clazz,
+                currentVisitId);
+    }
+
+    @Override
+    public <T extends PersistableItem> SearchResult get(Class<T> clazz, SortRequest sortRequest)
+            throws PersistenceException {
+        return get(SearchPredicate.and(), sortRequest, clazz);
+    }
+
+    protected abstract <T extends PersistableItem> SearchResult search(String text, Class<T> clazz, String visitId)
+            throws PersistenceException;
+
+    @Override
+    public <T extends PersistableItem> SearchResult search(String text, Class<T> clazz) throws PersistenceException {
+        return search(text, clazz, currentVisitId);
+    }
+
+    @Override
+    public <T extends PersistableItem> long count(Class<T> clazz) throws PersistenceException {
+        return count(SearchPredicate.and(), clazz, currentVisitId);
+    }
+
+    /**
+     * @param predicate the predicate, with its values already converted by {@link SearchPredicate#forClass}
+     */
+    protected abstract <T extends PersistableItem> long count(SearchPredicate predicate, Class<T> clazz,
+                                                              String visitId) throws PersistenceException;
+
+    @Override
+    public <T extends PersistableItem> long count(SearchPredicate predicate, Class<T> clazz)
+            throws PersistenceException {
+        return count(predicate.forClass(clazz), clazz, currentVisitId);
+    }
+
+    protected abstract <T extends PersistableItem> Map<String, Long> countBy(String key, SearchPredicate predicate,
+                                                                             Class<T> clazz, String visitId)
+            throws PersistenceException;
+
+    @Override
+    public <T extends PersistableItem> Map<String, Long> countBy(String key, SearchPredicate predicate, Class<T> clazz)
+            throws PersistenceException {
+        return countBy(key, predicate.forClass(clazz), clazz, currentVisitId);
+    }
+
+    protected abstract <T extends PersistableItem> SearchResultPage get(Class<T> clazz, PageRequest pageRequest,
+                                                                        String visitId) throws PersistenceException;
+
+    @Override
+    public <T extends PersistableItem> SearchResultPage get(Class<T> clazz, PageRequest pageRequest)
+            throws PersistenceException {
+        return get(clazz, pageRequest, currentVisitId);
+    }
+
     public <T extends PersistableItem> T get(ItemReference itemReference, JsonDeserialiser jsonDeserialiser,
                                              String visitId) throws PersistenceException {
         ItemContainer itemContainer = getActive(itemReference.getId(), visitId);
@@ -144,6 +250,14 @@ public abstract class AbstractPersistenceService implements PersistenceService,
         return get(new ItemReference(persistenceId, -1, clazz), jsonDeserialiser, currentVisitId);
     }
 
+    @Override
+    public <T extends PersistableItem> T get(long persistenceId, Class<T> clazz, LoadProfile loadProfile)
+            throws PersistenceException {
+        JsonDeserialiser jsonDeserialiser = jsonSerialisationFactory.getJsonDeserialiser(this, currentVisitId,
+                loadProfile);
+        return get(new ItemReference(persistenceId, -1, clazz), jsonDeserialiser, currentVisitId);
+    }
+
     public abstract List<Long> getVersions(long persistenceId, String visitId);
 
     @Override
@@ -165,5 +279,24 @@ public abstract class AbstractPersistenceService implements PersistenceService,
         throw new PersistenceException("No item found width id of " + persistenceId + " and version " + version);
     }
 
+    protected abstract List<ItemContainer> getArchivedItems(long persistenceId, long fromVersion, long toVersion,
+                                                            String visitId);
+
+    @Override
+    public <T extends PersistableItem> List<T> getArchives(long persistenceId, long fromVersion, long toVersion,
+                                                           Class<T> clazz) throws PersistenceException {
+        List<T> archives = new ArrayList<>();
+        for (ItemContainer itemContainer : getArchivedItems(persistenceId, fromVersion, toVersion, currentVisitId)) {
+            if (!clazz.isAssignableFrom(itemContainer.getItemClass())) {
+                throw new PersistenceException("Item " + persistenceId + " is a " + itemContainer.getItemClass()
+                        + " not a " + clazz);
+            }
+            // Each version needs its own deserialiser as they cache items by id
+            JsonDeserialiser jsonDeserialiser = jsonSerialisationFactory.getJsonDeserialiser(this, currentVisitId);
+            archives.add(jsonDeserialiser.deserialise(itemContainer));
+        }
+        return archives;
+    }
+
     protected enum SaveAction {doNotSave, updateCurrent, createNewInstance}
 }
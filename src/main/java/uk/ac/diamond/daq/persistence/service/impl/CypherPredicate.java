@@ -0,0 +1,200 @@
+package uk.ac.diamond.daq.persistence.service.impl;
+
+import uk.ac.diamond.daq.persistence.service.SearchPredicate;
+
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * A {@link SearchPredicate} as a Cypher expression over the properties of node {@code n}. Values become parameters
+ * named by their position, so predicates of the same shape give the same expression.
+ */
+public final class CypherPredicate {
+    private static final String PARAMETER = "predicate";
+    // The format OGM uses for dates, which sorts in time order
+    private static final String DATE_FORMAT = "yyyy-MM-dd'T'HH:mm:ss.SSSXXX";
+
+    private final String expression;
+    private final Map<String, Object> parameters;
+    private final Function<Map<String, ?>, SearchPredicate> binding;
+
+    private CypherPredicate(Part part, Map<String, Object> parameters) {
+        this.expression = part.expression;
+        this.parameters = Collections.unmodifiableMap(parameters);
+        this.binding = part.binding;
+    }
+
+    /**
+     * @param propertyPrefix prepended to each key to give the name of the node property holding its value
+     */
+    public static CypherPredicate of(SearchPredicate predicate, String propertyPrefix) {
+        Translator translator = new Translator(propertyPrefix);
+        return new CypherPredicate(predicate.accept(translator), translator.parameters);
+    }
+
+    public String getExpression() {
+        return expression;
+    }
+
+    public Map<String, Object> getParameters() {
+        return parameters;
+    }
+
+    /**
+     * Turns the expression back into a predicate on node properties, for stores that evaluate it themselves. Any
+     * predicate giving the same expression can be bound, so this works for cached queries too.
+     *
+     * @param parameters the parameters of a predicate with this expression
+     * @return the predicate with the stored values of the parameters, keyed by node property
+     */
+    public SearchPredicate bind(Map<String, ?> parameters) {
+        return binding.apply(parameters);
+    }
+
+    /**
+     * @return the node property holding the value of the key
+     */
+    public static String property(String propertyPrefix, String key) {
+        return "n." + CypherQuery.identifier(propertyPrefix + key);
+    }
+
+    /**
+     * Converts a value to one Neo4j can store and compare: integral numbers as longs, enums and characters as
+     * strings and dates as OGM writes them.
+     */
+    public static Object toStoredValue(Object value) {
+        if (value == null || value instanceof Long || value instanceof Double || value instanceof String
+                || value instanceof Boolean) {
+            return value;
+        }
+        if (value instanceof Byte || value instanceof Short || value instanceof Integer) {
+            return ((Number) value).longValue();
+        }
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+        if (value instanceof Date) {
+            SimpleDateFormat format = new SimpleDateFormat(DATE_FORMAT);
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+            return format.format((Date) value);
+        }
+        return value.toString();
+    }
+
+    /**
+     * The Cypher for part of a predicate, and how to rebuild that part from the parameters of any predicate of the
+     * same shape.
+     */
+    private static final class Part {
+        private final String expression;
+        private final Function<Map<String, ?>, SearchPredicate> binding;
+
+        private Part(String expression, Function<Map<String, ?>, SearchPredicate> binding) {
+            this.expression = expression;
+            this.binding = binding;
+        }
+    }
+
+    private static final class Translator implements SearchPredicate.Visitor<Part> {
+        private final String propertyPrefix;
+        private final Map<String, Object> parameters = new HashMap<>();
+
+        private Translator(String propertyPrefix) {
+            this.propertyPrefix = propertyPrefix;
+        }
+
+        @Override
+        public Part eq(String key, Object value) {
+            String name = parameter(toStoredValue(value));
+            return new Part(property(key) + " = " + reference(name),
+                    bound -> SearchPredicate.eq(propertyPrefix + key, bound.get(name)));
+        }
+
+        @Override
+        public Part ne(String key, Object value) {
+            String name = parameter(toStoredValue(value));
+            return new Part(property(key) + " <> " + reference(name),
+                    bound -> SearchPredicate.ne(propertyPrefix + key, bound.get(name)));
+        }
+
+        @Override
+        public Part range(String key, Object from, Object to) {
+            List<String> bounds = new ArrayList<>();
+            String fromName = from == null ? null : parameter(toStoredValue(from));
+            String toName = to == null ? null : parameter(toStoredValue(to));
+            if (fromName != null) {
+                bounds.add(property(key) + " >= " + reference(fromName));
+            }
+            if (toName != null) {
+                bounds.add(property(key) + " <= " + reference(toName));
+            }
+            return new Part(join(bounds, " AND ", "true"), bound -> SearchPredicate.range(propertyPrefix + key,
+                    fromName == null ? null : bound.get(fromName), toName == null ? null : bound.get(toName)));
+        }
+
+        @Override
+        public Part prefix(String key, String prefix) {
+            String name = parameter(prefix);
+            return new Part(property(key) + " STARTS WITH " + reference(name),
+                    bound -> SearchPredicate.prefix(propertyPrefix + key, (String) bound.get(name)));
+        }
+
+        @Override
+        public Part in(String key, List<Object> values) {
+            List<Object> storedValues = new ArrayList<>();
+            for (Object value : values) {
+                storedValues.add(toStoredValue(value));
+            }
+            String name = parameter(storedValues);
+            return new Part(property(key) + " IN " + reference(name),
+                    bound -> SearchPredicate.in(propertyPrefix + key, (Collection<?>) bound.get(name)));
+        }
+
+        @Override
+        public Part and(List<Part> operands) {
+            return new Part(join(expressions(operands), " AND ", "true"),
+                    bound -> SearchPredicate.and(bind(operands, bound)));
+        }
+
+        @Override
+        public Part or(List<Part> operands) {
+            return new Part(join(expressions(operands), " OR ", "false"),
+                    bound -> SearchPredicate.or(bind(operands, bound)));
+        }
+
+        private static String join(List<String> operands, String operator, String empty) {
+            return operands.isEmpty() ? empty : "(" + String.join(operator, operands) + ")";
+        }
+
+        private static List<String> expressions(List<Part> parts) {
+            List<String> expressions = new ArrayList<>(parts.size());
+            for (Part part : parts) {
+                expressions.add(part.expression);
+            }
+            return expressions;
+        }
+
+        private static List<SearchPredicate> bind(List<Part> parts, Map<String, ?> parameters) {
+            List<SearchPredicate> predicates = new ArrayList<>(parts.size());
+            for (Part part : parts) {
+                predicates.add(part.binding.apply(parameters));
+            }
+            return predicates;
+        }
+
+        private String property(String key) {
+            return CypherPredicate.property(propertyPrefix, key);
+        }
+
+        private String parameter(Object value) {
+            String name = PARAMETER + parameters.size();
+            parameters.put(name, value);
+            return name;
+        }
+
+        private static String reference(String name) {
+            return "$" + CypherQuery.identifier(name);
+        }
+    }
+}
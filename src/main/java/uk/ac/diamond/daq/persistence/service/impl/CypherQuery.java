@@ -0,0 +1,369 @@
+package uk.ac.diamond.daq.persistence.service.impl;
+
+import java.util.*;
+
+/**
+ * A fully parameterised Cypher statement over a single node {@code n}. Values are only ever passed as parameters, so
+ * every query of the same shape has the same text and the server can reuse its plan; the text itself is built once
+ * per shape and the most recently used shapes are cached. Labels, properties and parameter names are quoted with
+ * {@link #identifier}, as they may come from search keys.
+ */
+public final class CypherQuery {
+    private static final int CACHE_CAPACITY = 1024;
+    private static final LruCache<String, CypherQuery> cache = new LruCache<>(CACHE_CAPACITY);
+
+    private final List<String> labels;
+    private final List<Condition> conditions;
+    private final List<CypherPredicate> predicates;
+    private final List<String> expressions;
+    private final String returnClause;
+    private final String orderBy;
+    private final boolean descending;
+    private final boolean nullable;
+    private final boolean paged;
+    private final boolean limited;
+    private final int loadDepth;
+    private final String statement;
+
+    private CypherQuery(Builder builder, String statement) {
+        this.labels = Collections.unmodifiableList(new ArrayList<>(builder.labels));
+        this.conditions = Collections.unmodifiableList(new ArrayList<>(builder.conditions));
+        this.predicates = Collections.unmodifiableList(new ArrayList<>(builder.predicates));
+        this.expressions = Collections.unmodifiableList(new ArrayList<>(builder.expressions));
+        this.returnClause = builder.returnClause;
+        this.orderBy = builder.orderBy;
+        this.descending = builder.descending;
+        this.nullable = builder.nullable;
+        this.paged = builder.paged;
+        this.limited = builder.limited;
+        this.loadDepth = builder.loadDepth;
+        this.statement = statement;
+    }
+
+    public static Builder match(String... labels) {
+        return match(Arrays.asList(labels));
+    }
+
+    public static Builder match(Collection<String> labels) {
+        return new Builder(labels);
+    }
+
+    /**
+     * @return the name quoted as a Cypher identifier, with any backticks in it escaped
+     */
+    public static String identifier(String name) {
+        return "`" + name.replace("`", "``") + "`";
+    }
+
+    public String getStatement() {
+        return statement;
+    }
+
+    public List<String> getLabels() {
+        return labels;
+    }
+
+    public List<Condition> getConditions() {
+        return conditions;
+    }
+
+    /**
+     * @return the predicates added with {@link Builder#where(CypherPredicate)}, which can be bound to the parameters
+     * of each run of the query
+     */
+    public List<CypherPredicate> getPredicates() {
+        return predicates;
+    }
+
+    /**
+     * @return the conditions added as Cypher text alone
+     */
+    public List<String> getExpressions() {
+        return expressions;
+    }
+
+    public String getReturnClause() {
+        return returnClause;
+    }
+
+    public String getOrderBy() {
+        return orderBy;
+    }
+
+    public boolean isDescending() {
+        return descending;
+    }
+
+    /**
+     * @return true if nodes without the property are ordered as if it were smallest, see
+     * {@link Builder#orderByNullable}
+     */
+    public boolean isNullable() {
+        return nullable;
+    }
+
+    public boolean isPaged() {
+        return paged;
+    }
+
+    public boolean isLimited() {
+        return limited;
+    }
+
+    public int getLoadDepth() {
+        return loadDepth;
+    }
+
+    /**
+     * The same query returning the paths to everything within {@code depth} relationships of the matched nodes.
+     */
+    public CypherQuery withLoadDepth(int depth) {
+        Builder builder = match(labels).returning(returnClause).loadDepth(depth);
+        if (nullable) {
+            builder.orderByNullable(orderBy);
+        } else {
+            builder.orderBy(orderBy);
+        }
+        for (Condition condition : conditions) {
+            builder.where(condition.property, condition.operator, condition.parameter);
+        }
+        for (CypherPredicate predicate : predicates) {
+            builder.where(predicate);
+        }
+        for (String expression : expressions) {
+            builder.whereExpression(expression);
+        }
+        if (descending) {
+            builder.descending();
+        }
+        if (paged) {
+            builder.paged();
+        }
+        if (limited) {
+            builder.limited();
+        }
+        return builder.build();
+    }
+
+    @Override
+    public String toString() {
+        return statement;
+    }
+
+    public enum Operator {
+        EQUALS(" = "), CONTAINS(" CONTAINS "), GREATER_THAN(" > "), AT_LEAST(" >= "), AT_MOST(" <= ");
+
+        private final String cypher;
+
+        Operator(String cypher) {
+            this.cypher = cypher;
+        }
+    }
+
+    public static final class Condition {
+        private final String property;
+        private final Operator operator;
+        private final String parameter;
+
+        private Condition(String property, Operator operator, String parameter) {
+            this.property = property;
+            this.operator = operator;
+            this.parameter = parameter;
+        }
+
+        public String getProperty() {
+            return property;
+        }
+
+        public Operator getOperator() {
+            return operator;
+        }
+
+        public String getParameter() {
+            return parameter;
+        }
+    }
+
+    public static final class Builder {
+        private final List<String> labels;
+        private final List<Condition> conditions = new ArrayList<>();
+        private final List<CypherPredicate> predicates = new ArrayList<>();
+        private final List<String> expressions = new ArrayList<>();
+        private String returnClause = "n";
+        private String orderBy;
+        private boolean descending;
+        private boolean nullable;
+        private boolean paged;
+        private boolean limited;
+        private int loadDepth;
+
+        private Builder(Collection<String> labels) {
+            this.labels = new ArrayList<>(labels);
+        }
+
+        public Builder where(String property, Operator operator, String parameter) {
+            conditions.add(new Condition(property, operator, parameter));
+            return this;
+        }
+
+        public Builder where(String property, Operator operator) {
+            return where(property, operator, property);
+        }
+
+        /**
+         * Adds an equality condition for each property, named after its parameter. The properties are sorted so that
+         * the same set of search keys always produces the same statement.
+         */
+        public Builder whereEquals(Collection<String> properties) {
+            List<String> sorted = new ArrayList<>(properties);
+            Collections.sort(sorted);
+            for (String property : sorted) {
+                where(property, Operator.EQUALS);
+            }
+            return this;
+        }
+
+        /**
+         * Adds the expression of the predicate. Its parameters must be passed when the query is run.
+         */
+        public Builder where(CypherPredicate predicate) {
+            predicates.add(predicate);
+            return this;
+        }
+
+        /**
+         * Adds an arbitrary condition on {@code n}. Its values must be passed as parameters for the statement to be
+         * reused. Only stores that run Cypher can evaluate it, so prefer {@link #where(CypherPredicate)}.
+         */
+        public Builder whereExpression(String expression) {
+            expressions.add(expression);
+            return this;
+        }
+
+        public Builder returning(String returnClause) {
+            this.returnClause = returnClause;
+            return this;
+        }
+
+        public Builder orderBy(String property) {
+            this.orderBy = property;
+            this.nullable = false;
+            return this;
+        }
+
+        /**
+         * Orders by a property some nodes may lack, as if their value were smaller than any other, which is how the
+         * other backends order missing values. Cypher orders nulls as the largest value, so this costs an extra sort
+         * key; prefer {@link #orderBy} for properties every node has.
+         */
+        public Builder orderByNullable(String property) {
+            this.orderBy = property;
+            this.nullable = true;
+            return this;
+        }
+
+        /**
+         * Reverses the order of {@link #orderBy}.
+         */
+        public Builder descending() {
+            this.descending = true;
+            return this;
+        }
+
+        /**
+         * Adds {@code SKIP $skip LIMIT $limit}.
+         */
+        public Builder paged() {
+            this.paged = true;
+            return this;
+        }
+
+        /**
+         * Adds {@code LIMIT $limit}, unless the query is already paged.
+         */
+        public Builder limited() {
+            this.limited = true;
+            return this;
+        }
+
+        /**
+         * Returns the paths to everything within {@code depth} relationships of the matched nodes, so that OGM
+         * hydrates their relationships, instead of the return clause.
+         */
+        public Builder loadDepth(int depth) {
+            if (depth < 0) {
+                throw new IllegalArgumentException("Depth cannot be negative, was " + depth);
+            }
+            this.loadDepth = depth;
+            return this;
+        }
+
+        public CypherQuery build() {
+            return cache.computeIfAbsent(shape(), key -> new CypherQuery(this, statement()));
+        }
+
+        private String shape() {
+            StringBuilder shape = new StringBuilder();
+            // Quoted like the statement, so that names holding the separators cannot give the same shape
+            for (String label : labels) {
+                shape.append(':').append(identifier(label));
+            }
+            for (Condition condition : conditions) {
+                shape.append('|').append(identifier(condition.property)).append(condition.operator.name())
+                        .append(identifier(condition.parameter));
+            }
+            for (CypherPredicate predicate : predicates) {
+                shape.append("|?").append(predicate.getExpression());
+            }
+            for (String expression : expressions) {
+                shape.append('|').append(expression);
+            }
+            return shape.append('|').append(returnClause)
+                    .append('|').append(orderBy == null ? null : identifier(orderBy))
+                    .append('|').append(descending).append('|').append(nullable).append('|').append(paged).append('|').append(limited)
+                    .append('|').append(loadDepth).toString();
+        }
+
+        private String statement() {
+            StringBuilder statement = new StringBuilder("MATCH (n");
+            for (String label : labels) {
+                statement.append(':').append(identifier(label));
+            }
+            statement.append(')');
+            for (int i = 0; i < conditions.size(); i++) {
+                Condition condition = conditions.get(i);
+                statement.append(i == 0 ? " WHERE " : " AND ")
+                        .append("n.").append(identifier(condition.property))
+                        .append(condition.operator.cypher)
+                        .append('$').append(identifier(condition.parameter));
+            }
+            List<String> clauses = new ArrayList<>();
+            for (CypherPredicate predicate : predicates) {
+                clauses.add(predicate.getExpression());
+            }
+            clauses.addAll(expressions);
+            for (int i = 0; i < clauses.size(); i++) {
+                statement.append(conditions.isEmpty() && i == 0 ? " WHERE " : " AND ").append(clauses.get(i));
+            }
+            statement.append(loadDepth > 0 ? " WITH n" : " RETURN " + returnClause);
+            if (orderBy != null) {
+                String direction = descending ? " DESC" : "";
+                statement.append(" ORDER BY ");
+                if (nullable) {
+                    statement.append("n.").append(identifier(orderBy)).append(" IS NOT NULL").append(direction)
+                            .append(", ");
+                }
+                statement.append("n.").append(identifier(orderBy)).append(direction);
+            }
+            if (paged) {
+                statement.append(" SKIP $skip LIMIT $limit");
+            } else if (limited) {
+                statement.append(" LIMIT $limit");
+            }
+            if (loadDepth > 0) {
+                statement.append(" MATCH p = (n)-[*0..").append(loadDepth).append("]-(m) RETURN p");
+            }
+            return statement.toString();
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package uk.ac.diamond.daq.persistence.service.impl;
+
+import uk.ac.diamond.daq.persistence.data.ItemReference;
+import uk.ac.diamond.daq.persistence.data.PersistableItem;
+import uk.ac.diamond.daq.persistence.json.JsonDeserialiser;
+import uk.ac.diamond.daq.persistence.service.*;
+
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * Runs the calls of a JSON persistence service on background threads so that callers can carry on while the
+ * database responds. Writes are applied in submission order on a single thread; the visit is captured when a call is
+ * made, not when it runs. By default reads share the write thread, which suits backends that are not thread safe;
+ * backends with thread safe reads (such as {@link MongoDbJsonPersistenceService}) can be given a read pool, which
+ * remains owned by the caller.
+ */
+public class ExecutorAsyncPersistenceService implements AsyncPersistenceService {
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 60;
+
+    private final AbstractPersistenceService persistenceService;
+    private final ExecutorService writeExecutor;
+    private final ExecutorService readExecutor;
+
+    public ExecutorAsyncPersistenceService(AbstractPersistenceService persistenceService) {
+        this(persistenceService, null);
+    }
+
+    public ExecutorAsyncPersistenceService(AbstractPersistenceService persistenceService, ExecutorService readExecutor) {
+        this.persistenceService = persistenceService;
+        this.writeExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "async-persistence-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.readExecutor = readExecutor == null ? writeExecutor : readExecutor;
+    }
+
+    private static <R> CompletableFuture<R> submit(ExecutorService executor, PersistenceCall<R> call) {
+        CompletableFuture<R> future = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    future.complete(call.call());
+                } catch (Exception e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(new PersistenceException("Persistence service has been closed", e));
+        }
+        return future;
+    }
+
+    @Override
+    public CompletableFuture<PersistableItem> save(PersistableItem item) {
+        String visitId = persistenceService.getCurrentVisitId();
+        return submit(writeExecutor, () -> {
+            persistenceService.save(item, visitId);
+            return item;
+        });
+    }
+
+    @Override
+    public <T extends PersistableItem> CompletableFuture<SearchResult> get(Class<T> clazz) {
+        String visitId = persistenceService.getCurrentVisitId();
+        return submit(readExecutor, () -> persistenceService.get(clazz, visitId));
+    }
+
+    @Override
+    public <T extends PersistableItem> CompletableFuture<SearchResult> get(Map<String, String> searchParameters,
+                                                                           Class<T> clazz) {
+        String visitId = persistenceService.getCurrentVisitId();
+        return submit(readExecutor, () -> persistenceService.get(searchParameters, clazz, visitId));
+    }
+
+    @Override
+    public <T extends PersistableItem> CompletableFuture<SearchResult> get(SearchPredicate predicate, Class<T> clazz) {
+        String visitId = persistenceService.getCurrentVisitId();
+        return submit(readExecutor, () -> persistenceService.get(predicate.forClass(clazz), clazz, visitId));
+    }
+
+    @Override
+    public <T extends PersistableItem> CompletableFuture<SearchResult> get(SearchPredicate predicate,
+                                                                           SortRequest sortRequest, Class<T> clazz) {
+        String visitId = persistenceService.getCurrentVisitId();
+        return submit(readExecutor, () -> persistenceService.get(predicate.forClass(clazz),
+                sortRequest == null ? null : sortRequest.forClass(clazz), clazz, visitId));
+    }
+
+    @Override
+    public <T extends PersistableItem> CompletableFuture<SearchResult> get(Class<T> clazz, SortRequest sortRequest) {
+        return get(SearchPredicate.and(), sortRequest, clazz);
+    }
+
+    @Override
+    public <T extends PersistableItem> CompletableFuture<SearchResult> search(String text, Class<T> clazz) {
+        String visitId = persistenceService.getCurrentVisitId();
+        return submit(readExecutor, () -> persistenceService.search(text, clazz, visitId));
+    }
+
+    @Override
+    public <T extends PersistableItem> CompletableFuture<Long> count(SearchPredicate predicate, Class<T> clazz) {
+        String visitId = persistenceService.getCurrentVisitId();
+        return submit(readExecutor, () -> persistenceService.count(predicate.forClass(clazz), clazz, visitId));
+    }
+
+    @Override
+    public <T extends PersistableItem> CompletableFuture<Map<String, Long>> countBy(String key,
+                                                                                   SearchPredicate predicate,
+                                                                                   Class<T> clazz) {
+        String visitId = persistenceService.getCurrentVisitId();
+        return submit(readExecutor,
+                () -> persistenceService.countBy(key, predicate.forClass(clazz), clazz, visitId));
+    }
+
+    @Override
+    public <T extends PersistableItem> CompletableFuture<SearchResultPage> get(Class<T> clazz,
+                                                                               PageRequest pageRequest) {
+        String visitId = persistenceService.getCurrentVisitId();
+        return submit(readExecutor, () -> persistenceService.get(clazz, pageRequest, visitId));
+    }
+
+    @Override
+    public <T extends PersistableItem> CompletableFuture<T> get(long persistenceId, Class<T> clazz) {
+        String visitId = persistenceService.getCurrentVisitId();
+        return submit(readExecutor, () -> {
+            JsonDeserialiser jsonDeserialiser = persistenceService.jsonSerialisationFactory
+                    .getJsonDeserialiser(persistenceService, visitId);
+            return persistenceService.get(new ItemReference(persistenceId, -1, clazz), jsonDeserialiser, visitId);
+        });
+    }
+
+    @Override
+    public void close() throws PersistenceException {
+        writeExecutor.shutdown();
+        try {
+            if (!writeExecutor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                throw new PersistenceException("Timed out waiting for pending writes");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PersistenceException("Interrupted waiting for pending writes", e);
+        }
+    }
+
+    @FunctionalInterface
+    private interface PersistenceCall<R> {
+        R call() throws PersistenceException;
+    }
+}
@@ -2,17 +2,14 @@ package uk.ac.diamond.daq.persistence.service.impl;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import uk.ac.diamond.daq.persistence.annotation.Searchable;
 import uk.ac.diamond.daq.persistence.data.ItemContainer;
 import uk.ac.diamond.daq.persistence.data.PersistableItem;
 import uk.ac.diamond.daq.persistence.json.JsonDeserialiser;
 import uk.ac.diamond.daq.persistence.json.JsonSerialisationFactory;
 import uk.ac.diamond.daq.persistence.service.*;
 
-import java.lang.reflect.Field;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.util.*;
+import java.util.function.Supplier;
 
 public class InMemoryJsonPersistenceService extends AbstractPersistenceService implements PersistenceManagementService {
     @SuppressWarnings("unused")
@@ -23,37 +20,24 @@ public class InMemoryJsonPersistenceService extends AbstractPersistenceService i
     private Set<ItemContainer> activeItems = new HashSet<>();
     private Set<ItemContainer> archivedItems = new HashSet<>();
 
+    private final Supplier<FullTextIndex> textIndexFactory;
+    private final Map<String, FullTextIndex> textIndexes = new HashMap<>();
+    // Searchable values of the active items of each visit, so that searches and counts need not deserialise them
+    private final Map<String, Map<Long, Map<String, Object>>> searchableValues = new HashMap<>();
+    // Searchable values of the items serialised but not yet made active
+    private final Map<Long, Map<String, Object>> pendingValues = new HashMap<>();
+
     public InMemoryJsonPersistenceService(JsonSerialisationFactory jsonSerialisationFactory, VisitService visitService) {
-        super(jsonSerialisationFactory, visitService);
+        this(jsonSerialisationFactory, visitService, InvertedIndex::new);
     }
 
-    private static void getSearchableValues(Object item, Class<?> clazz, Map<String, String> searchableValues)
-            throws PersistenceException {
-        if (clazz == null || clazz.equals(Object.class)) {
-            return;
-        }
-
-        try {
-            for (Field field : clazz.getDeclaredFields()) {
-                field.setAccessible(true);
-                if (field.isAnnotationPresent(Searchable.class)) {
-                    Searchable searchable = field.getDeclaredAnnotation(Searchable.class);
-                    searchableValues.put(searchable.value(), field.get(item).toString());
-                } else if (PersistenceService.isPersistable(field)) {
-                    getSearchableValues(field.get(item), field.getType(), searchableValues);
-                }
-            }
-            for (Method method : clazz.getMethods()) {
-                if (method.isAnnotationPresent(Searchable.class)) {
-                    Searchable searchable = method.getDeclaredAnnotation(Searchable.class);
-                    searchableValues.put(searchable.value(), method.invoke(item).toString());
-                }
-            }
-        } catch (IllegalAccessException | InvocationTargetException e) {
-            throw new PersistenceException("Failed to add to search results", e);
-        }
-
-        getSearchableValues(item, clazz.getSuperclass(), searchableValues);
+    /**
+     * @param textIndexFactory creates the full text index of each visit
+     */
+    public InMemoryJsonPersistenceService(JsonSerialisationFactory jsonSerialisationFactory, VisitService visitService,
+                                          Supplier<FullTextIndex> textIndexFactory) {
+        super(jsonSerialisationFactory, visitService);
+        this.textIndexFactory = textIndexFactory;
     }
 
     @Override
@@ -71,9 +55,56 @@ public class InMemoryJsonPersistenceService extends AbstractPersistenceService i
         return null;
     }
 
+    @Override
+    public void save(PersistableItem item, String visitId) throws PersistenceException {
+        try {
+            super.save(item, visitId);
+        } finally {
+            // Left behind if the save failed before the item was made active
+            if (item != null) {
+                pendingValues.remove(item.getId());
+            }
+        }
+    }
+
+    @Override
+    protected String serialise(PersistableItem item, String visitId) throws PersistenceException {
+        pendingValues.put(item.getId(), getSearchableValues(item));
+        return super.serialise(item, visitId);
+    }
+
     @Override
     protected void saveToActiveItems(ItemContainer itemContainer) {
         activeItems.add(itemContainer);
+        Map<String, Object> values = pendingValues.remove(itemContainer.getId());
+        if (values != null) {
+            index(itemContainer.getId(), values, itemContainer.getVisitId());
+        }
+    }
+
+    private static Map<String, Object> getSearchableValues(PersistableItem item) throws PersistenceException {
+        Map<String, Object> values = new HashMap<>();
+        ItemExtractor.forSearching(item.getClass()).getSearchableValues(item, values);
+        return values;
+    }
+
+    private void index(long persistenceId, Map<String, Object> values, String visitId) {
+        getSearchableValues(visitId).put(persistenceId, values);
+        List<String> texts = new ArrayList<>();
+        for (Object value : values.values()) {
+            if (value instanceof CharSequence) {
+                texts.add(value.toString());
+            }
+        }
+        getTextIndex(visitId).index(persistenceId, texts);
+    }
+
+    private Map<Long, Map<String, Object>> getSearchableValues(String visitId) {
+        return searchableValues.computeIfAbsent(visitId, key -> new HashMap<>());
+    }
+
+    private FullTextIndex getTextIndex(String visitId) {
+        return textIndexes.computeIfAbsent(visitId, key -> textIndexFactory.get());
     }
 
     @Override
@@ -92,16 +123,55 @@ public class InMemoryJsonPersistenceService extends AbstractPersistenceService i
         return null;
     }
 
+    @Override
+    protected List<ItemContainer> getArchivedItems(long persistenceId, long fromVersion, long toVersion,
+                                                   String visitId) {
+        List<ItemContainer> itemContainers = new ArrayList<>();
+        for (ItemContainer itemContainer : archivedItems) {
+            if (itemContainer.getId() == persistenceId && itemContainer.getVersion() >= fromVersion
+                    && itemContainer.getVersion() <= toVersion && visitId.equals(itemContainer.getVisitId())) {
+                itemContainers.add(itemContainer);
+            }
+        }
+        itemContainers.sort(Comparator.comparingLong(ItemContainer::getVersion));
+        return itemContainers;
+    }
+
     @Override
     public boolean delete(long persistenceId) {
+        for (FullTextIndex textIndex : textIndexes.values()) {
+            textIndex.remove(persistenceId);
+        }
+        for (Map<Long, Map<String, Object>> values : searchableValues.values()) {
+            values.remove(persistenceId);
+        }
         return activeItems.removeIf(itemContainer -> itemContainer.getId() == persistenceId);
     }
 
+    @Override
+    protected boolean delete(long persistenceId, String visitId) {
+        getTextIndex(visitId).remove(persistenceId);
+        getSearchableValues(visitId).remove(persistenceId);
+        return activeItems.removeIf(itemContainer -> itemContainer.getId() == persistenceId
+                && visitId.equals(itemContainer.getVisitId()));
+    }
+
     @Override
     public <T extends PersistableItem> SearchResult get(Class<T> clazz, String visitId) throws PersistenceException {
+        return get(clazz, visitId, jsonSerialisationFactory.getJsonDeserialiser(this, visitId));
+    }
+
+    @Override
+    protected <T extends PersistableItem> SearchResult get(Class<T> clazz, String visitId, LoadProfile loadProfile)
+            throws PersistenceException {
+        return get(clazz, visitId, jsonSerialisationFactory.getJsonDeserialiser(this, visitId, loadProfile));
+    }
+
+    private <T extends PersistableItem> SearchResult get(Class<T> clazz, String visitId,
+                                                         JsonDeserialiser jsonDeserialiser)
+            throws PersistenceException {
         SearchResult result = new SearchResult();
 
-        JsonDeserialiser jsonDeserialiser = jsonSerialisationFactory.getJsonDeserialiser(this, visitId);
         for (ItemContainer itemContainer : activeItems) {
             if (clazz.isAssignableFrom(itemContainer.getItemClass())
                     && visitId.equals(itemContainer.getVisitId())) {
@@ -113,29 +183,101 @@ public class InMemoryJsonPersistenceService extends AbstractPersistenceService i
     }
 
     @Override
-    public <T extends PersistableItem> SearchResult get(Map<String, String> searchParameters, Class<T> clazz,
-                                                        String visitId) throws PersistenceException {
-        SearchResult results = new SearchResult();
+    protected <T extends PersistableItem> SearchResultPage get(Class<T> clazz, PageRequest pageRequest,
+                                                               String visitId) throws PersistenceException {
+        List<ItemContainer> matches = new ArrayList<>();
+        for (ItemContainer itemContainer : activeItems) {
+            if (itemContainer.getId() > pageRequest.getAfterPersistenceId()
+                    && clazz.isAssignableFrom(itemContainer.getItemClass())
+                    && visitId.equals(itemContainer.getVisitId())) {
+                matches.add(itemContainer);
+            }
+        }
+        matches.sort(Comparator.comparingLong(ItemContainer::getId));
+
+        SearchResultPage page = new SearchResultPage(pageRequest);
+        JsonDeserialiser jsonDeserialiser = jsonSerialisationFactory.getJsonDeserialiser(this, visitId);
+        for (int i = pageRequest.getOffset(); i < matches.size(); i++) {
+            if (page.isFull()) {
+                page.moreAvailable();
+                break;
+            }
+            page.addResult(jsonDeserialiser.deserialise(matches.get(i)));
+        }
+        return page;
+    }
+
+    @Override
+    protected <T extends PersistableItem> SearchResult get(SearchPredicate predicate, SortRequest sortRequest,
+                                                           Class<T> clazz, String visitId)
+            throws PersistenceException {
+        List<Match> matches = new ArrayList<>();
+        for (ItemContainer itemContainer : getMatching(predicate, clazz, visitId)) {
+            Map<String, Object> values = new HashMap<>(getSearchableValues(visitId).get(itemContainer.getId()));
+            values.put(SortRequest.PERSISTENCE_ID, itemContainer.getId());
+            values.put(SortRequest.VERSION, itemContainer.getVersion());
+            matches.add(new Match(itemContainer, values));
+        }
+        if (sortRequest != null) {
+            matches = sortRequest.sort(matches, match -> match.values.get(sortRequest.getKey()));
+        }
 
+        SearchResult results = new SearchResult();
         JsonDeserialiser jsonDeserialiser = jsonSerialisationFactory.getJsonDeserialiser(this, visitId);
+        for (Match match : matches) {
+            results.addResult(jsonDeserialiser.deserialise(match.itemContainer));
+        }
+        return results;
+    }
+
+    @Override
+    protected <T extends PersistableItem> long count(SearchPredicate predicate, Class<T> clazz, String visitId) {
+        return getMatching(predicate, clazz, visitId).size();
+    }
+
+    @Override
+    protected <T extends PersistableItem> Map<String, Long> countBy(String key, SearchPredicate predicate,
+                                                                    Class<T> clazz, String visitId) {
+        Map<String, Long> counts = new HashMap<>();
+        for (ItemContainer itemContainer : getMatching(predicate, clazz, visitId)) {
+            Object value = getSearchableValues(visitId).get(itemContainer.getId()).get(key);
+            if (value != null) {
+                counts.merge(value.toString(), 1L, Long::sum);
+            }
+        }
+        return counts;
+    }
+
+    private List<ItemContainer> getMatching(SearchPredicate predicate, Class<?> clazz, String visitId) {
+        Map<Long, Map<String, Object>> values = getSearchableValues(visitId);
+        List<ItemContainer> matching = new ArrayList<>();
+        for (ItemContainer itemContainer : activeItems) {
+            if (clazz.isAssignableFrom(itemContainer.getItemClass()) && visitId.equals(itemContainer.getVisitId())
+                    && predicate.test(values.getOrDefault(itemContainer.getId(), Collections.emptyMap()))) {
+                matching.add(itemContainer);
+            }
+        }
+        return matching;
+    }
+
+    @Override
+    protected <T extends PersistableItem> SearchResult search(String text, Class<T> clazz, String visitId)
+            throws PersistenceException {
+        Map<Long, ItemContainer> candidates = new HashMap<>();
         for (ItemContainer itemContainer : activeItems) {
             if (clazz.isAssignableFrom(itemContainer.getItemClass()) && visitId.equals(itemContainer.getVisitId())) {
-                PersistableItem item = jsonDeserialiser.deserialise(itemContainer);
-                Map<String, String> searchableValues = new HashMap<>();
-                getSearchableValues(item, item.getClass(), searchableValues);
-                searchParameters.forEach((key, value) -> {
-                    String itemValue = searchableValues.get(key);
-                    if (itemValue != null && itemValue.equalsIgnoreCase(value)) {
-                        try {
-                            results.addResult(clazz.cast(item));
-                        } catch (Exception e) {
-                            throw new RuntimeException(e);
-                        }
-                    }
-                });
+                candidates.put(itemContainer.getId(), itemContainer);
             }
         }
 
+        SearchResult results = new SearchResult();
+        JsonDeserialiser jsonDeserialiser = jsonSerialisationFactory.getJsonDeserialiser(this, visitId);
+        for (Long persistenceId : getTextIndex(visitId).search(text)) {
+            ItemContainer itemContainer = candidates.get(persistenceId);
+            if (itemContainer != null) {
+                results.addResult(jsonDeserialiser.deserialise(itemContainer));
+            }
+        }
         return results;
     }
 
@@ -187,13 +329,17 @@ public class InMemoryJsonPersistenceService extends AbstractPersistenceService i
                 newItemContainer = new ItemContainer(fromItemContainer, fromItemContainer.getVersion(), toVisitId);
             }
             activeItems.add(newItemContainer);
+            index(item.getId(), getSearchableValues(item), toVisitId);
         }
     }
 
     @Override
     public void copyAll(String fromVisitId, String toVisitId) {
-        for (ItemContainer fromItemContainer : activeItems) {
+        Map<Long, Map<String, Object>> fromValues = getSearchableValues(fromVisitId);
+        for (ItemContainer fromItemContainer : new ArrayList<>(activeItems)) {
             if (fromVisitId.equals(fromItemContainer.getVisitId())) {
+                index(fromItemContainer.getId(),
+                        fromValues.getOrDefault(fromItemContainer.getId(), Collections.emptyMap()), toVisitId);
                 boolean found = false;
                 for (ItemContainer toItemContainer : activeItems) {
                     if (toItemContainer.getId() == fromItemContainer.getId()
@@ -210,4 +356,14 @@ public class InMemoryJsonPersistenceService extends AbstractPersistenceService i
             }
         }
     }
+
+    private static final class Match {
+        private final ItemContainer itemContainer;
+        private final Map<String, Object> values;
+
+        private Match(ItemContainer itemContainer, Map<String, Object> values) {
+            this.itemContainer = itemContainer;
+            this.values = values;
+        }
+    }
 }
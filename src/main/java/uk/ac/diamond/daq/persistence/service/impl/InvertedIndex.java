@@ -0,0 +1,162 @@
+package uk.ac.diamond.daq.persistence.service.impl;
+
+import uk.ac.diamond.daq.persistence.service.FullTextIndex;
+
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * An in-process {@link FullTextIndex}. Text is split into lower case words, and each word of a query matches the
+ * indexed words equal to it, starting with it or, through an index of their trigrams, containing it. Exact matches
+ * rank above prefixes and prefixes above fragments, weighted by how often the word occurs in the item.
+ */
+public class InvertedIndex implements FullTextIndex {
+    private static final Pattern SEPARATOR = Pattern.compile("[^\\p{L}\\p{N}]+");
+    private static final int GRAM = 3;
+
+    private static final int EXACT_WEIGHT = 3;
+    private static final int PREFIX_WEIGHT = 2;
+    private static final int FRAGMENT_WEIGHT = 1;
+
+    private final Map<Long, Map<String, Integer>> documents = new HashMap<>();
+    private final NavigableMap<String, Map<Long, Integer>> postings = new TreeMap<>();
+    private final Map<String, Set<String>> wordsByTrigram = new HashMap<>();
+
+    public static List<String> tokenise(String text) {
+        List<String> words = new ArrayList<>();
+        for (String word : SEPARATOR.split(text.toLowerCase(Locale.ROOT))) {
+            if (!word.isEmpty()) {
+                words.add(word);
+            }
+        }
+        return words;
+    }
+
+    @Override
+    public synchronized void index(long persistenceId, Collection<String> texts) {
+        remove(persistenceId);
+        Map<String, Integer> frequencies = new HashMap<>();
+        for (String text : texts) {
+            for (String word : tokenise(text)) {
+                frequencies.merge(word, 1, Integer::sum);
+            }
+        }
+        if (frequencies.isEmpty()) {
+            return;
+        }
+        documents.put(persistenceId, frequencies);
+        for (Map.Entry<String, Integer> frequency : frequencies.entrySet()) {
+            String word = frequency.getKey();
+            Map<Long, Integer> posting = postings.get(word);
+            if (posting == null) {
+                posting = new HashMap<>();
+                postings.put(word, posting);
+                for (String trigram : trigrams(word)) {
+                    wordsByTrigram.computeIfAbsent(trigram, key -> new HashSet<>()).add(word);
+                }
+            }
+            posting.put(persistenceId, frequency.getValue());
+        }
+    }
+
+    @Override
+    public synchronized void remove(long persistenceId) {
+        Map<String, Integer> frequencies = documents.remove(persistenceId);
+        if (frequencies == null) {
+            return;
+        }
+        for (String word : frequencies.keySet()) {
+            Map<Long, Integer> posting = postings.get(word);
+            posting.remove(persistenceId);
+            if (posting.isEmpty()) {
+                postings.remove(word);
+                for (String trigram : trigrams(word)) {
+                    Set<String> words = wordsByTrigram.get(trigram);
+                    words.remove(word);
+                    if (words.isEmpty()) {
+                        wordsByTrigram.remove(trigram);
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized List<Long> search(String query) {
+        Map<Long, Integer> scores = null;
+        for (String word : tokenise(query)) {
+            Map<Long, Integer> wordScores = score(word);
+            if (scores == null) {
+                scores = wordScores;
+            } else {
+                scores.keySet().retainAll(wordScores.keySet());
+                for (Map.Entry<Long, Integer> score : scores.entrySet()) {
+                    score.setValue(score.getValue() + wordScores.get(score.getKey()));
+                }
+            }
+            if (scores.isEmpty()) {
+                break;
+            }
+        }
+        if (scores == null) {
+            return Collections.emptyList();
+        }
+        List<Map.Entry<Long, Integer>> ranked = new ArrayList<>(scores.entrySet());
+        ranked.sort((lhs, rhs) -> lhs.getValue().equals(rhs.getValue()) ? Long.compare(lhs.getKey(), rhs.getKey())
+                : Integer.compare(rhs.getValue(), lhs.getValue()));
+        List<Long> persistenceIds = new ArrayList<>(ranked.size());
+        for (Map.Entry<Long, Integer> score : ranked) {
+            persistenceIds.add(score.getKey());
+        }
+        return persistenceIds;
+    }
+
+    private Map<Long, Integer> score(String word) {
+        Map<Long, Integer> scores = new HashMap<>();
+        for (Map.Entry<String, Map<Long, Integer>> posting
+                : postings.subMap(word, true, word + Character.MAX_VALUE, false).entrySet()) {
+            add(scores, posting.getValue(), posting.getKey().equals(word) ? EXACT_WEIGHT : PREFIX_WEIGHT);
+        }
+        for (String fragmentOf : wordsContaining(word)) {
+            add(scores, postings.get(fragmentOf), FRAGMENT_WEIGHT);
+        }
+        return scores;
+    }
+
+    private static void add(Map<Long, Integer> scores, Map<Long, Integer> posting, int weight) {
+        for (Map.Entry<Long, Integer> frequency : posting.entrySet()) {
+            scores.merge(frequency.getKey(), weight * frequency.getValue(), Integer::sum);
+        }
+    }
+
+    /**
+     * @return the indexed words containing the word other than at their start
+     */
+    private Set<String> wordsContaining(String word) {
+        Set<String> candidates = null;
+        for (String trigram : trigrams(word)) {
+            Set<String> words = wordsByTrigram.getOrDefault(trigram, Collections.emptySet());
+            if (candidates == null) {
+                candidates = new HashSet<>(words);
+            } else {
+                candidates.retainAll(words);
+            }
+            if (candidates.isEmpty()) {
+                break;
+            }
+        }
+        if (candidates == null) {
+            return Collections.emptySet();
+        }
+        candidates.removeIf(candidate -> candidate.startsWith(word) || !candidate.contains(word));
+        return candidates;
+    }
+
+    private static Set<String> trigrams(String word) {
+        Set<String> trigrams = new HashSet<>();
+        for (int i = 0; i + GRAM <= word.length(); i++) {
+            trigrams.add(word.substring(i, i + GRAM));
+        }
+        return trigrams;
+    }
+}
@@ -0,0 +1,53 @@
+package uk.ac.diamond.daq.persistence.service.impl;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.BiFunction;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
+
+/**
+ * A thread safe map holding at most {@code capacity} entries, dropping the least recently used one when it is full.
+ */
+class LruCache<K, V> {
+    private final Map<K, V> entries;
+
+    LruCache(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive, was " + capacity);
+        }
+        entries = new LinkedHashMap<K, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    synchronized V get(K key) {
+        return entries.get(key);
+    }
+
+    synchronized V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction) {
+        return entries.computeIfAbsent(key, mappingFunction);
+    }
+
+    synchronized V merge(K key, V value, BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+        return entries.merge(key, value, remappingFunction);
+    }
+
+    synchronized V remove(K key) {
+        return entries.remove(key);
+    }
+
+    synchronized boolean removeIf(BiPredicate<? super K, ? super V> filter) {
+        return entries.entrySet().removeIf(entry -> filter.test(entry.getKey(), entry.getValue()));
+    }
+
+    /**
+     * @return a copy of the entries, which does not count as using them
+     */
+    synchronized Map<K, V> snapshot() {
+        return new LinkedHashMap<>(entries);
+    }
+}
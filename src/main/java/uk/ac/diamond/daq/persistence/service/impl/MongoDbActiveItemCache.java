@@ -0,0 +1,268 @@
+package uk.ac.diamond.daq.persistence.service.impl;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.FullDocument;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.ac.diamond.daq.persistence.data.ItemContainer;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Read-through cache of the most recently used active item containers of each visit. Writes made by other processes are
+ * picked up from a database change stream, or, when the server does not support change streams (a standalone test
+ * instance), by periodically comparing the cached versions against the active collections.
+ * <p>
+ * Containers read from the database are only cached if nothing has been invalidated since the read began, so that a
+ * slow read cannot bring back a container replaced or deleted meanwhile.
+ */
+class MongoDbActiveItemCache {
+    private static final Logger logger = LoggerFactory.getLogger(MongoDbActiveItemCache.class);
+
+    static final long DEFAULT_POLL_INTERVAL_MILLIS = 1000;
+    static final int DEFAULT_CAPACITY = 10000;
+
+    private static final String DOCUMENT_ID = "_id";
+    // The most cached ids checked by each polling query
+    private static final int POLL_BATCH_SIZE = 1000;
+
+    private final MongoDatabase database;
+    private final String activeCollectionPrefix;
+    private final String persistenceIdField;
+    private final String versionField;
+    private final long pollIntervalMillis;
+    private final int capacity;
+
+    private final Map<String, LruCache<Long, Cached>> visits = new ConcurrentHashMap<>();
+    // Advanced by every invalidation, under the lock of the cache
+    private long epoch;
+
+    private volatile boolean closed;
+    private MongoCursor<ChangeStreamDocument<Document>> changeStream;
+    private ScheduledExecutorService poller;
+
+    MongoDbActiveItemCache(MongoDatabase database, String activeCollectionPrefix, String persistenceIdField,
+                           String versionField, long pollIntervalMillis) {
+        this(database, activeCollectionPrefix, persistenceIdField, versionField, pollIntervalMillis,
+                DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity the most containers cached for each visit
+     */
+    MongoDbActiveItemCache(MongoDatabase database, String activeCollectionPrefix, String persistenceIdField,
+                           String versionField, long pollIntervalMillis, int capacity) {
+        this.database = database;
+        this.activeCollectionPrefix = activeCollectionPrefix;
+        this.persistenceIdField = persistenceIdField;
+        this.versionField = versionField;
+        this.pollIntervalMillis = pollIntervalMillis;
+        this.capacity = capacity;
+    }
+
+    synchronized void start() {
+        try {
+            changeStream = database.watch().fullDocument(FullDocument.UPDATE_LOOKUP).iterator();
+            Thread watcher = new Thread(this::watchChanges, "mongo-active-cache-" + database.getName());
+            watcher.setDaemon(true);
+            watcher.start();
+        } catch (MongoException e) {
+            logger.info("Change streams unavailable for {} ({}), polling every {}ms instead", database.getName(),
+                    e.getMessage(), pollIntervalMillis);
+            startPolling();
+        }
+    }
+
+    private synchronized void startPolling() {
+        if (closed || poller != null) {
+            return;
+        }
+        poller = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "mongo-active-cache-poll-" + database.getName());
+            thread.setDaemon(true);
+            return thread;
+        });
+        poller.scheduleWithFixedDelay(this::pollVersions, pollIntervalMillis, pollIntervalMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    synchronized void close() {
+        closed = true;
+        if (changeStream != null) {
+            changeStream.close();
+        }
+        if (poller != null) {
+            poller.shutdownNow();
+        }
+        invalidateAll();
+    }
+
+    ItemContainer get(String visitId, long persistenceId) {
+        LruCache<Long, Cached> items = visits.get(visitId);
+        Cached cached = items == null ? null : items.get(persistenceId);
+        return cached == null ? null : cached.itemContainer;
+    }
+
+    /**
+     * @return the value to pass to {@link #put(ItemContainer, Document, long)} for a container about to be read
+     */
+    synchronized long epoch() {
+        return epoch;
+    }
+
+    /**
+     * Caches a container just written.
+     */
+    synchronized void put(ItemContainer itemContainer, Document document) {
+        put(itemContainer, document, epoch);
+    }
+
+    /**
+     * Caches a container read from the database, unless anything was invalidated after the read began.
+     *
+     * @param readEpoch the {@link #epoch()} before the read
+     */
+    synchronized void put(ItemContainer itemContainer, Document document, long readEpoch) {
+        if (readEpoch != epoch || closed) {
+            return;
+        }
+        visits.computeIfAbsent(itemContainer.getVisitId(), visitId -> new LruCache<>(capacity))
+                .merge(itemContainer.getId(), new Cached(itemContainer, document.get(DOCUMENT_ID)),
+                        (cached, added) -> added.getVersion() >= cached.getVersion() ? added : cached);
+    }
+
+    synchronized void invalidate(long persistenceId) {
+        epoch++;
+        for (LruCache<Long, Cached> items : visits.values()) {
+            items.remove(persistenceId);
+        }
+    }
+
+    synchronized void invalidateAll() {
+        epoch++;
+        visits.clear();
+    }
+
+    private synchronized void invalidate(String visitId, long persistenceId, long version) {
+        epoch++;
+        LruCache<Long, Cached> items = visits.get(visitId);
+        if (items != null) {
+            items.removeIf((id, cached) -> id == persistenceId && cached.getVersion() != version);
+        }
+    }
+
+    private synchronized void invalidateVisit(String visitId) {
+        epoch++;
+        visits.remove(visitId);
+    }
+
+    private synchronized void invalidateDocument(String visitId, Object documentId) {
+        epoch++;
+        LruCache<Long, Cached> items = visits.get(visitId);
+        if (items != null) {
+            items.removeIf((id, cached) -> documentId.equals(cached.documentId));
+        }
+    }
+
+    private void watchChanges() {
+        try {
+            while (!closed && changeStream.hasNext()) {
+                ChangeStreamDocument<Document> change = changeStream.next();
+                if (change.getNamespace() == null) {
+                    // Database level events (drop, invalidate) leave nothing we can trust
+                    invalidateAll();
+                    continue;
+                }
+                String collectionName = change.getNamespace().getCollectionName();
+                if (!collectionName.startsWith(activeCollectionPrefix)) {
+                    continue;
+                }
+                String visitId = collectionName.substring(activeCollectionPrefix.length());
+                Document document = change.getFullDocument();
+                Object persistenceId = document == null ? null : document.get(persistenceIdField);
+                Object version = document == null ? null : document.get(versionField);
+                BsonValue documentKey = change.getDocumentKey() == null ? null
+                        : change.getDocumentKey().get(DOCUMENT_ID);
+                if (persistenceId instanceof Number && version instanceof Number) {
+                    invalidate(visitId, ((Number) persistenceId).longValue(), ((Number) version).longValue());
+                } else if (documentKey != null && documentKey.isObjectId()) {
+                    // Deletes only carry the database key, which the cached containers are matched against
+                    invalidateDocument(visitId, documentKey.asObjectId().getValue());
+                } else {
+                    invalidateVisit(visitId);
+                }
+            }
+        } catch (MongoException | IllegalStateException e) {
+            if (!closed) {
+                logger.warn("Lost change stream for {}, falling back to polling", database.getName(), e);
+            }
+        } finally {
+            invalidateAll();
+            startPolling();
+        }
+    }
+
+    /**
+     * Drops the cached containers that are no longer active, looking up only the cached ids.
+     */
+    private void pollVersions() {
+        try {
+            for (Map.Entry<String, LruCache<Long, Cached>> visit : visits.entrySet()) {
+                List<Long> cachedIds = new ArrayList<>(visit.getValue().snapshot().keySet());
+                for (int start = 0; start < cachedIds.size(); start += POLL_BATCH_SIZE) {
+                    List<Long> ids = cachedIds.subList(start, Math.min(start + POLL_BATCH_SIZE, cachedIds.size()));
+                    Map<Long, Long> latestVersions = new HashMap<>();
+                    for (Document document : database.getCollection(activeCollectionPrefix + visit.getKey())
+                            .find(Filters.in(persistenceIdField, ids))
+                            .projection(Projections.include(persistenceIdField, versionField))) {
+                        Object persistenceId = document.get(persistenceIdField);
+                        Object version = document.get(versionField);
+                        if (persistenceId instanceof Number && version instanceof Number) {
+                            latestVersions.merge(((Number) persistenceId).longValue(),
+                                    ((Number) version).longValue(), Math::max);
+                        }
+                    }
+                    dropStale(visit.getValue(), ids, latestVersions);
+                }
+            }
+        } catch (MongoException e) {
+            logger.warn("Failed to poll active versions for {}, clearing cache", database.getName(), e);
+            invalidateAll();
+        }
+    }
+
+    private synchronized void dropStale(LruCache<Long, Cached> items, List<Long> ids, Map<Long, Long> latestVersions) {
+        epoch++;
+        Set<Long> polled = new HashSet<>(ids);
+        items.removeIf((id, cached) -> polled.contains(id)
+                && !Long.valueOf(cached.getVersion()).equals(latestVersions.get(id)));
+    }
+
+    /**
+     * A container with the key of the document it was read from or written to.
+     */
+    private static final class Cached {
+        private final ItemContainer itemContainer;
+        private final Object documentId;
+
+        private Cached(ItemContainer itemContainer, Object documentId) {
+            this.itemContainer = itemContainer;
+            this.documentId = documentId;
+        }
+
+        private long getVersion() {
+            return itemContainer.getVersion();
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package uk.ac.diamond.daq.persistence.service.impl;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.Updates;
+import org.bson.Document;
+
+/**
+ * Hands out persistence ids from a counter document, leasing a block of ids per round trip. The counter is only
+ * ever moved forward by an atomic {@code $inc}, so several JVMs sharing a database each lease disjoint blocks.
+ */
+class MongoDbIdAllocator {
+    static final String COUNTER_COLLECTION_NAME = "counters";
+    static final long DEFAULT_BLOCK_SIZE = 1000;
+
+    private static final String COUNTER_ID = "_id";
+    private static final String COUNTER_VALUE = "value";
+
+    private final MongoCollection<Document> counters;
+    private final String counterName;
+    private final long blockSize;
+
+    private long next;
+    private long end;
+
+    MongoDbIdAllocator(MongoDatabase database, String counterName, long blockSize) {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("Block size must be positive, was " + blockSize);
+        }
+        this.counters = database.getCollection(COUNTER_COLLECTION_NAME);
+        this.counterName = counterName;
+        this.blockSize = blockSize;
+    }
+
+    synchronized long nextId() {
+        if (next >= end) {
+            leaseBlock();
+        }
+        return next++;
+    }
+
+    private void leaseBlock() {
+        final Document counter = counters.findOneAndUpdate(Filters.eq(COUNTER_ID, counterName),
+                Updates.inc(COUNTER_VALUE, blockSize),
+                new FindOneAndUpdateOptions().upsert(true).returnDocument(ReturnDocument.AFTER));
+
+        // The counter holds the last id of the most recently leased block
+        end = ((Number) counter.get(COUNTER_VALUE)).longValue() + 1;
+        next = end - blockSize;
+    }
+}
@@ -1,23 +1,44 @@
 package uk.ac.diamond.daq.persistence.service.impl;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mongodb.client.AggregateIterable;
 import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Accumulators;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
 import com.mongodb.client.result.DeleteResult;
 import org.bson.Document;
+import org.bson.conversions.Bson;
 import org.bson.json.JsonWriterSettings;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import uk.ac.diamond.daq.persistence.data.ItemContainer;
 import uk.ac.diamond.daq.persistence.data.PersistableItem;
 import uk.ac.diamond.daq.persistence.json.JsonSerialisationFactory;
+import uk.ac.diamond.daq.persistence.service.ItemExtractor;
+import uk.ac.diamond.daq.persistence.service.PageRequest;
 import uk.ac.diamond.daq.persistence.service.PersistenceException;
+import uk.ac.diamond.daq.persistence.service.SearchPredicate;
 import uk.ac.diamond.daq.persistence.service.SearchResult;
+import uk.ac.diamond.daq.persistence.service.SearchResultPage;
+import uk.ac.diamond.daq.persistence.service.SortRequest;
 import uk.ac.diamond.daq.persistence.service.VisitService;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
 
 public class MongoDbJsonPersistenceService extends AbstractPersistenceService {
     private static final Logger logger = LoggerFactory.getLogger(MongoDbJsonPersistenceService.class);
@@ -28,44 +49,108 @@ public class MongoDbJsonPersistenceService extends AbstractPersistenceService {
     private static final String PERSISTENCE_ID = "id";
     private static final String DATABASE_ID = "_id";
     private static final String VERSION = "version";
+    // The searchable text, under a text index
+    private static final String SEARCHABLE_TEXT = "searchableText";
+    // The words of the searchable text, as the in-process full text index splits them, under an ascending index
+    private static final String SEARCHABLE_WORDS = "searchableWords";
+    private static final String TEXT_SCORE = "textScore";
+    private static final String COUNT = "count";
 
-    private final Random rng = new Random();
     private final ObjectMapper objectMapper = new ObjectMapper();
 
     private final MongoDatabase database;
+    private final MongoDbIdAllocator idAllocator;
+    private final MongoDbActiveItemCache activeItemCache;
+    private final Set<String> indexedArchives = ConcurrentHashMap.newKeySet();
+    private final Set<String> indexedActives = ConcurrentHashMap.newKeySet();
+    // Text of the items serialised but not yet made active
+    private final Map<Long, List<String>> pendingTexts = new ConcurrentHashMap<>();
 
     private final JsonWriterSettings jsonWriterSettings = JsonWriterSettings.builder()
             .int64Converter((value, writer) -> writer.writeNumber(value.toString()))
             .build();
 
     public MongoDbJsonPersistenceService(MongoDatabase database, JsonSerialisationFactory jsonSerialisationFactory, VisitService visitService) {
+        this(database, jsonSerialisationFactory, visitService, MongoDbIdAllocator.DEFAULT_BLOCK_SIZE);
+    }
+
+    public MongoDbJsonPersistenceService(MongoDatabase database, JsonSerialisationFactory jsonSerialisationFactory,
+                                         VisitService visitService, long idBlockSize) {
         super(jsonSerialisationFactory, visitService);
         this.database = database;
+        this.idAllocator = new MongoDbIdAllocator(database, PERSISTENCE_ID, idBlockSize);
+        this.activeItemCache = new MongoDbActiveItemCache(database, getActiveCollectionName(""), PERSISTENCE_ID, VERSION,
+                MongoDbActiveItemCache.DEFAULT_POLL_INTERVAL_MILLIS);
+        activeItemCache.start();
     }
 
     @Override
     public long getNextPersistenceId() {
-        // TODO: replace with incrementing number
-        return Math.abs(rng.nextLong());
+        return idAllocator.nextId();
     }
 
     @Override
     protected ItemContainer getActive(long persistenceId, String visitId) {
+        if (persistenceId == PersistableItem.INVALID_ID) {
+            return null;
+        }
+        final ItemContainer cached = activeItemCache.get(visitId, persistenceId);
+        if (cached != null) {
+            return cached;
+        }
+
+        final long epoch = activeItemCache.epoch();
         final Document searchDoc = new Document();
         searchDoc.put(PERSISTENCE_ID, persistenceId);
         final FindIterable<Document> dbResults = database.getCollection(getActiveCollectionName(visitId)).find(searchDoc);
         final Document document = dbResults.first();
-        return (document == null) ? null : convertDocumentToItemContainer(document, visitId);
+        if (document == null) {
+            return null;
+        }
+        final ItemContainer itemContainer = convertDocumentToItemContainer(document, visitId);
+        if (itemContainer != null) {
+            activeItemCache.put(itemContainer, document, epoch);
+        }
+        return itemContainer;
+    }
+
+    @Override
+    public void save(PersistableItem item, String visitId) throws PersistenceException {
+        try {
+            super.save(item, visitId);
+        } finally {
+            // Left behind if the save failed before the item was made active
+            if (item != null) {
+                pendingTexts.remove(item.getId());
+            }
+        }
+    }
+
+    @Override
+    protected String serialise(PersistableItem item, String visitId) throws PersistenceException {
+        pendingTexts.put(item.getId(), ItemExtractor.forSearching(item.getClass()).getSearchableText(item));
+        return super.serialise(item, visitId);
     }
 
     @Override
     protected void saveToActiveItems(ItemContainer itemContainer) {
-        saveToCollection(itemContainer, getActiveCollectionName(itemContainer.getVisitId()));
+        final Document doc = toDocument(itemContainer);
+        final List<String> texts = pendingTexts.remove(itemContainer.getId());
+        if (texts != null && !texts.isEmpty()) {
+            final List<String> words = new ArrayList<>();
+            for (String text : texts) {
+                words.addAll(InvertedIndex.tokenise(text));
+            }
+            doc.put(SEARCHABLE_TEXT, texts);
+            doc.put(SEARCHABLE_WORDS, words);
+        }
+        getActiveCollection(itemContainer.getVisitId()).insertOne(doc);
+        activeItemCache.put(itemContainer, doc);
     }
 
     @Override
     protected void saveToArchiveItems(ItemContainer itemContainer) {
-        saveToCollection(itemContainer, getArchiveCollectionName(itemContainer.getVisitId()));
+        getArchiveCollection(itemContainer.getVisitId()).insertOne(toDocument(itemContainer));
     }
 
     @Override
@@ -77,27 +162,111 @@ public class MongoDbJsonPersistenceService extends AbstractPersistenceService {
     }
 
     @Override
-    protected <T extends PersistableItem> SearchResult get(Map<String, String> searchParameters, Class<T> clazz, String visitId) throws PersistenceException {
-        final Document searchDoc = new Document();
-        for (Map.Entry<String, String> param : searchParameters.entrySet()) {
-            final String key = param.getKey();
-            final String value = param.getValue();
-            if (key.equals(PERSISTENCE_ID) || key.equals(VERSION)) {
-                searchDoc.put(PERSISTENCE_ID, Long.valueOf(value));
-            } else {
-                searchDoc.put(key, value);
+    protected <T extends PersistableItem> SearchResultPage get(Class<T> clazz, PageRequest pageRequest, String visitId)
+            throws PersistenceException {
+        final FindIterable<Document> dbResult = database.getCollection(getActiveCollectionName(visitId))
+                .find(Filters.and(Filters.eq(CLASSES, clazz.getName()),
+                        Filters.gt(PERSISTENCE_ID, pageRequest.getAfterPersistenceId())))
+                .sort(Sorts.ascending(PERSISTENCE_ID))
+                .skip(pageRequest.getOffset())
+                .limit(pageRequest.getLimit() + 1);
+
+        final SearchResultPage page = new SearchResultPage(pageRequest);
+        for (Document doc : dbResult) {
+            if (page.isFull()) {
+                page.moreAvailable();
+                break;
             }
+            page.addResult(convertDocumentToPersistableItem(doc));
         }
-        searchDoc.put(CLASSES, clazz.getName());
+        return page;
+    }
 
-        final FindIterable<Document> activeResults = database.getCollection(getActiveCollectionName(visitId)).find(searchDoc);
-        final FindIterable<Document> archiveResults = database.getCollection(getArchiveCollectionName(visitId)).find(searchDoc);
-        return createSearchResult(activeResults, archiveResults);
+    @Override
+    protected <T extends PersistableItem> SearchResult get(SearchPredicate predicate, SortRequest sortRequest,
+                                                           Class<T> clazz, String visitId)
+            throws PersistenceException {
+        FindIterable<Document> dbResult = database.getCollection(getActiveCollectionName(visitId))
+                .find(toFilter(predicate, clazz));
+        if (sortRequest != null) {
+            dbResult = dbResult.sort(sortRequest.isAscending() ? Sorts.ascending(sortRequest.getKey())
+                    : Sorts.descending(sortRequest.getKey()));
+            if (sortRequest.isLimited()) {
+                dbResult = dbResult.limit(sortRequest.getLimit());
+            }
+        }
+        return createSearchResult(dbResult);
+    }
+
+    @Override
+    protected <T extends PersistableItem> long count(SearchPredicate predicate, Class<T> clazz, String visitId) {
+        return database.getCollection(getActiveCollectionName(visitId)).countDocuments(toFilter(predicate, clazz));
+    }
+
+    @Override
+    protected <T extends PersistableItem> Map<String, Long> countBy(String key, SearchPredicate predicate,
+                                                                    Class<T> clazz, String visitId) {
+        final Map<String, Long> counts = new HashMap<>();
+        final AggregateIterable<Document> groups = database.getCollection(getActiveCollectionName(visitId))
+                .aggregate(Arrays.asList(
+                        Aggregates.match(Filters.and(toFilter(predicate, clazz), Filters.ne(key, null))),
+                        Aggregates.group("$" + key, Accumulators.sum(COUNT, 1L))));
+        for (Document group : groups) {
+            counts.put(String.valueOf(group.get(DATABASE_ID)), ((Number) group.get(COUNT)).longValue());
+        }
+        return counts;
+    }
+
+    private static Bson toFilter(SearchPredicate predicate, Class<?> clazz) {
+        return Filters.and(Filters.eq(CLASSES, clazz.getName()), predicate.accept(new FilterBuilder()));
+    }
+
+    /**
+     * Items holding every word of the query as a whole word are found through the text index and ranked by their
+     * text score. Only if there are none are the words matched as the starts of stored words, through the ascending
+     * index of the words, in id order. Unlike an {@link InvertedIndex}, neither matches fragments from the middle of
+     * words, as no index can serve them.
+     */
+    @Override
+    protected <T extends PersistableItem> SearchResult search(String text, Class<T> clazz, String visitId)
+            throws PersistenceException {
+        final List<String> words = InvertedIndex.tokenise(text);
+        if (words.isEmpty()) {
+            return new SearchResult();
+        }
+        final MongoCollection<Document> collection = getActiveCollection(visitId);
+        // $text matches any of the words, so each is also required whole
+        final FindIterable<Document> ranked = collection
+                .find(Filters.and(Filters.eq(CLASSES, clazz.getName()), Filters.text(String.join(" ", words)),
+                        Filters.all(SEARCHABLE_WORDS, words)))
+                .projection(Projections.metaTextScore(TEXT_SCORE))
+                .sort(Sorts.metaTextScore(TEXT_SCORE));
+        final SearchResult searchResult = createSearchResult(ranked);
+        if (searchResult.size() > 0) {
+            return searchResult;
+        }
+
+        final List<Bson> filters = new ArrayList<>();
+        filters.add(Filters.eq(CLASSES, clazz.getName()));
+        for (String word : words) {
+            // Words are letters and digits alone, so need no quoting, and a plain prefix keeps the index bounds tight
+            filters.add(Filters.regex(SEARCHABLE_WORDS, "^" + word));
+        }
+        return createSearchResult(collection.find(Filters.and(filters)).sort(Sorts.ascending(PERSISTENCE_ID)));
     }
 
     @Override
     public List<Long> getVersions(long persistenceId, String visitId) {
-        return null;
+        // Covered by the archive index: only the index is read, never the stored items
+        final List<Long> versions = new ArrayList<>();
+        final FindIterable<Document> dbResult = getArchiveCollection(visitId)
+                .find(Filters.eq(PERSISTENCE_ID, persistenceId))
+                .projection(Projections.fields(Projections.include(VERSION), Projections.excludeId()))
+                .sort(Sorts.ascending(VERSION));
+        for (Document document : dbResult) {
+            versions.add(((Number) document.get(VERSION)).longValue());
+        }
+        return versions;
     }
 
     @Override
@@ -105,19 +274,41 @@ public class MongoDbJsonPersistenceService extends AbstractPersistenceService {
         final Document searchDoc = new Document();
         searchDoc.put(PERSISTENCE_ID, persistenceId);
         searchDoc.put(VERSION, version);
-        final FindIterable<Document> dbResult = database.getCollection(getActiveCollectionName(visitId)).find(searchDoc);
+        final FindIterable<Document> dbResult = getArchiveCollection(visitId).find(searchDoc);
         final Document document = dbResult.first();
         return document == null ? null : convertDocumentToItemContainer(document, visitId);
     }
 
+    @Override
+    protected List<ItemContainer> getArchivedItems(long persistenceId, long fromVersion, long toVersion,
+                                                   String visitId) {
+        final List<ItemContainer> itemContainers = new ArrayList<>();
+        final FindIterable<Document> dbResult = getArchiveCollection(visitId)
+                .find(Filters.and(Filters.eq(PERSISTENCE_ID, persistenceId),
+                        Filters.gte(VERSION, fromVersion), Filters.lte(VERSION, toVersion)))
+                .sort(Sorts.ascending(VERSION));
+        for (Document document : dbResult) {
+            final ItemContainer itemContainer = convertDocumentToItemContainer(document, visitId);
+            if (itemContainer != null) {
+                itemContainers.add(itemContainer);
+            }
+        }
+        return itemContainers;
+    }
+
     @Override
     public boolean delete(long persistenceId) {
-        for (String collection : database.listCollectionNames()) {
-            if (deleteFromCollection(collection, persistenceId)) {
-                return true;
+        try {
+            for (String collection : database.listCollectionNames()) {
+                if (deleteFromCollection(collection, persistenceId)) {
+                    return true;
+                }
             }
+            return false;
+        } finally {
+            // After deleting, so that reads which began before it cannot cache the deleted container
+            activeItemCache.invalidate(persistenceId);
         }
-        return false;
     }
 
     private String getActiveCollectionName(String visitId) {
@@ -128,11 +319,29 @@ public class MongoDbJsonPersistenceService extends AbstractPersistenceService {
         return ARCHIVE_COLLECTION_NAME + "_" + visitId;
     }
 
-    private void saveToCollection(ItemContainer itemContainer, String collection) {
-        final String json = itemContainer.getJson();
-        final Document doc = Document.parse(json);
+    private MongoCollection<Document> getActiveCollection(String visitId) {
+        final String collectionName = getActiveCollectionName(visitId);
+        final MongoCollection<Document> collection = database.getCollection(collectionName);
+        if (indexedActives.add(collectionName)) {
+            collection.createIndex(Indexes.text(SEARCHABLE_TEXT));
+            collection.createIndex(Indexes.ascending(SEARCHABLE_WORDS));
+        }
+        return collection;
+    }
+
+    private MongoCollection<Document> getArchiveCollection(String visitId) {
+        final String collectionName = getArchiveCollectionName(visitId);
+        final MongoCollection<Document> collection = database.getCollection(collectionName);
+        if (indexedArchives.add(collectionName)) {
+            collection.createIndex(Indexes.ascending(PERSISTENCE_ID, VERSION));
+        }
+        return collection;
+    }
+
+    private Document toDocument(ItemContainer itemContainer) {
+        final Document doc = Document.parse(itemContainer.getJson());
         doc.put(CLASSES, itemContainer.getClassNames());
-        database.getCollection(collection).insertOne(doc);
+        return doc;
     }
 
     private ItemContainer convertDocumentToItemContainer(Document document, String visitId) {
@@ -140,6 +349,9 @@ public class MongoDbJsonPersistenceService extends AbstractPersistenceService {
         final String className = ((List<String>) document.get(CLASSES)).get(0);
         document.remove(CLASSES);
         document.remove(DATABASE_ID);
+        document.remove(SEARCHABLE_TEXT);
+        document.remove(SEARCHABLE_WORDS);
+        document.remove(TEXT_SCORE);
 
         final String jsonString = document.toJson(jsonWriterSettings);
         final PersistableItem persistableItem = convertToPersistableItem(jsonString, className);
@@ -151,6 +363,9 @@ public class MongoDbJsonPersistenceService extends AbstractPersistenceService {
         final String className = ((List<String>) document.get(CLASSES)).get(0);
         document.remove(CLASSES);
         document.remove(DATABASE_ID);
+        document.remove(SEARCHABLE_TEXT);
+        document.remove(SEARCHABLE_WORDS);
+        document.remove(TEXT_SCORE);
 
         return convertToPersistableItem(document.toJson(jsonWriterSettings), className);
     }
@@ -183,9 +398,84 @@ public class MongoDbJsonPersistenceService extends AbstractPersistenceService {
         return deleteResult.getDeletedCount() > 0;
     }
 
+    /**
+     * Translates predicates into query operators on the stored documents, whose fields are named after the
+     * searchable members.
+     */
+    private static final class FilterBuilder implements SearchPredicate.Visitor<Bson> {
+        @Override
+        public Bson eq(String key, Object value) {
+            return Filters.eq(key, toStoredValue(key, value));
+        }
+
+        @Override
+        public Bson ne(String key, Object value) {
+            return Filters.and(Filters.exists(key), Filters.ne(key, toStoredValue(key, value)));
+        }
+
+        @Override
+        public Bson range(String key, Object from, Object to) {
+            final List<Bson> bounds = new ArrayList<>();
+            if (from != null) {
+                bounds.add(Filters.gte(key, toStoredValue(key, from)));
+            }
+            if (to != null) {
+                bounds.add(Filters.lte(key, toStoredValue(key, to)));
+            }
+            return Filters.and(bounds);
+        }
+
+        @Override
+        public Bson prefix(String key, String prefix) {
+            return Filters.regex(key, "^" + Pattern.quote(prefix));
+        }
+
+        @Override
+        public Bson in(String key, List<Object> values) {
+            final List<Object> storedValues = new ArrayList<>();
+            for (Object value : values) {
+                storedValues.add(toStoredValue(key, value));
+            }
+            return Filters.in(key, storedValues);
+        }
+
+        @Override
+        public Bson and(List<Bson> operands) {
+            return operands.isEmpty() ? new Document() : Filters.and(operands);
+        }
+
+        @Override
+        public Bson or(List<Bson> operands) {
+            return operands.isEmpty() ? Filters.in(DATABASE_ID, Collections.emptyList()) : Filters.or(operands);
+        }
+
+        /**
+         * Values as Jackson writes them: dates as timestamps and enums by name.
+         */
+        private static Object toStoredValue(String key, Object value) {
+            if ((key.equals(PERSISTENCE_ID) || key.equals(VERSION)) && value instanceof String) {
+                return Long.valueOf((String) value);
+            }
+            if (value instanceof Date) {
+                return ((Date) value).getTime();
+            }
+            if (value instanceof Enum || value instanceof Character) {
+                return value.toString();
+            }
+            return value;
+        }
+    }
+
     public void dropAll() {
         for (String collection : database.listCollectionNames()) {
             database.getCollection(collection).drop();
         }
+        indexedArchives.clear();
+        indexedActives.clear();
+        activeItemCache.invalidateAll();
+    }
+
+    public void close() {
+        activeItemCache.close();
     }
 }
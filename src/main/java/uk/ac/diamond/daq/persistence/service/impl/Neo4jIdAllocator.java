@@ -0,0 +1,81 @@
+package uk.ac.diamond.daq.persistence.service.impl;
+
+import org.neo4j.ogm.session.Session;
+import org.neo4j.ogm.transaction.Transaction;
+import uk.ac.diamond.daq.persistence.service.Neo4jSessionFactory;
+import uk.ac.diamond.daq.persistence.service.PersistenceException;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Hands out persistence ids from a counter node, leasing a block of ids per transaction. Incrementing the counter
+ * write locks its node, so several JVMs sharing a database each lease disjoint blocks. A new counter starts above the
+ * highest id already stored.
+ */
+class Neo4jIdAllocator {
+    static final String COUNTER_LABEL = "IdCounter";
+    static final long DEFAULT_BLOCK_SIZE = 1000;
+
+    // The first id handed out to an empty database is one above this
+    private static final long INITIAL_VALUE = 512;
+
+    private static final String LEASE = "MATCH (c:" + COUNTER_LABEL + " {name: $name})"
+            + " SET c.value = c.value + $blockSize RETURN c.value AS value";
+    private static final String CREATE = "OPTIONAL MATCH (n:" + Neo4jJsonPersistenceService.CONTAINER_LABEL + ")"
+            + " WITH coalesce(max(n.persistenceId), $initial) AS highest"
+            + " MERGE (c:" + COUNTER_LABEL + " {name: $name})"
+            + " ON CREATE SET c.value = highest"
+            + " SET c.value = c.value + $blockSize RETURN c.value AS value";
+
+    private final Neo4jSessionFactory sessionFactory;
+    private final String counterName;
+    private final long blockSize;
+
+    private long next;
+    private long end;
+
+    Neo4jIdAllocator(Neo4jSessionFactory sessionFactory, String counterName, long blockSize) {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("Block size must be positive, was " + blockSize);
+        }
+        this.sessionFactory = sessionFactory;
+        this.counterName = counterName;
+        this.blockSize = blockSize;
+    }
+
+    synchronized long nextId() throws PersistenceException {
+        if (next >= end) {
+            leaseBlock();
+        }
+        return next++;
+    }
+
+    private void leaseBlock() throws PersistenceException {
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put("name", counterName);
+        parameters.put("blockSize", blockSize);
+        parameters.put("initial", INITIAL_VALUE);
+        // A session of its own, so the lease commits even if the save that needed it is rolled back
+        Session session = sessionFactory.getSessionFactory().openSession();
+        try (Transaction transaction = session.beginTransaction()) {
+            Long value = queryValue(session, LEASE, parameters);
+            if (value == null) {
+                value = queryValue(session, CREATE, parameters);
+            }
+            transaction.commit();
+            // The counter holds the last id of the most recently leased block
+            end = value + 1;
+            next = end - blockSize;
+        } catch (RuntimeException e) {
+            throw new PersistenceException("Failed to lease persistence ids from counter " + counterName, e);
+        }
+    }
+
+    private static Long queryValue(Session session, String statement, Map<String, Object> parameters) {
+        for (Map<String, Object> row : session.query(statement, parameters).queryResults()) {
+            return ((Number) row.get("value")).longValue();
+        }
+        return null;
+    }
+}
@@ -1,70 +1,328 @@
 package uk.ac.diamond.daq.persistence.service.impl;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ObjectNode;
 import org.neo4j.ogm.session.Session;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import uk.ac.diamond.daq.persistence.data.ItemContainer;
 import uk.ac.diamond.daq.persistence.data.PersistableItem;
 import uk.ac.diamond.daq.persistence.json.JsonSerialisationFactory;
+import uk.ac.diamond.daq.persistence.json.JsonDeserialiser;
+import uk.ac.diamond.daq.persistence.service.LoadProfile;
+import uk.ac.diamond.daq.persistence.service.ItemExtractor;
 import uk.ac.diamond.daq.persistence.service.Neo4jSessionFactory;
+import uk.ac.diamond.daq.persistence.service.PageRequest;
 import uk.ac.diamond.daq.persistence.service.PersistenceException;
+import uk.ac.diamond.daq.persistence.service.SearchPredicate;
 import uk.ac.diamond.daq.persistence.service.SearchResult;
+import uk.ac.diamond.daq.persistence.service.SearchResultPage;
+import uk.ac.diamond.daq.persistence.service.SortRequest;
 import uk.ac.diamond.daq.persistence.service.VisitService;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.StringJoiner;
 
 public class Neo4jJsonPersistenceService extends AbstractPersistenceService implements Neo4jUtil {
 
     private static final Logger log = LoggerFactory.getLogger(Neo4jJsonPersistenceService.class);
 
-    private static Long idGen = 512l;
+    private static final int DEPTH_LIST = 0;
+    private static final int DEPTH_ENTITY = 1;
+
+    static final String CONTAINER_LABEL = "ItemContainer";
+    static final String ACTIVE_LABEL = "Active";
+    static final String REFERENCES = "REFERENCES";
+    // The id, version and visit of a container in one property, which is unique in every edition of Neo4j
+    static final String CONTAINER_KEY = "containerKey";
+    private static final String CONTAINER = "container";
+    private static final String VALUE = "value";
+    private static final String COUNT = "count";
+    // Searchable values are node properties, kept apart from those of the container
+    static final String SEARCHABLE_PREFIX = "searchable.";
+    static final String SEARCHABLE_TEXT = "searchableText";
+    static final String TEXT_INDEX = "searchableText";
+
+    // Moving the active label and writing the new version share a statement, so readers never see two active nodes
+    private static final String WRITE_CONTAINERS = "UNWIND $rows AS row"
+            + " OPTIONAL MATCH (previous:" + ACTIVE_LABEL + " {persistenceId: row.persistenceId, visitId: row.visitId})"
+            + " REMOVE previous:" + ACTIVE_LABEL
+            + " WITH row"
+            + " MERGE (n:" + CONTAINER_LABEL + " {" + CONTAINER_KEY + ": row.containerKey})"
+            + " SET n.persistenceId = row.persistenceId, n.version = row.version, n.visitId = row.visitId,"
+            + " n.payload = row.payload, n.className = row.className, n.classes = row.classes,"
+            + " n += row.searchable, n:" + ACTIVE_LABEL;
+    private static final String WRITE_REFERENCES = "UNWIND $rows AS row"
+            + " MATCH (parent:" + CONTAINER_LABEL + " {persistenceId: row.parentId, version: row.parentVersion, visitId: row.visitId})"
+            + " MATCH (child:" + CONTAINER_LABEL + " {persistenceId: row.childId, version: row.childVersion, visitId: row.visitId})"
+            + " MERGE (parent)-[:" + REFERENCES + "]->(child)";
+
+    private static final String DEACTIVATE = "MATCH (n:" + ACTIVE_LABEL + " {persistenceId: $persistenceId, visitId: $visitId})"
+            + " REMOVE n:" + ACTIVE_LABEL + " RETURN count(n) AS deactivated";
+
+    private static final CypherQuery ACTIVE = CypherQuery.match(ACTIVE_LABEL)
+            .where("persistenceId", CypherQuery.Operator.EQUALS)
+            .where("visitId", CypherQuery.Operator.EQUALS)
+            .returning("properties(n) AS " + CONTAINER)
+            .build();
+    private static final CypherQuery ITEMS_OF_CLASS = CypherQuery.match(ACTIVE_LABEL)
+            .where("visitId", CypherQuery.Operator.EQUALS)
+            .where("classes", CypherQuery.Operator.CONTAINS)
+            .returning("properties(n) AS " + CONTAINER)
+            .build();
+    private static final String FULL_TEXT_SEARCH = "CALL db.index.fulltext.queryNodes($index, $text) YIELD node, score"
+            + " WHERE node.visitId = $visitId AND node.classes CONTAINS $classes"
+            + " RETURN properties(node) AS " + CONTAINER + " ORDER BY score DESC";
+    private static final CypherQuery PAGE_OF_CLASS = CypherQuery.match(ACTIVE_LABEL)
+            .where("visitId", CypherQuery.Operator.EQUALS)
+            .where("classes", CypherQuery.Operator.CONTAINS)
+            .where("persistenceId", CypherQuery.Operator.GREATER_THAN, "after")
+            .orderBy("persistenceId")
+            .paged()
+            .returning("properties(n) AS " + CONTAINER)
+            .build();
+    private static final CypherQuery BY_ID_AND_VERSION = CypherQuery.match(CONTAINER_LABEL)
+            .where("persistenceId", CypherQuery.Operator.EQUALS)
+            .where("version", CypherQuery.Operator.EQUALS)
+            .where("visitId", CypherQuery.Operator.EQUALS)
+            .returning("properties(n) AS " + CONTAINER)
+            .build();
+    private static final CypherQuery VERSION_RANGE = CypherQuery.match(CONTAINER_LABEL)
+            .where("persistenceId", CypherQuery.Operator.EQUALS)
+            .where("visitId", CypherQuery.Operator.EQUALS)
+            .where("version", CypherQuery.Operator.AT_LEAST, "fromVersion")
+            .where("version", CypherQuery.Operator.AT_MOST, "toVersion")
+            .orderBy("version")
+            .returning("properties(n) AS " + CONTAINER)
+            .build();
+    private static final CypherQuery CONTAINER_VERSIONS = CypherQuery.match(CONTAINER_LABEL)
+            .where("persistenceId", CypherQuery.Operator.EQUALS)
+            .where("visitId", CypherQuery.Operator.EQUALS)
+            .returning("n.version AS version")
+            .orderBy("version")
+            .build();
+
+    private static final int GRAPH_STATEMENTS_CAPACITY = 16;
+    private static final LruCache<Integer, String> graphStatements = new LruCache<>(GRAPH_STATEMENTS_CAPACITY);
+
+    private final ThreadLocal<PendingGraph> pendingWrites = new ThreadLocal<>();
+
+    private final Neo4jSessionFactory sessionFactory;
+    private final Neo4jIdAllocator idAllocator;
 
     public Neo4jJsonPersistenceService(JsonSerialisationFactory jsonSerialisationFactory, VisitService visitService) {
-        super(jsonSerialisationFactory, visitService);
+        this(jsonSerialisationFactory, visitService, Neo4jSessionFactory.getInstance());
     }
 
-    private static final int DEPTH_LIST = 0;
-    private static final int DEPTH_ENTITY = 1;
+    public Neo4jJsonPersistenceService(JsonSerialisationFactory jsonSerialisationFactory, VisitService visitService,
+                                       Neo4jSessionFactory sessionFactory) {
+        super(jsonSerialisationFactory, visitService);
+        this.sessionFactory = sessionFactory;
+        this.idAllocator = new Neo4jIdAllocator(sessionFactory, "persistenceId", Neo4jIdAllocator.DEFAULT_BLOCK_SIZE);
+    }
 
-    protected Session session = Neo4jSessionFactory.getInstance().getNeo4jSession();
+    protected Session getSession() {
+        return sessionFactory.getNeo4jSession();
+    }
 
     @Override
     protected <T extends PersistableItem> SearchResult get(Class<T> clazz, String visitId) throws PersistenceException {
-        Map<String, String> query = new HashMap<>();
-        return get(query, clazz, visitId);
+        return get(clazz, visitId, jsonSerialisationFactory.getJsonDeserialiser(this, visitId));
+    }
+
+    @Override
+    protected <T extends PersistableItem> SearchResult get(Class<T> clazz, String visitId, LoadProfile loadProfile)
+            throws PersistenceException {
+        return get(clazz, visitId, jsonSerialisationFactory.getJsonDeserialiser(this, visitId, loadProfile));
+    }
+
+    private <T extends PersistableItem> SearchResult get(Class<T> clazz, String visitId,
+                                                         JsonDeserialiser jsonDeserialiser)
+            throws PersistenceException {
+        HashMap<String, Object> query = new HashMap<>();
+        query.put("visitId", visitId);
+        query.put("classes", clazz.getSimpleName());
+        List<T> deserialisedResults = new ArrayList<>();
+        for (ItemContainer contained : queryContainers(ITEMS_OF_CLASS, query)) {
+            deserialisedResults.add(jsonDeserialiser.deserialise(contained));
+        }
+        return formatSearchResults(deserialisedResults);
     }
 
     @Override
     public boolean delete(long persistenceId) {
-        PersistableItem itemToDelete = session.load(PersistableItem.class, persistenceId);
-        if (!itemToDelete.equals(null)) {
-            session.delete(itemToDelete);
+        return delete(persistenceId, getCurrentVisitId());
+    }
+
+    @Override
+    protected boolean delete(long persistenceId, String visitId) {
+        if (pendingWrites.get() != null) {
+            // The batch write moves the active label along with the new version
             return true;
         }
-        return false;
+        HashMap<String, Object> query = new HashMap<>();
+        query.put("persistenceId", persistenceId);
+        query.put("visitId", visitId);
+        try {
+            return sessionFactory.doInTransaction(session -> {
+                for (Map<String, Object> row : session.query(DEACTIVATE, query).queryResults()) {
+                    return ((Number) row.get("deactivated")).longValue() > 0;
+                }
+                return false;
+            });
+        } catch (PersistenceException e) {
+            log.error("Failed to delete item {}", persistenceId, e);
+            return false;
+        }
     }
 
     @Override
-    protected <T extends PersistableItem> SearchResult get(Map<String, String> searchParameters, Class<T> clazz, String visitId) throws PersistenceException {
-        HashMap<String, Object> castMap = new HashMap<>();
-        castMap.put("visitId", visitId);
-        castMap.put("classes", " CONTAINS " + clazz.getSimpleName());
-        Iterable<ItemContainer> serialisedResults = session.query(ItemContainer.class, generateCypherString(castMap, " RETURN n"), searchParameters);
+    protected <T extends PersistableItem> SearchResult get(SearchPredicate predicate, SortRequest sortRequest,
+                                                           Class<T> clazz, String visitId)
+            throws PersistenceException {
+        CypherPredicate cypherPredicate = CypherPredicate.of(predicate, SEARCHABLE_PREFIX);
+        CypherQuery.Builder builder = matchActive(cypherPredicate).returning("properties(n) AS " + CONTAINER);
+        Map<String, Object> query = activeParameters(cypherPredicate, clazz, visitId);
+        if (sortRequest != null) {
+            if (sortRequest.mayLackValues()) {
+                builder.orderByNullable(getSortProperty(sortRequest.getKey()));
+            } else {
+                builder.orderBy(getSortProperty(sortRequest.getKey()));
+            }
+            if (!sortRequest.isAscending()) {
+                builder.descending();
+            }
+            if (sortRequest.isLimited()) {
+                builder.limited();
+                query.put("limit", sortRequest.getLimit());
+            }
+        }
+        JsonDeserialiser jsonDeserialiser = jsonSerialisationFactory.getJsonDeserialiser(this, visitId);
         List<T> deserialisedResults = new ArrayList<>();
-        for (ItemContainer contained : serialisedResults) {
-            deserialisedResults.add(this.jsonSerialisationFactory.getJsonDeserialiser(this, visitId).deserialise(contained));
+        for (ItemContainer contained : queryContainers(builder.build(), query)) {
+            deserialisedResults.add(jsonDeserialiser.deserialise(contained));
         }
         return formatSearchResults(deserialisedResults);
     }
 
+    @Override
+    protected <T extends PersistableItem> long count(SearchPredicate predicate, Class<T> clazz, String visitId) {
+        CypherPredicate cypherPredicate = CypherPredicate.of(predicate, SEARCHABLE_PREFIX);
+        CypherQuery cypherQuery = matchActive(cypherPredicate).returning("count(n) AS " + COUNT).build();
+        Map<String, Object> query = activeParameters(cypherPredicate, clazz, visitId);
+        for (Map<String, Object> row : getSession().query(cypherQuery.getStatement(), query).queryResults()) {
+            return ((Number) row.get(COUNT)).longValue();
+        }
+        return 0;
+    }
+
+    @Override
+    protected <T extends PersistableItem> Map<String, Long> countBy(String key, SearchPredicate predicate,
+                                                                    Class<T> clazz, String visitId) {
+        CypherPredicate cypherPredicate = CypherPredicate.of(predicate, SEARCHABLE_PREFIX);
+        String property = CypherPredicate.property(SEARCHABLE_PREFIX, key);
+        CypherQuery cypherQuery = matchActive(cypherPredicate)
+                .whereExpression(property + " IS NOT NULL")
+                .returning(property + " AS " + VALUE + ", count(n) AS " + COUNT)
+                .build();
+        Map<String, Object> query = activeParameters(cypherPredicate, clazz, visitId);
+        Map<String, Long> counts = new HashMap<>();
+        for (Map<String, Object> row : getSession().query(cypherQuery.getStatement(), query).queryResults()) {
+            counts.put(String.valueOf(row.get(VALUE)), ((Number) row.get(COUNT)).longValue());
+        }
+        return counts;
+    }
+
+    private static CypherQuery.Builder matchActive(CypherPredicate cypherPredicate) {
+        return CypherQuery.match(ACTIVE_LABEL)
+                .where("visitId", CypherQuery.Operator.EQUALS)
+                .where("classes", CypherQuery.Operator.CONTAINS)
+                .where(cypherPredicate);
+    }
+
+    private static Map<String, Object> activeParameters(CypherPredicate cypherPredicate, Class<?> clazz,
+                                                        String visitId) {
+        HashMap<String, Object> query = new HashMap<>(cypherPredicate.getParameters());
+        query.put("visitId", visitId);
+        query.put("classes", clazz.getSimpleName());
+        return query;
+    }
+
+    @Override
+    protected <T extends PersistableItem> SearchResult search(String text, Class<T> clazz, String visitId)
+            throws PersistenceException {
+        String luceneQuery = toLuceneQuery(text);
+        if (luceneQuery.isEmpty()) {
+            return new SearchResult();
+        }
+        HashMap<String, Object> query = new HashMap<>();
+        query.put("index", TEXT_INDEX);
+        query.put("text", luceneQuery);
+        query.put("visitId", visitId);
+        query.put("classes", clazz.getSimpleName());
+        JsonDeserialiser jsonDeserialiser = jsonSerialisationFactory.getJsonDeserialiser(this, visitId);
+        List<T> deserialisedResults = new ArrayList<>();
+        for (ItemContainer contained : queryContainers(FULL_TEXT_SEARCH, query)) {
+            deserialisedResults.add(jsonDeserialiser.deserialise(contained));
+        }
+        return formatSearchResults(deserialisedResults);
+    }
+
+    /**
+     * @return a query that every word, or a word starting with it, must match, with Lucene syntax escaped away by
+     * tokenising
+     */
+    private static String toLuceneQuery(String text) {
+        StringJoiner luceneQuery = new StringJoiner(" AND ");
+        for (String word : InvertedIndex.tokenise(text)) {
+            luceneQuery.add(word + "*");
+        }
+        return luceneQuery.toString();
+    }
+
+    private static String getSortProperty(String key) {
+        if (SortRequest.PERSISTENCE_ID.equals(key)) {
+            return "persistenceId";
+        }
+        return SortRequest.VERSION.equals(key) ? "version" : SEARCHABLE_PREFIX + key;
+    }
+
+    @Override
+    protected <T extends PersistableItem> SearchResultPage get(Class<T> clazz, PageRequest pageRequest, String visitId)
+            throws PersistenceException {
+        HashMap<String, Object> query = new HashMap<>();
+        query.put("visitId", visitId);
+        query.put("classes", clazz.getSimpleName());
+        query.put("after", pageRequest.getAfterPersistenceId());
+        query.put("skip", pageRequest.getOffset());
+        query.put("limit", pageRequest.getLimit() + 1);
+
+        SearchResultPage page = new SearchResultPage(pageRequest);
+        JsonDeserialiser jsonDeserialiser = jsonSerialisationFactory.getJsonDeserialiser(this, visitId);
+        for (ItemContainer contained : queryContainers(PAGE_OF_CLASS, query)) {
+            if (page.isFull()) {
+                page.moreAvailable();
+                break;
+            }
+            page.addResult(jsonDeserialiser.deserialise(contained));
+        }
+        return page;
+    }
+
     @Override
     public List<Long> getVersions(long persistenceId, String visitId) {
-        return getVersions(persistenceId, visitId, session);
+        HashMap<String, Object> query = new HashMap<>();
+        query.put("persistenceId", persistenceId);
+        query.put("visitId", visitId);
+        List<Long> versions = new ArrayList<>();
+        for (Map<String, Object> row : getSession().query(CONTAINER_VERSIONS.getStatement(), query).queryResults()) {
+            versions.add(((Number) row.get("version")).longValue());
+        }
+        return versions;
     }
 
     @Override
@@ -74,55 +332,237 @@ public class Neo4jJsonPersistenceService extends AbstractPersistenceService impl
         query.put("version", version);
         query.put("visitId", visitId);
 
-        return session.queryForObject(ItemContainer.class, generateCypherString(query, " RETURN n"), query);
+        List<ItemContainer> itemContainers = queryContainers(BY_ID_AND_VERSION, query);
+        return itemContainers.isEmpty() ? null : itemContainers.get(0);
     }
 
     @Override
-    protected long getNextPersistenceId() {
-        return ++idGen;
+    protected List<ItemContainer> getArchivedItems(long persistenceId, long fromVersion, long toVersion,
+                                                   String visitId) {
+        HashMap<String, Object> query = new HashMap<>();
+        query.put("persistenceId", persistenceId);
+        query.put("visitId", visitId);
+        query.put("fromVersion", fromVersion);
+        query.put("toVersion", toVersion);
+
+        return queryContainers(VERSION_RANGE, query);
     }
 
-    protected long getHighestVersion(long persistenceId) {
+    @Override
+    protected long getNextPersistenceId() throws PersistenceException {
+        return idAllocator.nextId();
+    }
+
+    @Override
+    protected ItemContainer getActive(long persistenceId, String visitId) {
+        if (persistenceId == PersistableItem.INVALID_ID) {
+            return null;
+        }
+        PendingGraph graph = pendingWrites.get();
+        if (graph != null) {
+            // Items already saved in this graph are not written yet
+            for (int i = graph.itemContainers.size() - 1; i >= 0; i--) {
+                ItemContainer itemContainer = graph.itemContainers.get(i);
+                if (itemContainer.getId() == persistenceId && itemContainer.getVisitId().equals(visitId)) {
+                    return itemContainer;
+                }
+            }
+        }
         HashMap<String, Object> query = new HashMap<>();
         query.put("persistenceId", persistenceId);
+        query.put("visitId", visitId);
+        List<ItemContainer> itemContainers = queryContainers(ACTIVE, query);
+        return itemContainers.isEmpty() ? null : itemContainers.get(0);
+    }
+
+    @Override
+    public void save(PersistableItem item, String visitId) throws PersistenceException {
+        PendingGraph graph = pendingWrites.get();
+        if (graph != null) {
+            // Items reached while serialising a graph join the batch of the top level save
+            super.save(item, visitId);
+            graph.addReference(item, visitId);
+            return;
+        }
+        graph = new PendingGraph();
+        pendingWrites.set(graph);
         try {
-            return session.queryForObject(Long.class, generateCypherString(query, " RETURN max(n.version) LIMIT 1"), query);
-        } catch (NullPointerException e) {
-            return 1;
+            super.save(item, visitId);
+        } finally {
+            pendingWrites.remove();
         }
+        writeGraph(graph);
     }
 
     @Override
-    protected ItemContainer getActive(long persistenceId, String visitId) {
-//        HashMap<String, Object> query = new HashMap<>();
-//        query.put("persistenceId", persistenceId);
-//        query.put("visitId", visitId);
-//        String qualifier = " RETURN n ORDER BY n.version LIMIT 1";
-//        ItemContainer toReturn = session.queryForObject(ItemContainer.class, generateCypherString(query, qualifier), query);
-//        System.out.print(toReturn.toString());
-        return null;
+    protected String serialise(PersistableItem item, String visitId) throws PersistenceException {
+        PendingGraph graph = pendingWrites.get();
+        if (graph == null) {
+            return super.serialise(item, visitId);
+        }
+        graph.searchableValues.put(item.getId(), getSearchableProperties(item));
+        graph.parents.push(item);
+        try {
+            return super.serialise(item, visitId);
+        } finally {
+            graph.parents.pop();
+        }
+    }
+
+    private static Map<String, Object> getSearchableProperties(PersistableItem item) throws PersistenceException {
+        Map<String, Object> searchableValues = new HashMap<>();
+        ItemExtractor.forSearching(item.getClass()).getSearchableValues(item, searchableValues);
+        Map<String, Object> properties = new HashMap<>();
+        searchableValues.forEach((key, value) -> properties.put(SEARCHABLE_PREFIX + key,
+                CypherPredicate.toStoredValue(value)));
+        List<String> texts = ItemExtractor.forSearching(item.getClass()).getSearchableText(item);
+        if (!texts.isEmpty()) {
+            properties.put(SEARCHABLE_TEXT, String.join("\n", texts));
+        }
+        return properties;
     }
 
     @Override
     protected void saveToActiveItems(ItemContainer itemContainer) {
+        // Every version is stored as its own node, the active one carries the active label
+    }
 
-        itemContainer.setId(getNextPersistenceId());
+    @Override
+    protected void saveToArchiveItems(ItemContainer itemContainer) throws PersistenceException {
+        PendingGraph graph = pendingWrites.get();
+        if (graph != null) {
+            graph.itemContainers.add(itemContainer);
+        } else {
+            graph = new PendingGraph();
+            graph.itemContainers.add(itemContainer);
+            writeGraph(graph);
+        }
+    }
 
-        itemContainer.setId(getHighestVersion(itemContainer.getId()) + 1);
-        saveToArchiveItems(itemContainer);
+    private void writeGraph(PendingGraph graph) throws PersistenceException {
+        if (graph.itemContainers.isEmpty()) {
+            return;
+        }
+        List<Map<String, Object>> rows = new ArrayList<>();
+        for (ItemContainer itemContainer : graph.itemContainers) {
+            Map<String, Object> row = new HashMap<>();
+            row.put("persistenceId", itemContainer.getId());
+            row.put("version", itemContainer.getVersion());
+            row.put("visitId", itemContainer.getVisitId());
+            row.put("containerKey", itemContainer.getId() + ":" + itemContainer.getVersion() + ":"
+                    + itemContainer.getVisitId());
+            row.put("payload", itemContainer.getJson());
+            row.put("className", itemContainer.getItemClass().getName());
+            row.put("classes", String.join(",", itemContainer.getClassNames()));
+            row.put("searchable", graph.searchableValues.getOrDefault(itemContainer.getId(), Collections.emptyMap()));
+            rows.add(row);
+        }
+        sessionFactory.doInTransaction(session -> {
+            session.query(WRITE_CONTAINERS, Collections.singletonMap("rows", rows));
+            if (!graph.references.isEmpty()) {
+                session.query(WRITE_REFERENCES, Collections.singletonMap("rows", graph.references));
+            }
+            return null;
+        });
+    }
 
-        ObjectMapper objectMapper;
-        ObjectNode objectNode;
+    @Override
+    public <T extends PersistableItem> T get(long persistenceId, Class<T> clazz, LoadProfile loadProfile)
+            throws PersistenceException {
+        if (loadProfile.getDepth() > LoadProfile.ENTITY.getDepth()) {
+            return getGraph(persistenceId, clazz, loadProfile.getDepth());
+        }
+        return super.get(persistenceId, clazz, loadProfile);
+    }
 
+    /**
+     * Loads an item together with the items it references, up to {@code depth} references away, with a single
+     * traversal. References further away are left unset, as for any {@link LoadProfile}.
+     */
+    public <T extends PersistableItem> T getGraph(long persistenceId, Class<T> clazz, int depth)
+            throws PersistenceException {
+        if (depth < 0) {
+            throw new IllegalArgumentException("Depth cannot be negative, was " + depth);
+        }
+        String visitId = getCurrentVisitId();
+        String statement = graphStatements.computeIfAbsent(depth, maxDepth -> "MATCH (root:" + ACTIVE_LABEL
+                + " {persistenceId: $persistenceId, visitId: $visitId})"
+                + " MATCH (root)-[:" + REFERENCES + "*0.." + maxDepth + "]->(n:" + CONTAINER_LABEL + ")"
+                + " WITH DISTINCT n.persistenceId AS persistenceId"
+                + " MATCH (n:" + ACTIVE_LABEL + " {persistenceId: persistenceId, visitId: $visitId})"
+                + " RETURN properties(n) AS " + CONTAINER);
+        HashMap<String, Object> query = new HashMap<>();
+        query.put("persistenceId", persistenceId);
+        query.put("visitId", visitId);
+        List<ItemContainer> itemContainers = queryContainers(statement, query);
+
+        JsonDeserialiser jsonDeserialiser = jsonSerialisationFactory.getJsonDeserialiser(this, visitId,
+                LoadProfile.graph(depth));
+        jsonDeserialiser.prefetch(itemContainers);
+        for (ItemContainer itemContainer : itemContainers) {
+            if (itemContainer.getId() == persistenceId && clazz.isAssignableFrom(itemContainer.getItemClass())) {
+                return jsonDeserialiser.deserialise(itemContainer);
+            }
+        }
+        throw new PersistenceException("No item found width id of " + persistenceId + " for visit " + visitId);
     }
 
-    @Override
-    protected void saveToArchiveItems(ItemContainer itemContainer) {
-        session.save(itemContainer);
+    private List<ItemContainer> queryContainers(CypherQuery cypherQuery, Map<String, Object> parameters) {
+        return queryContainers(cypherQuery.getStatement(), parameters);
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<ItemContainer> queryContainers(String statement, Map<String, Object> parameters) {
+        List<ItemContainer> itemContainers = new ArrayList<>();
+        for (Map<String, Object> row : getSession().query(statement, parameters).queryResults()) {
+            ItemContainer itemContainer = toItemContainer((Map<String, Object>) row.get(CONTAINER));
+            if (itemContainer != null) {
+                itemContainers.add(itemContainer);
+            }
+        }
+        return itemContainers;
+    }
+
+    @SuppressWarnings("unchecked")
+    private ItemContainer toItemContainer(Map<String, Object> properties) {
+        try {
+            Class<? extends PersistableItem> itemClass =
+                    (Class<? extends PersistableItem>) Class.forName((String) properties.get("className"));
+            return new ItemContainer(((Number) properties.get("persistenceId")).longValue(),
+                    ((Number) properties.get("version")).longValue(), itemClass, (String) properties.get("payload"),
+                    (String) properties.get("visitId"));
+        } catch (ClassNotFoundException | ClassCastException e) {
+            log.error("Error reading item container", e);
+        }
+        return null;
     }
 
     public void tearDown() {
-        session.purgeDatabase();
+        getSession().purgeDatabase();
     }
 
-}
\ No newline at end of file
+    /**
+     * The containers and references written by one top level save, along with the items being serialised and their
+     * searchable values.
+     */
+    private static class PendingGraph {
+        private final List<ItemContainer> itemContainers = new ArrayList<>();
+        private final List<Map<String, Object>> references = new ArrayList<>();
+        private final Deque<PersistableItem> parents = new ArrayDeque<>();
+        private final Map<Long, Map<String, Object>> searchableValues = new HashMap<>();
+
+        private void addReference(PersistableItem child, String visitId) {
+            PersistableItem parent = parents.peek();
+            if (parent == null) {
+                return;
+            }
+            Map<String, Object> reference = new HashMap<>();
+            reference.put("visitId", visitId);
+            reference.put("parentId", parent.getId());
+            reference.put("parentVersion", parent.getVersion());
+            reference.put("childId", child.getId());
+            reference.put("childVersion", child.getVersion());
+            references.add(reference);
+        }
+    }
+}
@@ -2,25 +2,55 @@ package uk.ac.diamond.daq.persistence.service.impl;
 
 import uk.ac.diamond.daq.persistence.data.PersistableItem;
 import uk.ac.diamond.daq.persistence.json.impl.DefaultJsonSerialisationFactory;
+import uk.ac.diamond.daq.persistence.service.FullTextIndex;
+import uk.ac.diamond.daq.persistence.service.ItemExtractor;
+import uk.ac.diamond.daq.persistence.service.LoadProfile;
+import uk.ac.diamond.daq.persistence.service.Neo4jSessionFactory;
+import uk.ac.diamond.daq.persistence.service.PageRequest;
 import uk.ac.diamond.daq.persistence.service.PersistenceException;
 import uk.ac.diamond.daq.persistence.service.PersistenceService;
+import uk.ac.diamond.daq.persistence.service.SearchPredicate;
 import uk.ac.diamond.daq.persistence.service.SearchResult;
+import uk.ac.diamond.daq.persistence.service.SearchResultPage;
+import uk.ac.diamond.daq.persistence.service.SortRequest;
 import uk.ac.diamond.daq.persistence.service.VisitService;
+import uk.ac.diamond.daq.persistence.service.impl.neo4j.GraphStore;
+import uk.ac.diamond.daq.persistence.service.impl.neo4j.ItemGraph;
 import uk.ac.diamond.daq.persistence.service.impl.neo4j.PersistableItemService;
 
 import java.lang.reflect.Modifier;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class Neo4jNativePersistenceService implements PersistenceService, Neo4jUtil {
+    private static final Map<Class<?>, ArrayList<String>> labelsByClass = new ConcurrentHashMap<>();
+    private static final int PAGE_BATCH = 100;
+
     public Neo4jNativePersistenceService(DefaultJsonSerialisationFactory defaultJsonSerialisationFactory, VisitService visitService) {
+        this(defaultJsonSerialisationFactory, visitService, Neo4jSessionFactory.getInstance());
+    }
+
+    public Neo4jNativePersistenceService(DefaultJsonSerialisationFactory defaultJsonSerialisationFactory,
+                                         VisitService visitService, Neo4jSessionFactory sessionFactory) {
+        service = new PersistableItemService(sessionFactory);
+        visService = visitService;
     }
 
-    private PersistableItemService service = new PersistableItemService();
+    public Neo4jNativePersistenceService(DefaultJsonSerialisationFactory defaultJsonSerialisationFactory,
+                                         VisitService visitService, GraphStore graphStore) {
+        service = new PersistableItemService(graphStore);
+        visService = visitService;
+    }
+
+    private PersistableItemService service;
     private VisitService visService;
     private long id = 255;
+    // Built from the stored items on the first search, then kept up to date by this service's own writes
+    private FullTextIndex textIndex;
 
     public void setServices(PersistableItemService service) {
         this.service = service;
@@ -28,44 +58,224 @@ public class Neo4jNativePersistenceService implements PersistenceService, Neo4jU
 
     @Override
     public void save(PersistableItem item) throws PersistenceException {
-        item.setId(++id);
-        service.createOrUpdate(item);
+        if (item == null) {
+            throw new PersistenceException("Cannot save null");
+        }
+        List<PersistableItem> graph = ItemGraph.of(item);
+        synchronized (this) {
+            item.setId(++id);
+            for (PersistableItem referenced : graph) {
+                if (referenced.getId() == PersistableItem.INVALID_ID) {
+                    referenced.setId(++id);
+                }
+            }
+        }
+        service.createOrUpdateAll(graph);
+        synchronized (this) {
+            if (textIndex != null) {
+                for (PersistableItem saved : graph) {
+                    textIndex.index(saved.getId(),
+                            ItemExtractor.forSearching(saved.getClass()).getSearchableText(saved));
+                }
+            }
+        }
     }
 
     @Override
     public boolean delete(long id) {
-        try {
-            service.find(id).getId();
-        } catch (Exception e) {
+        if (!service.delete(id)) {
             return false;
         }
-        service.delete(id);
+        synchronized (this) {
+            if (textIndex != null) {
+                textIndex.remove(id);
+            }
+        }
         return true;
     }
 
     @Override
     public <T extends PersistableItem> SearchResult get(Class<T> clazz) throws PersistenceException {
-        ArrayList<String> classList = new ArrayList<>();
-        return formatSearchResults(service.getForLabels(getLabels(clazz), new HashMap<String, Object>()));
+        return get(clazz, LoadProfile.LISTING);
+    }
 
+    @Override
+    public <T extends PersistableItem> SearchResult get(Class<T> clazz, LoadProfile loadProfile)
+            throws PersistenceException {
+        return formatSearchResults(instances(service.getForLabels(getLabels(clazz), new HashMap<String, Object>(),
+                loadProfile), clazz));
     }
 
     @Override
     public <T extends PersistableItem> SearchResult get(Map<String, String> searchParameters, Class<T> clazz) throws PersistenceException {
-        return formatSearchResults(service.getForLabels(getLabels(clazz), (HashMap) searchParameters));
+        return get(SearchPredicate.allEqual(searchParameters), clazz);
     }
 
     @Override
-    public <T extends PersistableItem> T get(long id, Class<T> clazz) throws PersistenceException {
+    public <T extends PersistableItem> SearchResult get(SearchPredicate predicate, Class<T> clazz)
+            throws PersistenceException {
+        return get(predicate, null, clazz);
+    }
+
+    @Override
+    public <T extends PersistableItem> SearchResult get(SearchPredicate predicate, SortRequest sortRequest,
+                                                        Class<T> clazz) throws PersistenceException {
+        return formatSearchResults(instances(service.getForLabels(getLabels(clazz), predicate.forClass(clazz),
+                sortRequest == null ? null : sortRequest.forClass(clazz), LoadProfile.LISTING), clazz));
+    }
+
+    @Override
+    public <T extends PersistableItem> SearchResult get(Class<T> clazz, SortRequest sortRequest)
+            throws PersistenceException {
+        return get(SearchPredicate.and(), sortRequest, clazz);
+    }
+
+    @Override
+    public <T extends PersistableItem> long count(Class<T> clazz) throws PersistenceException {
+        return count(SearchPredicate.and(), clazz);
+    }
+
+    @Override
+    public <T extends PersistableItem> long count(SearchPredicate predicate, Class<T> clazz)
+            throws PersistenceException {
+        if (isLabelled(clazz)) {
+            return service.countForLabels(getLabels(clazz), predicate.forClass(clazz));
+        }
+        return instances(service.getForLabels(getLabels(clazz), predicate.forClass(clazz), null, LoadProfile.LISTING),
+                clazz).size();
+    }
+
+    @Override
+    public <T extends PersistableItem> Map<String, Long> countBy(String key, SearchPredicate predicate,
+                                                                 Class<T> clazz) throws PersistenceException {
+        Map<String, Long> counts = new HashMap<>();
+        if (isLabelled(clazz)) {
+            service.countByForLabels(getLabels(clazz), key, predicate.forClass(clazz))
+                    .forEach((value, count) -> counts.merge(value.toString(), count, Long::sum));
+            return counts;
+        }
+        for (PersistableItem item : instances(service.getForLabels(getLabels(clazz), predicate.forClass(clazz), null,
+                LoadProfile.LISTING), clazz)) {
+            Map<String, Object> values = new HashMap<>();
+            ItemExtractor.forSearching(item.getClass()).getSearchableValues(item, values);
+            Object value = values.get(key);
+            if (value != null) {
+                counts.merge(value.toString(), 1L, Long::sum);
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Items are stored as plain nodes without an index over their text, so the text of every item is indexed in
+     * memory. Writes made by other processes are not seen once the index is built.
+     */
+    @Override
+    public <T extends PersistableItem> SearchResult search(String text, Class<T> clazz) throws PersistenceException {
+        List<Long> found = getTextIndex().search(text);
+        if (found.isEmpty()) {
+            return new SearchResult();
+        }
+        Map<Long, PersistableItem> items = new HashMap<>();
+        for (PersistableItem item : instances(service.getForLabels(getLabels(clazz), SearchPredicate.in("id", found),
+                null, LoadProfile.LISTING), clazz)) {
+            items.merge(item.getId(), item,
+                    (first, second) -> first.getVersion() >= second.getVersion() ? first : second);
+        }
+        SearchResult results = new SearchResult();
+        for (Long persistenceId : found) {
+            PersistableItem item = items.get(persistenceId);
+            if (item != null) {
+                results.addResult(item);
+            }
+        }
+        return results;
+    }
+
+    private synchronized FullTextIndex getTextIndex() throws PersistenceException {
+        if (textIndex == null) {
+            FullTextIndex built = new InvertedIndex();
+            Map<Long, Long> versions = new HashMap<>();
+            for (PersistableItem item : service.findAll(LoadProfile.LISTING)) {
+                Long indexed = versions.get(item.getId());
+                if (indexed == null || indexed < item.getVersion()) {
+                    versions.put(item.getId(), item.getVersion());
+                    built.index(item.getId(), ItemExtractor.forSearching(item.getClass()).getSearchableText(item));
+                }
+            }
+            textIndex = built;
+        }
+        return textIndex;
+    }
+
+    @Override
+    public <T extends PersistableItem> SearchResultPage get(Class<T> clazz, PageRequest pageRequest) throws PersistenceException {
+        SearchResultPage page = new SearchResultPage(pageRequest);
+        if (isLabelled(clazz)) {
+            for (PersistableItem item : service.getPageForLabels(getLabels(clazz), pageRequest.getAfterPersistenceId(),
+                    pageRequest.getOffset(), pageRequest.getLimit() + 1)) {
+                if (page.isFull()) {
+                    page.moreAvailable();
+                    break;
+                }
+                page.addResult(item);
+            }
+            return page;
+        }
+        // Nodes of other types share the labels, so read on until enough instances have been found
+        int skip = pageRequest.getOffset();
+        int read = 0;
+        int fetched;
+        do {
+            fetched = 0;
+            for (PersistableItem item : service.getPageForLabels(getLabels(clazz), pageRequest.getAfterPersistenceId(),
+                    read, PAGE_BATCH)) {
+                fetched++;
+                if (!clazz.isInstance(item)) {
+                    continue;
+                }
+                if (skip > 0) {
+                    skip--;
+                } else if (page.isFull()) {
+                    page.moreAvailable();
+                    return page;
+                } else {
+                    page.addResult(item);
+                }
+            }
+            read += fetched;
+        } while (fetched == PAGE_BATCH);
+        return page;
+    }
+
+    @Override
+    public <T extends PersistableItem> T get(long id, Class<T> clazz, LoadProfile loadProfile)
+            throws PersistenceException {
         HashMap<String, Object> searchParameters = new HashMap<>();
         searchParameters.put("id", id);
-        T retrieved = (T) service.getOneForLabels(getLabels(clazz), searchParameters);
+        T retrieved = null;
+        for (PersistableItem item : service.getForLabels(getLabels(clazz), searchParameters, loadProfile)) {
+            if (clazz.isInstance(item) && (retrieved == null || item.getVersion() > retrieved.getVersion())) {
+                retrieved = clazz.cast(item);
+            }
+        }
         if (retrieved == null) {
             throw new PersistenceException("Item/Class combination not found");
         }
         return retrieved;
     }
 
+    @Override
+    public <T extends PersistableItem> T get(long id, Class<T> clazz) throws PersistenceException {
+        HashMap<String, Object> searchParameters = new HashMap<>();
+        searchParameters.put("id", id);
+        PersistableItem retrieved = service.getOneForLabels(getLabels(clazz), searchParameters);
+        if (!clazz.isInstance(retrieved)) {
+            throw new PersistenceException("Item/Class combination not found");
+        }
+        return clazz.cast(retrieved);
+    }
+
     @Override
     public List<Long> getVersions(long id) {
         try {
@@ -73,7 +283,7 @@ public class Neo4jNativePersistenceService implements PersistenceService, Neo4jU
         } catch (IllegalArgumentException e) {
             return null;
         }
-        return service.getVersions(id, visService.getCurrentVisitId(), service.getSession());
+        return service.getVersions(id);
     }
 
     @Override
@@ -81,33 +291,76 @@ public class Neo4jNativePersistenceService implements PersistenceService, Neo4jU
         HashMap<String, Object> searchParameters = new HashMap<>();
         searchParameters.put("id", id);
         searchParameters.put("version", version);
-        T retrieved = (T) service.getOneForLabels(getLabels(clazz), searchParameters);
-        if (retrieved == null) {
+        PersistableItem retrieved = service.getOneForLabels(getLabels(clazz), searchParameters);
+        if (!clazz.isInstance(retrieved)) {
             throw new PersistenceException("Item/Version pair not found");
         }
-        return retrieved;
+        return clazz.cast(retrieved);
+
+    }
 
+    @Override
+    public <T extends PersistableItem> List<T> getArchives(long id, long fromVersion, long toVersion, Class<T> clazz)
+            throws PersistenceException {
+        HashMap<String, Object> searchParameters = new HashMap<>();
+        searchParameters.put("id", id);
+        List<T> archives = new ArrayList<>();
+        for (PersistableItem item : service.getForLabels(getLabels(clazz), searchParameters)) {
+            if (!clazz.isInstance(item)) {
+                throw new PersistenceException("Item/Class combination not found");
+            }
+            if (item.getVersion() >= fromVersion && item.getVersion() <= toVersion) {
+                archives.add(clazz.cast(item));
+            }
+        }
+        archives.sort(Comparator.comparingLong(PersistableItem::getVersion));
+        return archives;
     }
 
+    /**
+     * Items are stored as nodes shared by every visit, so the visit makes no difference here.
+     */
     public List<Long> getVersions(long id, String visitId) {
-        return getVersions(id, visitId, service.getSession());
+        return getVersions(id);
     }
 
-    public void tearDown() {
+    public synchronized void tearDown() {
         service.purgeDatabase();
+        textIndex = null;
     }
 
-    private ArrayList<String> getLabels(Class clazz) {
-        ArrayList<String> labels = new ArrayList<>();
-        for (Class each : clazz.getClasses()) {
-            if (each.equals(PersistableItem.class)) {
-                return labels;
-            }
-            if (!Modifier.isAbstract(each.getModifiers())) {
-                labels.add(each.getSimpleName());
+    /**
+     * Whether the nodes with the labels of {@code clazz} are exactly its instances. OGM gives abstract classes no
+     * label, so nodes of other types can share the labels of an abstract class.
+     */
+    private static boolean isLabelled(Class<?> clazz) {
+        return !Modifier.isAbstract(clazz.getModifiers());
+    }
+
+    private static List<PersistableItem> instances(Iterable<PersistableItem> items, Class<?> clazz) {
+        List<PersistableItem> instances = new ArrayList<>();
+        for (PersistableItem item : items) {
+            if (clazz.isInstance(item)) {
+                instances.add(item);
             }
         }
-        return labels;
+        return instances;
+    }
+
+    /**
+     * Labels of the concrete classes from {@code clazz} up to {@link PersistableItem}, most specific first. These are
+     * empty for an abstract class with only abstract ancestors.
+     */
+    private static ArrayList<String> getLabels(Class<?> clazz) {
+        return labelsByClass.computeIfAbsent(clazz, key -> {
+            ArrayList<String> labels = new ArrayList<>();
+            for (Class<?> each = key; each != null && !PersistableItem.class.equals(each); each = each.getSuperclass()) {
+                if (!Modifier.isAbstract(each.getModifiers())) {
+                    labels.add(each.getSimpleName());
+                }
+            }
+            return labels;
+        });
     }
 
 }
@@ -0,0 +1,118 @@
+package uk.ac.diamond.daq.persistence.service.impl;
+
+import org.neo4j.ogm.metadata.ClassInfo;
+import org.neo4j.ogm.metadata.FieldInfo;
+import org.neo4j.ogm.session.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.ac.diamond.daq.persistence.annotation.Searchable;
+import uk.ac.diamond.daq.persistence.data.PersistableItem;
+import uk.ac.diamond.daq.persistence.service.ItemExtractor;
+import uk.ac.diamond.daq.persistence.service.Neo4jSessionFactory;
+import uk.ac.diamond.daq.persistence.service.PersistenceException;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import static uk.ac.diamond.daq.persistence.service.impl.Neo4jJsonPersistenceService.ACTIVE_LABEL;
+import static uk.ac.diamond.daq.persistence.service.impl.Neo4jJsonPersistenceService.CONTAINER_KEY;
+import static uk.ac.diamond.daq.persistence.service.impl.Neo4jJsonPersistenceService.CONTAINER_LABEL;
+import static uk.ac.diamond.daq.persistence.service.impl.Neo4jJsonPersistenceService.SEARCHABLE_PREFIX;
+
+/**
+ * Creates the constraints and indexes the Neo4j persistence services query by. Applications run {@link #bootstrap}
+ * once at startup, before the services are used, for instance as the init method of a bean the services depend on.
+ * Schema statements are idempotent in Neo4j and cannot share a transaction with data writes, so each one runs on its
+ * own.
+ */
+public class Neo4jSchemaBootstrap {
+    private static final Logger log = LoggerFactory.getLogger(Neo4jSchemaBootstrap.class);
+
+    // Gives containers written before the key was introduced their key, so the constraint covers them too
+    private static final String MIGRATE_CONTAINER_KEYS = "MATCH (n:" + CONTAINER_LABEL + ")"
+            + " WHERE n." + CONTAINER_KEY + " IS NULL"
+            + " SET n." + CONTAINER_KEY + " = toString(n.persistenceId) + ':' + toString(n.version) + ':' + n.visitId";
+    // A single property, as composite node keys need enterprise edition
+    private static final String UNIQUE_CONTAINER_KEY = "CREATE CONSTRAINT ON (n:" + CONTAINER_LABEL + ")"
+            + " ASSERT n." + CONTAINER_KEY + " IS UNIQUE";
+    private static final String COUNTER_KEY = "CREATE CONSTRAINT ON (c:" + Neo4jIdAllocator.COUNTER_LABEL + ")"
+            + " ASSERT c.name IS UNIQUE";
+    private static final String CONTAINER_INDEX = "CREATE INDEX ON :" + CONTAINER_LABEL
+            + "(persistenceId, version, visitId)";
+    // Unlike the other schema statements this fails when the index exists already
+    private static final String TEXT_INDEX = "CALL db.index.fulltext.createNodeIndex('"
+            + Neo4jJsonPersistenceService.TEXT_INDEX + "', ['" + ACTIVE_LABEL + "'], ['"
+            + Neo4jJsonPersistenceService.SEARCHABLE_TEXT + "'])";
+
+    private final Neo4jSessionFactory sessionFactory;
+    private boolean bootstrapped;
+
+    public Neo4jSchemaBootstrap(Neo4jSessionFactory sessionFactory) {
+        this.sessionFactory = sessionFactory;
+    }
+
+    /**
+     * Creates the schema, unless this has already done so.
+     */
+    public synchronized void bootstrap() throws PersistenceException {
+        if (bootstrapped) {
+            return;
+        }
+        try {
+            Session session = sessionFactory.getSessionFactory().openSession();
+            run(session, MIGRATE_CONTAINER_KEYS);
+            run(session, UNIQUE_CONTAINER_KEY);
+            run(session, CONTAINER_INDEX);
+            run(session, COUNTER_KEY);
+            for (String index : getIndexes()) {
+                run(session, index);
+            }
+            try {
+                run(session, TEXT_INDEX);
+            } catch (RuntimeException e) {
+                if (e.getMessage() == null || !e.getMessage().contains("already exists")) {
+                    throw e;
+                }
+            }
+        } catch (RuntimeException e) {
+            throw new PersistenceException("Failed to create Neo4j schema", e);
+        }
+        bootstrapped = true;
+    }
+
+    Set<String> getIndexes() throws PersistenceException {
+        Set<String> indexes = new LinkedHashSet<>();
+        indexes.add(index(CONTAINER_LABEL, "visitId"));
+        indexes.add(index(ACTIVE_LABEL, "persistenceId"));
+        for (ClassInfo classInfo : sessionFactory.getSessionFactory().metaData().persistentEntities()) {
+            if (classInfo.isInterface() || !classInfo.name().startsWith(Neo4jSessionFactory.ENTITY_PACKAGE)) {
+                continue;
+            }
+            String label = classInfo.neo4jName();
+            indexes.add(index(label, "id"));
+            for (FieldInfo fieldInfo : classInfo.propertyFields()) {
+                if (fieldInfo.getField() != null && fieldInfo.getField().isAnnotationPresent(Searchable.class)) {
+                    indexes.add(index(label, fieldInfo.property()));
+                }
+            }
+            // The JSON service keeps the searchable values of the active version on its container
+            Class<?> underlyingClass = classInfo.getUnderlyingClass();
+            if (underlyingClass != null && PersistableItem.class.isAssignableFrom(underlyingClass)) {
+                for (String key : ItemExtractor.forSearching(underlyingClass).getTypes().keySet()) {
+                    indexes.add(index(ACTIVE_LABEL, SEARCHABLE_PREFIX + key));
+                }
+            }
+        }
+        return indexes;
+    }
+
+    private static String index(String label, String property) {
+        return "CREATE INDEX ON :" + CypherQuery.identifier(label) + "(" + CypherQuery.identifier(property) + ")";
+    }
+
+    private static void run(Session session, String statement) {
+        log.debug("Running schema statement {}", statement);
+        session.query(statement, Collections.emptyMap());
+    }
+}
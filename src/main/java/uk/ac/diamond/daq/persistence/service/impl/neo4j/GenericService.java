@@ -1,67 +1,136 @@
 package uk.ac.diamond.daq.persistence.service.impl.neo4j;
 
-import org.neo4j.ogm.session.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import uk.ac.diamond.daq.persistence.data.PersistableItem;
+import uk.ac.diamond.daq.persistence.service.LoadProfile;
 import uk.ac.diamond.daq.persistence.service.Neo4jSessionFactory;
 import uk.ac.diamond.daq.persistence.service.PersistenceException;
+import uk.ac.diamond.daq.persistence.service.SearchPredicate;
 import uk.ac.diamond.daq.persistence.service.SearchResult;
+import uk.ac.diamond.daq.persistence.service.SortRequest;
+import uk.ac.diamond.daq.persistence.service.impl.CypherQuery;
 import uk.ac.diamond.daq.persistence.service.impl.Neo4jUtil;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 
 public abstract class GenericService<T extends PersistableItem> implements Service<T>, Neo4jUtil {
+    private static final Logger log = LoggerFactory.getLogger(GenericService.class);
 
-    private static final int DEPTH_LIST = 0;
     private static final int DEPTH_ENTITY = 1;
-    protected Session session = Neo4jSessionFactory.getInstance().getNeo4jSession();
 
-    public Session getSession() {
-        return this.session;
+    private static final CypherQuery VERSIONS = CypherQuery.match()
+            .where("id", CypherQuery.Operator.EQUALS)
+            .orderBy("version")
+            .build();
+
+    protected final GraphStore graphStore;
+
+    protected GenericService() {
+        this(Neo4jSessionFactory.getInstance());
+    }
+
+    protected GenericService(Neo4jSessionFactory sessionFactory) {
+        this(new OgmGraphStore(sessionFactory));
+    }
+
+    protected GenericService(GraphStore graphStore) {
+        this.graphStore = graphStore;
     }
 
     @Override
     public Iterable<T> findAll() {
-        return session.loadAll(getEntityType(), DEPTH_LIST);
+        return findAll(LoadProfile.LISTING);
+    }
+
+    @Override
+    public Iterable<T> findAll(LoadProfile loadProfile) {
+        return graphStore.loadAll(getEntityType(), loadProfile.getDepth());
     }
 
     @Override
     public T find(Long id) {
-        return session.load(getEntityType(), id, DEPTH_ENTITY);
+        return find(id, LoadProfile.ENTITY);
     }
 
     @Override
-    public void delete(Long id) {
-        try {
-            session.delete(session.load(getEntityType(), id));
-        } catch (NullPointerException e) {
+    public T find(Long id, LoadProfile loadProfile) {
+        return graphStore.load(getEntityType(), id, loadProfile.getDepth());
+    }
 
+    @Override
+    public boolean delete(Long id) {
+        try {
+            return graphStore.delete(getEntityType(), id);
+        } catch (PersistenceException e) {
+            log.error("Failed to delete item {}", id, e);
+            return false;
         }
     }
 
     @Override
     public void createOrUpdate(T object) throws PersistenceException {
-        session.save(object, DEPTH_ENTITY);
+        graphStore.save(Collections.singletonList(object), DEPTH_ENTITY);
+    }
+
+    @Override
+    public void createOrUpdateAll(Collection<T> objects) throws PersistenceException {
+        graphStore.save(objects, DEPTH_ENTITY);
     }
 
     public abstract Class<T> getEntityType();
 
     public SearchResult getAll(HashMap<String, Object> searchParameters) throws PersistenceException {
-        return formatSearchResults(session.query(getEntityType(), generateCypherString(searchParameters), searchParameters));
-
+        return formatSearchResults(graphStore.query(getEntityType(),
+                searchQuery(Collections.emptyList(), searchParameters.keySet()), searchParameters, 0));
     }
 
     public void purgeDatabase() {
-        session.purgeDatabase();
+        graphStore.purge();
     }
 
     public T getOne(HashMap<String, Object> searchParameters) {
-        return session.queryForObject(getEntityType(), generateCypherString(searchParameters), searchParameters);
+        Iterator<T> found = graphStore.query(getEntityType(),
+                searchQuery(Collections.emptyList(), searchParameters.keySet()), searchParameters, 0).iterator();
+        return found.hasNext() ? found.next() : null;
+    }
+
+    public List<Long> getVersions(long id) {
+        List<Long> versions = new ArrayList<>();
+        for (T item : graphStore.query(getEntityType(), VERSIONS, Collections.singletonMap("id", id), 0)) {
+            versions.add(item.getVersion());
+        }
+        return versions;
     }
 
     public abstract Iterable<T> getForLabels(ArrayList<String> labels, HashMap<String, Object> searchParameters);
 
+    public abstract Iterable<T> getForLabels(ArrayList<String> labels, HashMap<String, Object> searchParameters,
+                                             LoadProfile loadProfile);
+
+    public Iterable<T> getForLabels(ArrayList<String> labels, SearchPredicate predicate, LoadProfile loadProfile) {
+        return getForLabels(labels, predicate, null, loadProfile);
+    }
+
+    public abstract Iterable<T> getForLabels(ArrayList<String> labels, SearchPredicate predicate,
+                                             SortRequest sortRequest, LoadProfile loadProfile);
+
+    public long countForLabels(ArrayList<String> labels, SearchPredicate predicate) {
+        return graphStore.count(labels, predicate);
+    }
+
+    public Map<Object, Long> countByForLabels(ArrayList<String> labels, String property, SearchPredicate predicate) {
+        return graphStore.countBy(labels, property, predicate);
+    }
+
     public abstract T getOneForLabels(ArrayList<String> labels, HashMap<String, Object> searchParameters);
 
-}
+    public abstract Iterable<T> getPageForLabels(ArrayList<String> labels, long afterId, int skip, int limit);
 
+}
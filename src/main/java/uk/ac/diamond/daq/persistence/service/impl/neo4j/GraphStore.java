@@ -0,0 +1,50 @@
+package uk.ac.diamond.daq.persistence.service.impl.neo4j;
+
+import uk.ac.diamond.daq.persistence.service.PersistenceException;
+import uk.ac.diamond.daq.persistence.service.SearchPredicate;
+import uk.ac.diamond.daq.persistence.service.SortRequest;
+import uk.ac.diamond.daq.persistence.service.impl.CypherQuery;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The labelled property graph the native services read and write. Depths count relationships followed from the
+ * loaded nodes, as in OGM.
+ */
+public interface GraphStore {
+
+    <T> Iterable<T> loadAll(Class<T> type, int depth);
+
+    <T> T load(Class<T> type, Long id, int depth);
+
+    /**
+     * @param query a query whose conditions are {@link CypherQuery.Condition}s or predicates, as Cypher text may only
+     *              be understood by a store that runs it
+     * @throws IllegalArgumentException if the store cannot evaluate the query
+     */
+    <T> Iterable<T> query(Class<T> type, CypherQuery query, Map<String, ?> parameters, int depth);
+
+    /**
+     * @param sortRequest the order of the nodes, or null if any order will do
+     * @return the nodes with all of the labels whose properties match the predicate
+     */
+    <T> Iterable<T> query(Class<T> type, List<String> labels, SearchPredicate predicate, SortRequest sortRequest,
+                          int depth);
+
+    long count(List<String> labels, SearchPredicate predicate);
+
+    /**
+     * @return the number of matching nodes with each value of the property, keyed by the value as stored
+     */
+    Map<Object, Long> countBy(List<String> labels, String property, SearchPredicate predicate);
+
+    void save(Collection<?> entities, int depth) throws PersistenceException;
+
+    <T> boolean delete(Class<T> type, Long id) throws PersistenceException;
+
+    void createIndex(String label, String property) throws PersistenceException;
+
+    void purge();
+}
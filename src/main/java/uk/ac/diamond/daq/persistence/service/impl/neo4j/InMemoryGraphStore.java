@@ -0,0 +1,535 @@
+package uk.ac.diamond.daq.persistence.service.impl.neo4j;
+
+import uk.ac.diamond.daq.persistence.data.PersistableItem;
+import uk.ac.diamond.daq.persistence.service.PersistenceException;
+import uk.ac.diamond.daq.persistence.service.SearchPredicate;
+import uk.ac.diamond.daq.persistence.service.SortRequest;
+import uk.ac.diamond.daq.persistence.service.impl.CypherPredicate;
+import uk.ac.diamond.daq.persistence.service.impl.CypherQuery;
+
+import java.io.*;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.*;
+
+/**
+ * A labelled property graph held in memory, for tests and hosts without a Neo4j server. Each item is a node labelled
+ * with the simple names of the concrete classes in its hierarchy, as OGM labels them, with its scalar fields as
+ * properties. Nodes keep a serialised copy of the item, so callers never share instances with the store, and references
+ * to other items are resolved by id when loaded, up to the requested depth.
+ * <p>
+ * Queries are evaluated in memory, so their conditions must be {@link CypherQuery.Condition}s or
+ * {@link CypherPredicate}s rather than Cypher text.
+ */
+public class InMemoryGraphStore implements GraphStore {
+
+    private final Map<Long, Node> nodes = new HashMap<>();
+    private final Map<String, Set<Long>> labelIndex = new HashMap<>();
+    private final Map<String, Map<String, Map<Object, Set<Long>>>> propertyIndexes = new HashMap<>();
+
+    @Override
+    public synchronized <T> Iterable<T> loadAll(Class<T> type, int depth) {
+        List<T> loaded = new ArrayList<>();
+        Copies copies = new Copies();
+        for (Node node : nodes.values()) {
+            if (type.isAssignableFrom(node.type)) {
+                loaded.add(type.cast(copy(node, depth, copies)));
+            }
+        }
+        return loaded;
+    }
+
+    @Override
+    public synchronized <T> T load(Class<T> type, Long id, int depth) {
+        Node node = nodes.get(id);
+        if (node == null || !type.isAssignableFrom(node.type)) {
+            return null;
+        }
+        return type.cast(copy(node, depth, new Copies()));
+    }
+
+    @Override
+    public synchronized <T> Iterable<T> query(Class<T> type, CypherQuery query, Map<String, ?> parameters,
+                                              int depth) {
+        List<Node> matched = new ArrayList<>();
+        for (Long id : candidates(query, parameters)) {
+            Node node = nodes.get(id);
+            if (type.isAssignableFrom(node.type) && matches(node, query, parameters)) {
+                matched.add(node);
+            }
+        }
+        if (query.getOrderBy() != null) {
+            // Cypher orders missing values as the largest, unless the query asks for them as the smallest
+            Comparator<Node> order = (first, second) -> compare(first.properties.get(query.getOrderBy()),
+                    second.properties.get(query.getOrderBy()), query.isNullable());
+            matched.sort(query.isDescending() ? order.reversed() : order);
+        }
+        int from = 0;
+        int to = matched.size();
+        if (query.isPaged()) {
+            from = Math.min(((Number) parameters.get("skip")).intValue(), to);
+        }
+        if (query.isPaged() || query.isLimited()) {
+            to = Math.min(from + ((Number) parameters.get("limit")).intValue(), to);
+        }
+
+        List<T> loaded = new ArrayList<>();
+        Copies copies = new Copies();
+        for (Node node : matched.subList(from, to)) {
+            loaded.add(type.cast(copy(node, depth, copies)));
+        }
+        return loaded;
+    }
+
+    @Override
+    public synchronized <T> Iterable<T> query(Class<T> type, List<String> labels, SearchPredicate predicate,
+                                              SortRequest sortRequest, int depth) {
+        List<Node> matched = match(type, labels, predicate);
+        if (sortRequest != null) {
+            matched = sortRequest.sort(matched, node -> node.properties.get(sortRequest.getKey()));
+        }
+
+        List<T> loaded = new ArrayList<>();
+        Copies copies = new Copies();
+        for (Node node : matched) {
+            loaded.add(type.cast(copy(node, depth, copies)));
+        }
+        return loaded;
+    }
+
+    @Override
+    public synchronized long count(List<String> labels, SearchPredicate predicate) {
+        return match(Object.class, labels, predicate).size();
+    }
+
+    @Override
+    public synchronized Map<Object, Long> countBy(List<String> labels, String property, SearchPredicate predicate) {
+        Map<Object, Long> counts = new HashMap<>();
+        for (Node node : match(Object.class, labels, predicate)) {
+            Object value = node.properties.get(property);
+            if (value != null) {
+                counts.merge(value, 1L, Long::sum);
+            }
+        }
+        return counts;
+    }
+
+    private List<Node> match(Class<?> type, List<String> labels, SearchPredicate predicate) {
+        Set<Long> candidates = predicate.accept(new IndexLookup(labels));
+        if (candidates == null) {
+            candidates = labelled(labels);
+        }
+        List<Node> matched = new ArrayList<>();
+        for (Long id : candidates) {
+            Node node = nodes.get(id);
+            if (type.isAssignableFrom(node.type) && node.labels.containsAll(labels)
+                    && predicate.test(node.properties)) {
+                matched.add(node);
+            }
+        }
+        return matched;
+    }
+
+    @Override
+    public synchronized void save(Collection<?> entities, int depth) throws PersistenceException {
+        Map<Long, Node> written = new LinkedHashMap<>();
+        for (Object entity : entities) {
+            if (!(entity instanceof PersistableItem)) {
+                throw new PersistenceException("Cannot store " + entity + ", only persistable items are supported");
+            }
+            collect((PersistableItem) entity, depth, written);
+        }
+        // Nodes are only replaced once every item has been serialised, so a failed save changes nothing
+        for (Node node : written.values()) {
+            unindex(nodes.put(node.id, node));
+            index(node);
+        }
+    }
+
+    @Override
+    public synchronized <T> boolean delete(Class<T> type, Long id) {
+        Node node = nodes.get(id);
+        if (node == null || !type.isAssignableFrom(node.type)) {
+            return false;
+        }
+        unindex(nodes.remove(id));
+        return true;
+    }
+
+    @Override
+    public synchronized void createIndex(String label, String property) {
+        Map<Object, Set<Long>> index = propertyIndexes.computeIfAbsent(label, key -> new HashMap<>())
+                .get(property);
+        if (index != null) {
+            return;
+        }
+        index = new HashMap<>();
+        propertyIndexes.get(label).put(property, index);
+        for (Long id : labelIndex.getOrDefault(label, Collections.emptySet())) {
+            Object value = nodes.get(id).properties.get(property);
+            if (value != null) {
+                index.computeIfAbsent(value, key -> new HashSet<>()).add(id);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void purge() {
+        nodes.clear();
+        labelIndex.clear();
+        for (Map<String, Map<Object, Set<Long>>> indexes : propertyIndexes.values()) {
+            for (Map<Object, Set<Long>> index : indexes.values()) {
+                index.clear();
+            }
+        }
+    }
+
+    private void collect(PersistableItem item, int depth, Map<Long, Node> written) throws PersistenceException {
+        if (written.containsKey(item.getId())) {
+            return;
+        }
+        written.put(item.getId(), new Node(item));
+        if (depth == 0) {
+            return;
+        }
+        for (Field field : ItemGraph.fields(item.getClass())) {
+            for (PersistableItem referenced : ItemGraph.references(field, item)) {
+                collect(referenced, depth - 1, written);
+            }
+        }
+    }
+
+    private Set<Long> candidates(CypherQuery query, Map<String, ?> parameters) {
+        for (CypherPredicate predicate : query.getPredicates()) {
+            Set<Long> found = predicate.bind(parameters).accept(new IndexLookup(query.getLabels()));
+            if (found != null) {
+                return found;
+            }
+        }
+        for (String label : query.getLabels()) {
+            Map<String, Map<Object, Set<Long>>> indexes = propertyIndexes.getOrDefault(label, Collections.emptyMap());
+            for (CypherQuery.Condition condition : query.getConditions()) {
+                Map<Object, Set<Long>> index = indexes.get(condition.getProperty());
+                if (index != null && condition.getOperator() == CypherQuery.Operator.EQUALS) {
+                    Object value = normalise(parameters.get(condition.getParameter()));
+                    return new HashSet<>(index.getOrDefault(value, Collections.emptySet()));
+                }
+            }
+        }
+        return labelled(query.getLabels());
+    }
+
+    private Set<Long> labelled(List<String> labels) {
+        if (labels.isEmpty()) {
+            return new HashSet<>(nodes.keySet());
+        }
+        // Labels are most selective first
+        return new HashSet<>(labelIndex.getOrDefault(labels.get(0), Collections.emptySet()));
+    }
+
+    private static boolean matches(Node node, CypherQuery query, Map<String, ?> parameters) {
+        if (!query.getExpressions().isEmpty()) {
+            throw new IllegalArgumentException("Cypher text cannot be evaluated in memory, add a CypherPredicate to "
+                    + query);
+        }
+        if (!node.labels.containsAll(query.getLabels())) {
+            return false;
+        }
+        for (CypherPredicate predicate : query.getPredicates()) {
+            if (!predicate.bind(parameters).test(node.properties)) {
+                return false;
+            }
+        }
+        for (CypherQuery.Condition condition : query.getConditions()) {
+            Object value = node.properties.get(condition.getProperty());
+            Object parameter = normalise(parameters.get(condition.getParameter()));
+            if (value == null || parameter == null) {
+                return false;
+            }
+            switch (condition.getOperator()) {
+                case EQUALS:
+                    if (!value.equals(parameter)) return false;
+                    break;
+                case CONTAINS:
+                    if (!value.toString().contains(parameter.toString())) return false;
+                    break;
+                case GREATER_THAN:
+                    if (compare(value, parameter) <= 0) return false;
+                    break;
+                case AT_LEAST:
+                    if (compare(value, parameter) < 0) return false;
+                    break;
+                case AT_MOST:
+                    if (compare(value, parameter) > 0) return false;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unsupported operator " + condition.getOperator());
+            }
+        }
+        return true;
+    }
+
+    private static int compare(Object first, Object second) {
+        return compare(first, second, false);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static int compare(Object first, Object second, boolean nullsSmallest) {
+        if (first == null || second == null) {
+            int compared = first == null ? (second == null ? 0 : 1) : -1;
+            return nullsSmallest ? -compared : compared;
+        }
+        if (first instanceof Long && second instanceof Long) {
+            return Long.compare((Long) first, (Long) second);
+        }
+        if (first instanceof Number && second instanceof Number) {
+            return Double.compare(((Number) first).doubleValue(), ((Number) second).doubleValue());
+        }
+        if (first.getClass().equals(second.getClass()) && first instanceof Comparable) {
+            return ((Comparable<Object>) first).compareTo(second);
+        }
+        return first.toString().compareTo(second.toString());
+    }
+
+    /**
+     * Property values are compared the way Cypher does, so integral numbers of any width are equal.
+     */
+    private static Object normalise(Object value) {
+        if (value instanceof Byte || value instanceof Short || value instanceof Integer) {
+            return ((Number) value).longValue();
+        }
+        if (value instanceof Float) {
+            return ((Float) value).doubleValue();
+        }
+        if (value instanceof Character || value instanceof Enum) {
+            return value.toString();
+        }
+        return value;
+    }
+
+    private void index(Node node) {
+        for (String label : node.labels) {
+            labelIndex.computeIfAbsent(label, key -> new HashSet<>()).add(node.id);
+            for (Map.Entry<String, Map<Object, Set<Long>>> index
+                    : propertyIndexes.getOrDefault(label, Collections.emptyMap()).entrySet()) {
+                Object value = node.properties.get(index.getKey());
+                if (value != null) {
+                    index.getValue().computeIfAbsent(value, key -> new HashSet<>()).add(node.id);
+                }
+            }
+        }
+    }
+
+    private void unindex(Node node) {
+        if (node == null) {
+            return;
+        }
+        for (String label : node.labels) {
+            labelIndex.getOrDefault(label, Collections.emptySet()).remove(node.id);
+            for (Map.Entry<String, Map<Object, Set<Long>>> index
+                    : propertyIndexes.getOrDefault(label, Collections.emptyMap()).entrySet()) {
+                Set<Long> ids = index.getValue().get(node.properties.get(index.getKey()));
+                if (ids != null) {
+                    ids.remove(node.id);
+                }
+            }
+        }
+    }
+
+    private Object copy(Node node, int depth, Copies copies) {
+        Object copied = copies.get(node.id, depth);
+        if (copied != null) {
+            return copied;
+        }
+        try (ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(node.entity))) {
+            copied = input.readObject();
+        } catch (IOException | ClassNotFoundException e) {
+            throw new IllegalStateException("Failed to read node " + node.id, e);
+        }
+        copies.put(node.id, depth, copied);
+        try {
+            for (Field field : ItemGraph.fields(copied.getClass())) {
+                resolveReferences(field, copied, depth, copies);
+            }
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Failed to resolve references of node " + node.id, e);
+        }
+        return copied;
+    }
+
+    /**
+     * Replaces the copies of referenced items serialised with an item by the stored nodes, or drops them once the
+     * depth is used up.
+     */
+    @SuppressWarnings("unchecked")
+    private void resolveReferences(Field field, Object item, int depth, Copies copies)
+            throws IllegalAccessException {
+        Object value = field.get(item);
+        if (value instanceof PersistableItem) {
+            field.set(item, depth == 0 ? null : resolve((PersistableItem) value, depth, copies));
+        } else if (value instanceof List) {
+            ListIterator<Object> iterator = ((List<Object>) value).listIterator();
+            while (iterator.hasNext()) {
+                Object element = iterator.next();
+                if (element instanceof PersistableItem) {
+                    if (depth == 0) {
+                        iterator.remove();
+                    } else {
+                        iterator.set(resolve((PersistableItem) element, depth, copies));
+                    }
+                }
+            }
+        } else if (value instanceof Map) {
+            Iterator<Map.Entry<Object, Object>> iterator = ((Map<Object, Object>) value).entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<Object, Object> entry = iterator.next();
+                if (entry.getValue() instanceof PersistableItem) {
+                    if (depth == 0) {
+                        iterator.remove();
+                    } else {
+                        entry.setValue(resolve((PersistableItem) entry.getValue(), depth, copies));
+                    }
+                }
+            }
+        }
+    }
+
+    private Object resolve(PersistableItem reference, int depth, Copies copies) {
+        Node node = nodes.get(reference.getId());
+        return node == null ? reference : copy(node, depth - 1, copies);
+    }
+
+    private static boolean isProperty(Object value) {
+        return value instanceof Number || value instanceof String || value instanceof Boolean
+                || value instanceof Character || value instanceof Enum;
+    }
+
+    /**
+     * The nodes a predicate could match according to the property indexes, or null if the indexes do not cover it.
+     */
+    private final class IndexLookup implements SearchPredicate.Visitor<Set<Long>> {
+        private final List<String> labels;
+
+        private IndexLookup(List<String> labels) {
+            this.labels = labels;
+        }
+
+        @Override
+        public Set<Long> eq(String key, Object value) {
+            for (String label : labels) {
+                Map<Object, Set<Long>> index = propertyIndexes.getOrDefault(label, Collections.emptyMap()).get(key);
+                if (index != null) {
+                    return new HashSet<>(index.getOrDefault(normalise(value), Collections.emptySet()));
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public Set<Long> ne(String key, Object value) {
+            return null;
+        }
+
+        @Override
+        public Set<Long> range(String key, Object from, Object to) {
+            return null;
+        }
+
+        @Override
+        public Set<Long> prefix(String key, String prefix) {
+            return null;
+        }
+
+        @Override
+        public Set<Long> in(String key, List<Object> values) {
+            Set<Long> found = new HashSet<>();
+            for (Object value : values) {
+                Set<Long> ids = eq(key, value);
+                if (ids == null) {
+                    return null;
+                }
+                found.addAll(ids);
+            }
+            return found;
+        }
+
+        @Override
+        public Set<Long> and(List<Set<Long>> operands) {
+            Set<Long> found = null;
+            for (Set<Long> ids : operands) {
+                if (ids != null) {
+                    if (found == null) {
+                        found = ids;
+                    } else {
+                        found.retainAll(ids);
+                    }
+                }
+            }
+            return found;
+        }
+
+        @Override
+        public Set<Long> or(List<Set<Long>> operands) {
+            Set<Long> found = new HashSet<>();
+            for (Set<Long> ids : operands) {
+                if (ids == null) {
+                    return null;
+                }
+                found.addAll(ids);
+            }
+            return found;
+        }
+    }
+
+    /**
+     * The items copied by one load, so that each node is read once and cycles end. A node reached with less depth left
+     * has fewer of its references resolved, so it is copied once per depth.
+     */
+    private static final class Copies {
+        private final Map<Integer, Map<Long, Object>> byDepth = new HashMap<>();
+
+        private Object get(long id, int depth) {
+            return byDepth.getOrDefault(depth, Collections.emptyMap()).get(id);
+        }
+
+        private void put(long id, int depth, Object copy) {
+            byDepth.computeIfAbsent(depth, key -> new HashMap<>()).put(id, copy);
+        }
+    }
+
+    private static final class Node {
+        private final long id;
+        private final Class<?> type;
+        private final Set<String> labels = new HashSet<>();
+        private final Map<String, Object> properties = new HashMap<>();
+        private final byte[] entity;
+
+        private Node(PersistableItem item) throws PersistenceException {
+            this.id = item.getId();
+            this.type = item.getClass();
+            for (Class<?> each = type; each != null && !PersistableItem.class.equals(each); each = each.getSuperclass()) {
+                if (!Modifier.isAbstract(each.getModifiers())) {
+                    labels.add(each.getSimpleName());
+                }
+            }
+            try {
+                for (Field field : ItemGraph.fields(type)) {
+                    Object value = field.get(item);
+                    if (isProperty(value)) {
+                        properties.put(field.getName(), normalise(value));
+                    }
+                }
+            } catch (IllegalAccessException e) {
+                throw new PersistenceException("Failed to read properties of " + item, e);
+            }
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream output = new ObjectOutputStream(bytes)) {
+                output.writeObject(item);
+            } catch (IOException e) {
+                throw new PersistenceException("Failed to copy item " + item.getId(), e);
+            }
+            this.entity = bytes.toByteArray();
+        }
+    }
+}
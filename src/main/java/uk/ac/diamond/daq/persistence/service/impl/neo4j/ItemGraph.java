@@ -0,0 +1,77 @@
+package uk.ac.diamond.daq.persistence.service.impl.neo4j;
+
+import uk.ac.diamond.daq.persistence.data.PersistableItem;
+import uk.ac.diamond.daq.persistence.service.PersistenceException;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Finds the items a native node refers to, as OGM maps them: through fields holding an item, or a collection or map
+ * of items.
+ */
+public final class ItemGraph {
+    private static final Map<Class<?>, List<Field>> fieldsByClass = new ConcurrentHashMap<>();
+
+    private ItemGraph() {
+    }
+
+    /**
+     * @return the item and each distinct item it refers to, directly or through others, the item first
+     */
+    public static List<PersistableItem> of(PersistableItem item) throws PersistenceException {
+        List<PersistableItem> items = new ArrayList<>();
+        Set<PersistableItem> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<PersistableItem> pending = new ArrayDeque<>();
+        pending.add(item);
+        while (!pending.isEmpty()) {
+            PersistableItem each = pending.poll();
+            if (!visited.add(each)) {
+                continue;
+            }
+            items.add(each);
+            for (Field field : fields(each.getClass())) {
+                pending.addAll(references(field, each));
+            }
+        }
+        return items;
+    }
+
+    static List<PersistableItem> references(Field field, Object item) throws PersistenceException {
+        Object value;
+        try {
+            value = field.get(item);
+        } catch (IllegalAccessException e) {
+            throw new PersistenceException("Failed to read field " + field.getName() + " of " + item, e);
+        }
+        List<PersistableItem> references = new ArrayList<>();
+        if (value instanceof PersistableItem) {
+            references.add((PersistableItem) value);
+        } else if (value instanceof Collection || value instanceof Map) {
+            Collection<?> elements = value instanceof Map ? ((Map<?, ?>) value).values() : (Collection<?>) value;
+            for (Object element : elements) {
+                if (element instanceof PersistableItem) {
+                    references.add((PersistableItem) element);
+                }
+            }
+        }
+        return references;
+    }
+
+    static List<Field> fields(Class<?> clazz) {
+        return fieldsByClass.computeIfAbsent(clazz, key -> {
+            List<Field> fields = new ArrayList<>();
+            for (Class<?> each = key; each != null && !Object.class.equals(each); each = each.getSuperclass()) {
+                for (Field field : each.getDeclaredFields()) {
+                    if (!Modifier.isStatic(field.getModifiers()) && !Modifier.isTransient(field.getModifiers())) {
+                        field.setAccessible(true);
+                        fields.add(field);
+                    }
+                }
+            }
+            return fields;
+        });
+    }
+}
@@ -0,0 +1,132 @@
+package uk.ac.diamond.daq.persistence.service.impl.neo4j;
+
+import org.neo4j.ogm.session.Session;
+import uk.ac.diamond.daq.persistence.service.Neo4jSessionFactory;
+import uk.ac.diamond.daq.persistence.service.PersistenceException;
+import uk.ac.diamond.daq.persistence.service.SearchPredicate;
+import uk.ac.diamond.daq.persistence.service.SortRequest;
+import uk.ac.diamond.daq.persistence.service.impl.CypherPredicate;
+import uk.ac.diamond.daq.persistence.service.impl.CypherQuery;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class OgmGraphStore implements GraphStore {
+    private static final String VALUE = "value";
+    private static final String COUNT = "count";
+
+    private final Neo4jSessionFactory sessionFactory;
+
+    public OgmGraphStore(Neo4jSessionFactory sessionFactory) {
+        this.sessionFactory = sessionFactory;
+    }
+
+    public Session getSession() {
+        return sessionFactory.getNeo4jSession();
+    }
+
+    @Override
+    public <T> Iterable<T> loadAll(Class<T> type, int depth) {
+        return getSession().loadAll(type, depth);
+    }
+
+    @Override
+    public <T> T load(Class<T> type, Long id, int depth) {
+        return getSession().load(type, id, depth);
+    }
+
+    @Override
+    public <T> Iterable<T> query(Class<T> type, CypherQuery query, Map<String, ?> parameters, int depth) {
+        Session session = getSession();
+        Iterable<T> items = session.query(type, query.getStatement(), parameters);
+        if (depth > 0) {
+            // Paths loaded into the same session fill in the relationships of the items already returned
+            session.query(type, query.withLoadDepth(depth).getStatement(), parameters);
+        }
+        return items;
+    }
+
+    @Override
+    public <T> Iterable<T> query(Class<T> type, List<String> labels, SearchPredicate predicate,
+                                 SortRequest sortRequest, int depth) {
+        CypherPredicate cypherPredicate = CypherPredicate.of(predicate, "");
+        CypherQuery.Builder builder = CypherQuery.match(labels).where(cypherPredicate);
+        Map<String, Object> parameters = new HashMap<>(cypherPredicate.getParameters());
+        if (sortRequest != null) {
+            if (sortRequest.mayLackValues()) {
+                builder.orderByNullable(sortRequest.getKey());
+            } else {
+                builder.orderBy(sortRequest.getKey());
+            }
+            if (!sortRequest.isAscending()) {
+                builder.descending();
+            }
+            if (sortRequest.isLimited()) {
+                builder.limited();
+                parameters.put("limit", sortRequest.getLimit());
+            }
+        }
+        return query(type, builder.build(), parameters, depth);
+    }
+
+    @Override
+    public long count(List<String> labels, SearchPredicate predicate) {
+        CypherPredicate cypherPredicate = CypherPredicate.of(predicate, "");
+        CypherQuery query = CypherQuery.match(labels).where(cypherPredicate)
+                .returning("count(n) AS " + COUNT).build();
+        for (Map<String, Object> row : getSession().query(query.getStatement(), cypherPredicate.getParameters())
+                .queryResults()) {
+            return ((Number) row.get(COUNT)).longValue();
+        }
+        return 0;
+    }
+
+    @Override
+    public Map<Object, Long> countBy(List<String> labels, String property, SearchPredicate predicate) {
+        CypherPredicate cypherPredicate = CypherPredicate.of(predicate, "");
+        String value = CypherPredicate.property("", property);
+        CypherQuery query = CypherQuery.match(labels).where(cypherPredicate)
+                .whereExpression(value + " IS NOT NULL")
+                .returning(value + " AS " + VALUE + ", count(n) AS " + COUNT).build();
+        Map<Object, Long> counts = new HashMap<>();
+        for (Map<String, Object> row : getSession().query(query.getStatement(), cypherPredicate.getParameters())
+                .queryResults()) {
+            counts.put(row.get(VALUE), ((Number) row.get(COUNT)).longValue());
+        }
+        return counts;
+    }
+
+    @Override
+    public void save(Collection<?> entities, int depth) throws PersistenceException {
+        sessionFactory.doInTransaction(session -> {
+            session.save(entities, depth);
+            return null;
+        });
+    }
+
+    @Override
+    public <T> boolean delete(Class<T> type, Long id) throws PersistenceException {
+        return sessionFactory.doInTransaction(session -> {
+            T entity = session.load(type, id);
+            if (entity == null) {
+                return false;
+            }
+            session.delete(entity);
+            return true;
+        });
+    }
+
+    @Override
+    public void createIndex(String label, String property) {
+        getSession().query("CREATE INDEX ON :" + CypherQuery.identifier(label) + "("
+                + CypherQuery.identifier(property) + ")", Collections.emptyMap());
+    }
+
+    @Override
+    public void purge() {
+        getSession().purgeDatabase();
+    }
+}
@@ -1,12 +1,29 @@
 package uk.ac.diamond.daq.persistence.service.impl.neo4j;
 
 import uk.ac.diamond.daq.persistence.data.PersistableItem;
+import uk.ac.diamond.daq.persistence.service.LoadProfile;
+import uk.ac.diamond.daq.persistence.service.Neo4jSessionFactory;
+import uk.ac.diamond.daq.persistence.service.SearchPredicate;
+import uk.ac.diamond.daq.persistence.service.SortRequest;
+import uk.ac.diamond.daq.persistence.service.impl.CypherQuery;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 
 public class PersistableItemService extends GenericService<PersistableItem> {
 
+    public PersistableItemService() {
+    }
+
+    public PersistableItemService(Neo4jSessionFactory sessionFactory) {
+        super(sessionFactory);
+    }
+
+    public PersistableItemService(GraphStore graphStore) {
+        super(graphStore);
+    }
+
     @Override
     public Class<PersistableItem> getEntityType() {
         return PersistableItem.class;
@@ -14,20 +31,39 @@ public class PersistableItemService extends GenericService<PersistableItem> {
 
     @Override
     public Iterable<PersistableItem> getForLabels(ArrayList<String> labels, HashMap<String, Object> searchParameters) {
-        return session.query(getEntityType(), label(generateCypherString(searchParameters), labels), searchParameters);
+        return getForLabels(labels, searchParameters, LoadProfile.LISTING);
+    }
+
+    @Override
+    public Iterable<PersistableItem> getForLabels(ArrayList<String> labels, HashMap<String, Object> searchParameters,
+                                                  LoadProfile loadProfile) {
+        return graphStore.query(getEntityType(), searchQuery(labels, searchParameters.keySet()), searchParameters,
+                loadProfile.getDepth());
+    }
+
+    @Override
+    public Iterable<PersistableItem> getForLabels(ArrayList<String> labels, SearchPredicate predicate,
+                                                  SortRequest sortRequest, LoadProfile loadProfile) {
+        return graphStore.query(getEntityType(), labels, predicate, sortRequest, loadProfile.getDepth());
     }
 
     @Override
     public PersistableItem getOneForLabels(ArrayList<String> labels, HashMap<String, Object> searchParameters) {
-        return session.queryForObject(getEntityType(), label(generateCypherString(searchParameters), labels), searchParameters);
+        Iterator<PersistableItem> found = getForLabels(labels, searchParameters).iterator();
+        return found.hasNext() ? found.next() : null;
     }
 
-    private String label(String unlabelled, ArrayList<String> labels) {
-        String labelled = "(n";
-        for (String label : labels) {
-            labelled = labelled.concat(":" + label);
-        }
-        labelled = labelled.concat(")");
-        return unlabelled.replace("(n)", labelled);
+    @Override
+    public Iterable<PersistableItem> getPageForLabels(ArrayList<String> labels, long afterId, int skip, int limit) {
+        HashMap<String, Object> parameters = new HashMap<>();
+        parameters.put("after", afterId);
+        parameters.put("skip", skip);
+        parameters.put("limit", limit);
+        CypherQuery query = CypherQuery.match(labels)
+                .where("id", CypherQuery.Operator.GREATER_THAN, "after")
+                .orderBy("id")
+                .paged()
+                .build();
+        return graphStore.query(getEntityType(), query, parameters, 0);
     }
 }
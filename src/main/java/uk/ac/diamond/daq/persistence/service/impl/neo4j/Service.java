@@ -1,16 +1,32 @@
 package uk.ac.diamond.daq.persistence.service.impl.neo4j;
 
 import uk.ac.diamond.daq.persistence.data.PersistableItem;
+import uk.ac.diamond.daq.persistence.service.LoadProfile;
 import uk.ac.diamond.daq.persistence.service.PersistenceException;
 
+import java.util.Collection;
+
 public interface Service<T extends PersistableItem> {
 
     Iterable<T> findAll();
 
+    Iterable<T> findAll(LoadProfile loadProfile);
+
     T find(Long id);
 
-    void delete(Long id);
+    T find(Long id, LoadProfile loadProfile);
+
+    /**
+     * @return true if the item was deleted, false if there was no such item or it could not be deleted
+     */
+    boolean delete(Long id);
 
     void createOrUpdate(T object) throws PersistenceException;
 
+    /**
+     * Writes the objects in one transaction, which OGM sends as one batched statement per label rather than one per
+     * object.
+     */
+    void createOrUpdateAll(Collection<T> objects) throws PersistenceException;
+
 }
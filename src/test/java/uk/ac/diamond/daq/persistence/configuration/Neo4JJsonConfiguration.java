@@ -3,9 +3,11 @@ package uk.ac.diamond.daq.persistence.configuration;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import uk.ac.diamond.daq.persistence.json.impl.DefaultJsonSerialisationFactory;
+import uk.ac.diamond.daq.persistence.service.Neo4jSessionFactory;
 import uk.ac.diamond.daq.persistence.service.PersistenceService;
 import uk.ac.diamond.daq.persistence.service.VisitService;
 import uk.ac.diamond.daq.persistence.service.impl.Neo4jJsonPersistenceService;
+import uk.ac.diamond.daq.persistence.service.impl.Neo4jSchemaBootstrap;
 import uk.ac.diamond.daq.persistence.service.impl.TestVisitService;
 
 @Configuration
@@ -16,8 +18,13 @@ public class Neo4JJsonConfiguration {
         return new TestVisitService("current");
     }
 
+    @Bean(initMethod = "bootstrap")
+    Neo4jSchemaBootstrap schemaBootstrap() {
+        return new Neo4jSchemaBootstrap(Neo4jSessionFactory.getInstance());
+    }
+
     @Bean
-    PersistenceService persistenceService(VisitService visitService) {
+    PersistenceService persistenceService(VisitService visitService, Neo4jSchemaBootstrap schemaBootstrap) {
         return new Neo4jJsonPersistenceService(new DefaultJsonSerialisationFactory(), visitService);
     }
 
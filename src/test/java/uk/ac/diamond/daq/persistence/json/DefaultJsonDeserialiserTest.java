@@ -0,0 +1,111 @@
+package uk.ac.diamond.daq.persistence.json;
+
+import org.junit.Before;
+import org.junit.Test;
+import uk.ac.diamond.daq.persistence.data.ConcreteItemB;
+import uk.ac.diamond.daq.persistence.data.ConcreteItemContainer;
+import uk.ac.diamond.daq.persistence.data.ConcreteListContainer;
+import uk.ac.diamond.daq.persistence.data.ItemContainer;
+import uk.ac.diamond.daq.persistence.data.ItemReference;
+import uk.ac.diamond.daq.persistence.data.PersistableItem;
+import uk.ac.diamond.daq.persistence.json.impl.DefaultJsonSerialisationFactory;
+import uk.ac.diamond.daq.persistence.service.LoadProfile;
+import uk.ac.diamond.daq.persistence.service.PersistenceException;
+import uk.ac.diamond.daq.persistence.service.impl.InMemoryJsonPersistenceService;
+import uk.ac.diamond.daq.persistence.service.impl.TestVisitService;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class DefaultJsonDeserialiserTest {
+    private static final String VISIT_ID = "current";
+
+    private final JsonSerialisationFactory jsonSerialisationFactory = new DefaultJsonSerialisationFactory();
+    private CountingPersistenceService persistenceService;
+    private ConcreteItemB concreteItemB;
+    private ConcreteItemContainer container;
+
+    @Before
+    public void setUp() throws PersistenceException {
+        persistenceService = new CountingPersistenceService(jsonSerialisationFactory);
+        concreteItemB = new ConcreteItemB("B", 1, 2.0);
+        persistenceService.save(concreteItemB);
+        container = new ConcreteItemContainer("Container", concreteItemB, 12);
+        persistenceService.save(container);
+        persistenceService.lookups = 0;
+    }
+
+    @Test
+    public void referencesAreLookedUp() throws PersistenceException {
+        JsonDeserialiser jsonDeserialiser = jsonSerialisationFactory.getJsonDeserialiser(persistenceService, VISIT_ID);
+        ConcreteItemContainer deserialised = jsonDeserialiser.deserialise(persistenceService.active(container));
+
+        assertEquals(concreteItemB, deserialised.getAbstractItem());
+        assertEquals(1, persistenceService.lookups);
+    }
+
+    @Test
+    public void prefetchedContainersAreNotLookedUp() throws PersistenceException {
+        JsonDeserialiser jsonDeserialiser = jsonSerialisationFactory.getJsonDeserialiser(persistenceService, VISIT_ID);
+        jsonDeserialiser.prefetch(Arrays.asList(persistenceService.active(container),
+                persistenceService.active(concreteItemB)));
+        ConcreteItemContainer deserialised = jsonDeserialiser.deserialise(persistenceService.active(container));
+
+        assertEquals(concreteItemB, deserialised.getAbstractItem());
+        assertEquals(0, persistenceService.lookups);
+    }
+
+    @Test
+    public void latestPrefetchedVersionIsUsed() throws PersistenceException {
+        ItemContainer original = persistenceService.active(concreteItemB);
+        concreteItemB.setProperty1(5);
+        persistenceService.save(concreteItemB);
+
+        JsonDeserialiser jsonDeserialiser = jsonSerialisationFactory.getJsonDeserialiser(persistenceService, VISIT_ID);
+        jsonDeserialiser.prefetch(Arrays.asList(persistenceService.active(concreteItemB), original));
+        ConcreteItemContainer deserialised = jsonDeserialiser.deserialise(persistenceService.active(container));
+
+        assertEquals(5, ((ConcreteItemB) deserialised.getAbstractItem()).getProperty1());
+    }
+
+    @Test
+    public void referencesBeyondTheDepthAreLeftUnset() throws PersistenceException {
+        ConcreteListContainer plan = new ConcreteListContainer("Plan");
+        plan.addTrigger(container);
+        persistenceService.save(plan);
+
+        JsonDeserialiser jsonDeserialiser = jsonSerialisationFactory.getJsonDeserialiser(persistenceService, VISIT_ID,
+                LoadProfile.ENTITY);
+        ConcreteListContainer deserialised = jsonDeserialiser.deserialise(persistenceService.active(plan));
+        assertEquals("Container", deserialised.getAbstractItemContainers().get(0).getName());
+        assertNull(deserialised.getAbstractItemContainers().get(0).getAbstractItem());
+
+        // The container is needed with more depth once reached directly, so it is deserialised again
+        ConcreteItemContainer direct = jsonDeserialiser.deserialise(persistenceService.active(container));
+        assertEquals(concreteItemB, direct.getAbstractItem());
+    }
+
+    /**
+     * Counts the references the deserialiser has to look up itself.
+     */
+    private static final class CountingPersistenceService extends InMemoryJsonPersistenceService {
+        private int lookups;
+
+        private CountingPersistenceService(JsonSerialisationFactory jsonSerialisationFactory) {
+            super(jsonSerialisationFactory, new TestVisitService(VISIT_ID));
+        }
+
+        private ItemContainer active(PersistableItem item) {
+            return getActive(item.getId(), VISIT_ID);
+        }
+
+        @Override
+        public <T extends PersistableItem> T get(ItemReference itemReference, JsonDeserialiser jsonDeserialiser,
+                                                 String visitId) throws PersistenceException {
+            lookups++;
+            return super.get(itemReference, jsonDeserialiser, visitId);
+        }
+    }
+}
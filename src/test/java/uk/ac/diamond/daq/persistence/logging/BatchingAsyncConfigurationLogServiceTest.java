@@ -0,0 +1,130 @@
+package uk.ac.diamond.daq.persistence.logging;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import uk.ac.diamond.daq.persistence.configuration.InMemoryConfiguration;
+import uk.ac.diamond.daq.persistence.data.ConcreteItemB;
+import uk.ac.diamond.daq.persistence.data.LogToken;
+import uk.ac.diamond.daq.persistence.data.PersistableItem;
+import uk.ac.diamond.daq.persistence.logging.impl.BatchingAsyncConfigurationLogService;
+import uk.ac.diamond.daq.persistence.logging.impl.InMemoryConfigurationLogService;
+import uk.ac.diamond.daq.persistence.service.PersistenceException;
+import uk.ac.diamond.daq.persistence.service.PersistenceService;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.*;
+
+public class BatchingAsyncConfigurationLogServiceTest {
+    private PersistenceService persistenceService;
+    private ConfigurationLogService configurationLogService;
+    private BatchingAsyncConfigurationLogService asyncLogService;
+
+    @Before
+    public void setup() {
+        ApplicationContext applicationContext = new AnnotationConfigApplicationContext(InMemoryConfiguration.class);
+        persistenceService = applicationContext.getBean(PersistenceService.class);
+        configurationLogService = applicationContext.getBean("configurationLogService", ConfigurationLogService.class);
+        asyncLogService = new BatchingAsyncConfigurationLogService(configurationLogService, 4, 3);
+    }
+
+    @After
+    public void tearDown() throws PersistenceException {
+        asyncLogService.close();
+    }
+
+    @Test
+    public void changesAreLoggedInOrder() throws Exception {
+        ConcreteItemB item = new ConcreteItemB("Item", 0, 0);
+        asyncLogService.logConfigurationChanges(item, "first change").get();
+
+        List<ConcreteItemB> others = new ArrayList<>();
+        List<CompletableFuture<LogToken>> logged = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            ConcreteItemB other = new ConcreteItemB("Other " + i, i, 0);
+            others.add(other);
+            logged.add(asyncLogService.logConfigurationChanges(other, "change " + i));
+        }
+        ConcreteItemB edited = new ConcreteItemB("Item", 1, 0);
+        edited.setId(item.getId());
+        CompletableFuture<LogToken> lastChange = asyncLogService.logConfigurationChanges(edited, "last change");
+
+        List<LogToken> changes = asyncLogService.listChanges(item.getId()).get();
+        assertTrue("Queries follow the changes queued before them", lastChange.isDone());
+        assertEquals(2, changes.size());
+        assertEquals("last change", changes.get(1).getDescription());
+        for (int i = 0; i < 10; i++) {
+            assertNotEquals(PersistableItem.INVALID_ID, others.get(i).getId());
+            assertSame(logged.get(i).get(), configurationLogService.listChanges(others.get(i).getId()).get(0));
+        }
+    }
+
+    @Test
+    public void itemsAreSavedInTheBackground() throws Exception {
+        ConcreteItemB item = new ConcreteItemB("Item", 1, 0);
+        CompletableFuture<Long> savedId = asyncLogService.logConfigurationChanges(item, "change")
+                .thenApply(logToken -> item.getId());
+
+        assertNotEquals(PersistableItem.INVALID_ID, savedId.get().longValue());
+        assertEquals(1, persistenceService.get(savedId.get(), ConcreteItemB.class).getProperty1());
+    }
+
+    @Test
+    public void aFailedChangeFailsAlone() throws Exception {
+        asyncLogService.close();
+        // Fails any change described as bad, after logging the changes before it
+        ConfigurationLogService failingLogService = new InMemoryConfigurationLogService(persistenceService) {
+            @Override
+            public List<LogToken> logConfigurationChanges(List<ConfigurationChange> changes)
+                    throws PersistenceException {
+                List<LogToken> logged = new ArrayList<>();
+                for (ConfigurationChange change : changes) {
+                    if ("bad".equals(change.getDescription())) {
+                        throw new PartiallyLoggedException(logged, new PersistenceException("Bad change"));
+                    }
+                    logged.addAll(super.logConfigurationChanges(Collections.singletonList(change)));
+                }
+                return logged;
+            }
+        };
+        asyncLogService = new BatchingAsyncConfigurationLogService(failingLogService, 4, 3);
+
+        List<CompletableFuture<LogToken>> logged = new ArrayList<>();
+        for (String description : Arrays.asList("good", "bad", "good", "good", "bad")) {
+            logged.add(asyncLogService.logConfigurationChanges(new ConcreteItemB(description, 0, 0), description));
+        }
+        asyncLogService.close();
+
+        for (CompletableFuture<LogToken> future : logged) {
+            assertTrue(future.isDone());
+        }
+        assertEquals("good", logged.get(0).get().getDescription());
+        assertTrue(logged.get(1).isCompletedExceptionally());
+        assertEquals("good", logged.get(2).get().getDescription());
+        assertEquals("good", logged.get(3).get().getDescription());
+        assertTrue(logged.get(4).isCompletedExceptionally());
+    }
+
+    @Test
+    public void closeWritesPendingChanges() throws Exception {
+        ConcreteItemB item = new ConcreteItemB("Item", 1, 0);
+        CompletableFuture<LogToken> logged = asyncLogService.logConfigurationChanges(item, "last change");
+        asyncLogService.close();
+
+        assertEquals("last change", logged.get().getDescription());
+        try {
+            asyncLogService.logConfigurationChanges(item, "too late").get();
+            fail("Changes cannot be logged after closing");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof PersistenceException);
+        }
+    }
+}
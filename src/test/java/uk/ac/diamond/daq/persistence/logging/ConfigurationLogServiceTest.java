@@ -5,6 +5,8 @@ import uk.ac.diamond.daq.persistence.data.*;
 import uk.ac.diamond.daq.persistence.service.PersistenceException;
 import uk.ac.diamond.daq.persistence.service.PersistenceService;
 
+import java.util.Arrays;
+import java.util.Date;
 import java.util.List;
 
 import static org.junit.Assert.*;
@@ -48,6 +50,23 @@ public class ConfigurationLogServiceTest {
         assertNotNull("Item reference has ID same as Items", findItemReference(logTokens.get(0), item));
     }
 
+    @Test
+    public void listChangesInTimeRange() throws PersistenceException {
+        ConcreteItemB item = new ConcreteItemB("Item 1", 2, 3.0);
+        LogToken first = configurationLogService.logConfigurationChanges(item, "first change");
+        item.setProperty1(4);
+        LogToken second = configurationLogService.logConfigurationChanges(item, "second change");
+
+        assertEquals("Changes are oldest first", Arrays.asList(first, second),
+                configurationLogService.listChanges(item.getId()));
+        assertEquals(Arrays.asList(first, second),
+                configurationLogService.listChanges(item.getId(), first.getDate(), null));
+        assertTrue("Range end is exclusive",
+                configurationLogService.listChanges(item.getId(), null, first.getDate()).isEmpty());
+        assertTrue(configurationLogService.listChanges(item.getId(),
+                new Date(second.getDate().getTime() + 1), null).isEmpty());
+    }
+
     @Test
     public void logComplexItem() throws PersistenceException {
         AbstractItem item = new ConcreteItemA("Item 1", 4, 5, "A String");
@@ -69,6 +88,31 @@ public class ConfigurationLogServiceTest {
 
         logTokens = configurationLogService.listChanges(item.getId());
 
-        assertEquals("No log token for item is found", 0, logTokens.size());
+        assertEquals("Container token is found for item", 1, logTokens.size());
+        assertNotNull("References contain container", findItemReference(logTokens.get(0), itemContainer));
+    }
+
+    @Test
+    public void logItemsInCollections() throws PersistenceException {
+        AbstractItem item1 = new ConcreteItemA("Item 1", 4, 5, "A String");
+        AbstractItem item2 = new ConcreteItemB("Item 2", 6, 7.0);
+        ConcreteItemContainer itemContainer = new ConcreteItemContainer("Container 1", item1, 34);
+        ConcreteListContainer listContainer = new ConcreteListContainer("List 1");
+        listContainer.addTrigger(itemContainer);
+        listContainer.addTrigger(itemContainer);
+        ConcreteMapContainer mapContainer = new ConcreteMapContainer("Map 1");
+        mapContainer.addItem("first", item1);
+        mapContainer.addItem("second", item2);
+
+        LogToken listToken = configurationLogService.logConfigurationChanges(listContainer, "List commit");
+        LogToken mapToken = configurationLogService.logConfigurationChanges(mapContainer, "Map commit");
+
+        assertEquals("Shared items are referenced once", 3, listToken.getItemReferences().size());
+        assertNotNull(findItemReference(listToken, itemContainer));
+        assertNotNull(findItemReference(listToken, item1));
+        assertEquals(3, mapToken.getItemReferences().size());
+        assertNotNull(findItemReference(mapToken, item1));
+        assertNotNull(findItemReference(mapToken, item2));
+        assertEquals(Arrays.asList(listToken, mapToken), configurationLogService.listChanges(item1.getId()));
     }
 }
@@ -0,0 +1,159 @@
+package uk.ac.diamond.daq.persistence.logging;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import uk.ac.diamond.daq.persistence.configuration.InMemoryConfiguration;
+import uk.ac.diamond.daq.persistence.data.ConcreteItemB;
+import uk.ac.diamond.daq.persistence.data.LogToken;
+import uk.ac.diamond.daq.persistence.logging.impl.FileConfigurationLogService;
+import uk.ac.diamond.daq.persistence.service.PersistenceException;
+import uk.ac.diamond.daq.persistence.service.PersistenceService;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class FileConfigurationLogServiceTest extends ConfigurationLogServiceTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+    private FileConfigurationLogService fileLogService;
+
+    @Before
+    public void setup() throws PersistenceException, IOException {
+        ApplicationContext applicationContext = new AnnotationConfigApplicationContext(InMemoryConfiguration.class);
+        persistenceService = applicationContext.getBean("persistenceService", PersistenceService.class);
+
+        directory = folder.newFolder("log");
+        // Small segments so that the tests cover rolling over to new ones
+        fileLogService = new FileConfigurationLogService(persistenceService, directory, 256);
+        configurationLogService = fileLogService;
+    }
+
+    @After
+    public void tearDown() throws PersistenceException {
+        fileLogService.close();
+    }
+
+    @Test
+    public void changesSurviveReopening() throws PersistenceException {
+        ConcreteItemB item = logChanges(20);
+        fileLogService.close();
+
+        fileLogService = new FileConfigurationLogService(persistenceService, directory, 256);
+        List<LogToken> logTokens = fileLogService.listChanges(item.getId());
+        assertEquals(20, logTokens.size());
+        assertEquals("change 19", logTokens.get(19).getDescription());
+        assertEquals(20, fileLogService.listChanges(null, null).size());
+    }
+
+    @Test
+    public void tornTokenIsDroppedAfterCrash() throws PersistenceException, IOException {
+        ConcreteItemB item = logChanges(3);
+        File[] segments = directory.listFiles((dir, name) -> name.endsWith(".log"));
+        File lastSegment = segments[0];
+        for (File segment : segments) {
+            if (segment.getName().compareTo(lastSegment.getName()) > 0) {
+                lastSegment = segment;
+            }
+        }
+        try (FileOutputStream output = new FileOutputStream(lastSegment, true)) {
+            output.write(new byte[]{0, 0, 1, 0, 42});
+        }
+
+        // Reopened without closing, as after a crash
+        fileLogService = new FileConfigurationLogService(persistenceService, directory, 256);
+        configurationLogService = fileLogService;
+        assertEquals(3, fileLogService.listChanges(item.getId()).size());
+        logChanges(1);
+        assertEquals(4, fileLogService.listChanges(null, null).size());
+    }
+
+    @Test
+    public void datesNeverGoBack() throws PersistenceException {
+        ConcreteItemB item = new ConcreteItemB("Item", 0, 0);
+        List<LogToken> logTokens = fileLogService.logConfigurationChanges(Arrays.asList(
+                new ConfigurationChange(item, "later change", new Date(2000)),
+                new ConfigurationChange(item, "earlier change", new Date(1000))));
+
+        assertEquals(new Date(2000), logTokens.get(1).getDate());
+        List<LogToken> logged = fileLogService.listChanges(null, new Date(2001));
+        assertEquals(2, logged.size());
+        assertEquals("earlier change", logged.get(1).getDescription());
+        assertEquals(2, fileLogService.listChanges(item.getId(), new Date(2000), null).size());
+
+        fileLogService.close();
+        fileLogService = new FileConfigurationLogService(persistenceService, directory, 256);
+        LogToken logToken = fileLogService.logConfigurationChanges(
+                Collections.singletonList(new ConfigurationChange(item, "old change", new Date(0)))).get(0);
+        assertEquals("Dates stay in order after reopening", new Date(2000), logToken.getDate());
+    }
+
+    @Test
+    public void changesCannotBeLoggedAfterClosing() throws PersistenceException {
+        ConcreteItemB item = logChanges(1);
+        fileLogService.close();
+
+        try {
+            fileLogService.logConfigurationChanges(item, "too late");
+            fail("Changes cannot be logged after closing");
+        } catch (PersistenceException e) {
+            assertEquals(1, fileLogService.listChanges(item.getId()).size());
+        }
+    }
+
+    @Test
+    public void changesBeforeAFailedOneAreLogged() throws PersistenceException {
+        fileLogService.close();
+        // Refuses to save items named bad
+        PersistenceService failingService = (PersistenceService) Proxy.newProxyInstance(
+                getClass().getClassLoader(), new Class<?>[]{PersistenceService.class}, (proxy, method, args) -> {
+                    if (method.getName().equals("save") && ((ConcreteItemB) args[0]).getName().equals("bad")) {
+                        throw new PersistenceException("Bad item");
+                    }
+                    try {
+                        return method.invoke(persistenceService, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+        fileLogService = new FileConfigurationLogService(failingService, directory, 256);
+
+        ConcreteItemB good = new ConcreteItemB("good", 0, 0);
+        List<ConfigurationChange> changes = Arrays.asList(new ConfigurationChange(good, "good change"),
+                new ConfigurationChange(new ConcreteItemB("bad", 0, 0), "bad change"),
+                new ConfigurationChange(new ConcreteItemB("later", 0, 0), "later change"));
+        try {
+            fileLogService.logConfigurationChanges(changes);
+            fail("The bad change cannot be logged");
+        } catch (PartiallyLoggedException e) {
+            assertEquals(1, e.getLogTokens().size());
+        }
+        assertEquals("good change", fileLogService.listChanges(good.getId()).get(0).getDescription());
+        assertEquals(1, fileLogService.listChanges(null, null).size());
+    }
+
+    private ConcreteItemB logChanges(int count) throws PersistenceException {
+        ConcreteItemB item = new ConcreteItemB("Logged", 0, 1.0);
+        for (int i = 0; i < count; i++) {
+            item.setProperty1(i);
+            configurationLogService.logConfigurationChanges(item, "change " + i);
+        }
+        return item;
+    }
+}
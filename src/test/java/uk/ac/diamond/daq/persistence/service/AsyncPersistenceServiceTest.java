@@ -0,0 +1,93 @@
+package uk.ac.diamond.daq.persistence.service;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import uk.ac.diamond.daq.persistence.configuration.InMemoryConfiguration;
+import uk.ac.diamond.daq.persistence.data.AbstractItem;
+import uk.ac.diamond.daq.persistence.data.ConcreteItemA;
+import uk.ac.diamond.daq.persistence.data.ConcreteItemB;
+import uk.ac.diamond.daq.persistence.data.PersistableItem;
+import uk.ac.diamond.daq.persistence.service.impl.AbstractPersistenceService;
+import uk.ac.diamond.daq.persistence.service.impl.ExecutorAsyncPersistenceService;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.*;
+
+public class AsyncPersistenceServiceTest {
+    private AsyncPersistenceService asyncPersistenceService;
+    private PersistenceService persistenceService;
+    private VisitService visitService;
+
+    @Before
+    public void setUp() {
+        ApplicationContext applicationContext = new AnnotationConfigApplicationContext(InMemoryConfiguration.class);
+        persistenceService = applicationContext.getBean("persistenceService", PersistenceService.class);
+        visitService = applicationContext.getBean("visitService", VisitService.class);
+        asyncPersistenceService = new ExecutorAsyncPersistenceService((AbstractPersistenceService) persistenceService);
+    }
+
+    @After
+    public void tearDown() throws PersistenceException {
+        asyncPersistenceService.close();
+    }
+
+    @Test
+    public void saveThenGetInSubmissionOrder() throws Exception {
+        ConcreteItemB item = new ConcreteItemB("Async", 1, 2.0);
+        CompletableFuture<PersistableItem> saved = asyncPersistenceService.save(item);
+        CompletableFuture<SearchResult> searched = asyncPersistenceService.get(AbstractItem.class);
+
+        assertSame("Save should complete with the saved item", item, saved.get());
+        assertNotEquals("Item should have been given an id", PersistableItem.INVALID_ID, item.getId());
+        assertEquals("Search submitted after the save should see it", 1, searched.get().getRows().size());
+
+        ConcreteItemB retrieved = asyncPersistenceService.get(item.getId(), ConcreteItemB.class).get();
+        assertEquals(item, retrieved);
+        assertNotSame(item, retrieved);
+    }
+
+    @Test
+    public void visitIsCapturedWhenCallIsMade() throws Exception {
+        CompletableFuture<PersistableItem> saved = asyncPersistenceService.save(new ConcreteItemA("A", 1, 2, "x"));
+        visitService.setCurrentVisitId("other");
+        saved.get();
+
+        assertEquals("Item should not be in the new visit", 0, persistenceService.get(AbstractItem.class).getRows().size());
+        visitService.setCurrentVisitId("current");
+        assertEquals("Item should be in the visit current when saved", 1,
+                persistenceService.get(AbstractItem.class).getRows().size());
+    }
+
+    @Test
+    public void updateIsSavedInTheVisitCurrentWhenCallIsMade() throws Exception {
+        ConcreteItemB item = new ConcreteItemB("Item", 1, 2.0);
+        persistenceService.save(item);
+        long id = item.getId();
+        item.setProperty1(3);
+        // As an asynchronous save runs, after the visit has changed
+        visitService.setCurrentVisitId("other");
+        ((AbstractPersistenceService) persistenceService).save(item, "current");
+
+        assertEquals("Existing item should be updated", id, item.getId());
+        assertEquals(1, item.getVersion());
+        assertEquals(0, persistenceService.get(AbstractItem.class).getRows().size());
+        visitService.setCurrentVisitId("current");
+        assertEquals(1, persistenceService.get(AbstractItem.class).getRows().size());
+        assertEquals(3, persistenceService.get(id, ConcreteItemB.class).getProperty1());
+    }
+
+    @Test
+    public void failuresCompleteExceptionally() throws InterruptedException {
+        try {
+            asyncPersistenceService.get(-1, ConcreteItemA.class).get();
+            fail("Expected lookup of a missing item to fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof PersistenceException);
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package uk.ac.diamond.daq.persistence.service;
+
+import org.junit.Test;
+import uk.ac.diamond.daq.persistence.service.impl.CypherQuery;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+
+public class CypherQueryTest {
+
+    @Test
+    public void identifiersAreQuoted() {
+        CypherQuery query = CypherQuery.match("Item").whereEquals(Collections.singleton("name` OR true //"))
+                .orderBy("na`me").build();
+
+        assertEquals("MATCH (n:`Item`) WHERE n.`name`` OR true //` = $`name`` OR true //`"
+                + " RETURN n ORDER BY n.`na``me`", query.getStatement());
+    }
+
+    @Test
+    public void missingValuesAreOrderedAsSmallest() {
+        assertEquals("MATCH (n:`Item`) RETURN n ORDER BY n.`name` IS NOT NULL DESC, n.`name` DESC",
+                CypherQuery.match("Item").orderByNullable("name").descending().build().getStatement());
+        assertEquals("MATCH (n:`Item`) RETURN n ORDER BY n.`name`",
+                CypherQuery.match("Item").orderBy("name").build().getStatement());
+    }
+
+    @Test
+    public void namesHoldingSeparatorsHaveTheirOwnStatements() {
+        CypherQuery first = CypherQuery.match("A", "B").build();
+        CypherQuery second = CypherQuery.match("A:B").build();
+
+        assertNotSame(first, second);
+        assertEquals("MATCH (n:`A:B`) RETURN n", second.getStatement());
+    }
+}
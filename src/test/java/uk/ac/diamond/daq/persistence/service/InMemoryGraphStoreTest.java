@@ -0,0 +1,216 @@
+package uk.ac.diamond.daq.persistence.service;
+
+import org.junit.Before;
+import org.junit.Test;
+import uk.ac.diamond.daq.persistence.data.AbstractItemContainer;
+import uk.ac.diamond.daq.persistence.data.ConcreteItemA;
+import uk.ac.diamond.daq.persistence.data.ConcreteItemB;
+import uk.ac.diamond.daq.persistence.data.ConcreteItemBsubA;
+import uk.ac.diamond.daq.persistence.data.ConcreteItemContainer;
+import uk.ac.diamond.daq.persistence.data.ConcreteListContainer;
+import uk.ac.diamond.daq.persistence.data.PersistableItem;
+import uk.ac.diamond.daq.persistence.service.impl.CypherPredicate;
+import uk.ac.diamond.daq.persistence.service.impl.CypherQuery;
+import uk.ac.diamond.daq.persistence.service.impl.neo4j.InMemoryGraphStore;
+import uk.ac.diamond.daq.persistence.service.impl.neo4j.PersistableItemService;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class InMemoryGraphStoreTest {
+    private InMemoryGraphStore graphStore;
+    private PersistableItemService service;
+
+    private ConcreteItemB concreteItemB;
+
+    @Before
+    public void setUp() throws PersistenceException {
+        graphStore = new InMemoryGraphStore();
+        service = new PersistableItemService(graphStore);
+
+        concreteItemB = new ConcreteItemB("B", 1, 2.0);
+        concreteItemB.setId(1);
+        service.createOrUpdate(concreteItemB);
+        ConcreteItemA concreteItemA = new ConcreteItemA("A", 3, 4, "x");
+        concreteItemA.setId(2);
+        service.createOrUpdate(concreteItemA);
+    }
+
+    @Test
+    public void findReturnsCopy() {
+        PersistableItem found = service.find(concreteItemB.getId());
+        assertEquals(concreteItemB, found);
+        assertNotSame(concreteItemB, found);
+    }
+
+    @Test
+    public void queryByLabelAndProperty() throws PersistenceException {
+        HashMap<String, Object> searchParameters = new HashMap<>();
+        searchParameters.put("property1", 1);
+        assertEquals(Arrays.asList(concreteItemB), toList(service.getForLabels(labels("ConcreteItemB"), searchParameters)));
+        assertTrue(toList(service.getForLabels(labels("ConcreteItemA"), searchParameters)).isEmpty());
+
+        graphStore.createIndex("ConcreteItemB", "property1");
+        assertEquals("Indexed lookup should find the same items", Arrays.asList(concreteItemB),
+                toList(service.getForLabels(labels("ConcreteItemB"), searchParameters)));
+
+        concreteItemB.setProperty1(5);
+        service.createOrUpdate(concreteItemB);
+        assertTrue("Index should follow updates",
+                toList(service.getForLabels(labels("ConcreteItemB"), searchParameters)).isEmpty());
+    }
+
+    @Test
+    public void queryByPredicate() {
+        SearchPredicate predicate = SearchPredicate.or(SearchPredicate.eq("property1", 1L),
+                SearchPredicate.range("property1", 2, 3));
+        assertEquals(2, toList(service.getForLabels(labels(), predicate, LoadProfile.LISTING)).size());
+
+        graphStore.createIndex("ConcreteItemB", "property1");
+        assertEquals("Indexed lookup should find the same items", 1,
+                toList(service.getForLabels(labels("ConcreteItemB"), predicate, LoadProfile.LISTING)).size());
+        assertEquals(Arrays.asList(concreteItemB), toList(service.getForLabels(labels("ConcreteItemB"),
+                SearchPredicate.and(SearchPredicate.eq("property1", 1), SearchPredicate.prefix("name", "B")),
+                LoadProfile.LISTING)));
+    }
+
+    @Test
+    public void countByProperty() throws PersistenceException {
+        ConcreteItemB other = new ConcreteItemB("C", 1, 0);
+        other.setId(3);
+        service.createOrUpdate(other);
+
+        assertEquals(3, service.countForLabels(labels(), SearchPredicate.and()));
+        assertEquals(1, service.countForLabels(labels(), SearchPredicate.prefix("name", "C")));
+        Map<Object, Long> expected = new HashMap<>();
+        expected.put(1L, 2L);
+        assertEquals(expected, service.countByForLabels(labels("ConcreteItemB"), "property1", SearchPredicate.and()));
+    }
+
+    @Test
+    public void queryByCypherPredicate() {
+        SearchPredicate predicate = SearchPredicate.or(SearchPredicate.eq("property1", 1L),
+                SearchPredicate.range("property1", 2, 3));
+        CypherPredicate cypherPredicate = CypherPredicate.of(predicate, "");
+        CypherQuery query = CypherQuery.match().where(cypherPredicate).build();
+        assertEquals(2, toList(graphStore.query(PersistableItem.class, query, cypherPredicate.getParameters(), 0))
+                .size());
+
+        // A predicate of the same shape is run through the same query with its own values
+        CypherPredicate other = CypherPredicate.of(SearchPredicate.or(SearchPredicate.eq("property1", 5L),
+                SearchPredicate.range("property1", 2, 3)), "");
+        assertSame(query, CypherQuery.match().where(other).build());
+        assertEquals(1, toList(graphStore.query(PersistableItem.class, query, other.getParameters(), 0)).size());
+    }
+
+    @Test
+    public void missingValuesOrderFirst() {
+        // Only the ConcreteItemA has property2
+        assertEquals(Arrays.asList(1L, 2L), ids(service.getForLabels(labels(), SearchPredicate.and(),
+                SortRequest.ascending("property2"), LoadProfile.LISTING)));
+        assertEquals(Arrays.asList(2L, 1L), ids(service.getForLabels(labels(), SearchPredicate.and(),
+                SortRequest.descending("property2"), LoadProfile.LISTING)));
+
+        // Cypher orders them last, unless asked to order them as the other backends do
+        assertEquals(Arrays.asList(2L, 1L), ids(graphStore.query(PersistableItem.class,
+                CypherQuery.match().orderBy("property2").build(), new HashMap<>(), 0)));
+        assertEquals(Arrays.asList(1L, 2L), ids(graphStore.query(PersistableItem.class,
+                CypherQuery.match().orderByNullable("property2").build(), new HashMap<>(), 0)));
+        assertEquals(Arrays.asList(2L, 1L), ids(graphStore.query(PersistableItem.class,
+                CypherQuery.match().orderByNullable("property2").descending().build(), new HashMap<>(), 0)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void cypherTextIsRejected() {
+        graphStore.query(PersistableItem.class, CypherQuery.match().whereExpression("n.name IS NOT NULL").build(),
+                new HashMap<>(), 0);
+    }
+
+    @Test
+    public void onlyConcreteClassesAreLabels() throws PersistenceException {
+        ConcreteItemBsubA subclass = new ConcreteItemBsubA("S", 1, 0, 4);
+        subclass.setId(3);
+        service.createOrUpdate(subclass);
+
+        assertEquals(2, toList(service.getForLabels(labels("ConcreteItemB"), new HashMap<>())).size());
+        assertTrue(toList(service.getForLabels(labels("AbstractItem"), new HashMap<>())).isEmpty());
+    }
+
+    @Test
+    public void pagesAreOrderedById() throws PersistenceException {
+        for (long id = 3; id < 8; id++) {
+            ConcreteItemB item = new ConcreteItemB("B" + id, (int) id, 0);
+            item.setId(id);
+            service.createOrUpdate(item);
+        }
+        List<PersistableItem> page = toList(service.getPageForLabels(labels("ConcreteItemB"), 3, 1, 2));
+        assertEquals(2, page.size());
+        assertEquals(5, page.get(0).getId());
+        assertEquals(6, page.get(1).getId());
+    }
+
+    @Test
+    public void referencesAreResolvedToDepth() throws PersistenceException {
+        ConcreteItemContainer container = new ConcreteItemContainer("Container", concreteItemB, 12);
+        container.setId(10);
+        service.createOrUpdate(container);
+
+        concreteItemB.setName("Renamed");
+        service.createOrUpdate(concreteItemB);
+
+        AbstractItemContainer listed = (AbstractItemContainer) service.find(container.getId(), LoadProfile.LISTING);
+        assertNull("Listing should not load references", listed.getAbstractItem());
+
+        AbstractItemContainer entity = (AbstractItemContainer) service.find(container.getId(), LoadProfile.ENTITY);
+        assertEquals("Reference should resolve to the stored item", "Renamed", entity.getAbstractItem().getName());
+    }
+
+    @Test
+    public void itemsReachedAtDifferentDepthsAreCopiedForEach() throws PersistenceException {
+        ConcreteItemContainer container = new ConcreteItemContainer("Container", concreteItemB, 12);
+        container.setId(11);
+        ConcreteListContainer list = new ConcreteListContainer("List");
+        list.addTrigger(container);
+        list.setId(10);
+        service.createOrUpdate(container);
+        service.createOrUpdate(list);
+
+        for (PersistableItem item : graphStore.loadAll(PersistableItem.class, 1)) {
+            if (item instanceof ConcreteListContainer) {
+                assertNull("Depth should run out below the list",
+                        ((ConcreteListContainer) item).getAbstractItemContainers().get(0).getAbstractItem());
+            } else if (item instanceof ConcreteItemContainer) {
+                assertEquals(concreteItemB, ((ConcreteItemContainer) item).getAbstractItem());
+            }
+        }
+    }
+
+    @Test
+    public void deleteRemovesNode() {
+        assertTrue(service.delete(concreteItemB.getId()));
+        assertNull(service.find(concreteItemB.getId()));
+        assertFalse("Nothing is left to delete", service.delete(concreteItemB.getId()));
+        assertEquals(1, toList(service.findAll()).size());
+    }
+
+    private static ArrayList<String> labels(String... labels) {
+        return new ArrayList<>(Arrays.asList(labels));
+    }
+
+    private static List<PersistableItem> toList(Iterable<PersistableItem> items) {
+        List<PersistableItem> list = new ArrayList<>();
+        items.forEach(list::add);
+        return list;
+    }
+
+    private static List<Long> ids(Iterable<PersistableItem> items) {
+        List<Long> ids = new ArrayList<>();
+        items.forEach(item -> ids.add(item.getId()));
+        return ids;
+    }
+}
@@ -0,0 +1,46 @@
+package uk.ac.diamond.daq.persistence.service;
+
+import org.junit.Before;
+import org.junit.Test;
+import uk.ac.diamond.daq.persistence.service.impl.InvertedIndex;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+
+public class InvertedIndexTest {
+    private InvertedIndex index;
+
+    @Before
+    public void setUp() {
+        index = new InvertedIndex();
+        index.index(1, Arrays.asList("Tomography scan", "Sample holder"));
+        index.index(2, Collections.singletonList("Tomo Scan 2"));
+        index.index(3, Collections.singletonList("Phantom tomo"));
+    }
+
+    @Test
+    public void exactWordsRankAbovePrefixes() {
+        assertEquals(Arrays.asList(2L, 3L, 1L), index.search("tomo"));
+    }
+
+    @Test
+    public void fragmentsMatchInsideWords() {
+        assertEquals(Arrays.asList(1L, 2L, 3L), index.search("omo"));
+    }
+
+    @Test
+    public void everyWordMustMatch() {
+        assertEquals(Collections.singletonList(1L), index.search("SCAN, holder"));
+        assertEquals(Collections.emptyList(), index.search("scan phantom"));
+    }
+
+    @Test
+    public void indexingReplacesPreviousText() {
+        index.index(3, Collections.singletonList("Calibration"));
+        assertEquals(Arrays.asList(2L, 1L), index.search("tomo"));
+        index.remove(2);
+        assertEquals(Collections.singletonList(1L), index.search("tomo"));
+    }
+}
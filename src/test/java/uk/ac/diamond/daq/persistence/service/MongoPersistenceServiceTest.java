@@ -26,6 +26,7 @@ public class MongoPersistenceServiceTest extends PersistenceServiceTest {
     @After
     public void tearDown() {
         ((MongoDbJsonPersistenceService) persistenceService).dropAll();
+        ((MongoDbJsonPersistenceService) persistenceService).close();
         mongoClient.close();
     }
 }
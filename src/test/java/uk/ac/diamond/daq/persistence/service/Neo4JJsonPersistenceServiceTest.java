@@ -5,6 +5,24 @@ import org.junit.Test;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.annotation.AnnotationConfigApplicationContext;
 import uk.ac.diamond.daq.persistence.configuration.Neo4JJsonConfiguration;
+import uk.ac.diamond.daq.persistence.data.ConcreteItemB;
+import uk.ac.diamond.daq.persistence.data.ConcreteItemContainer;
+import uk.ac.diamond.daq.persistence.data.ConcreteListContainer;
+import uk.ac.diamond.daq.persistence.data.ItemReference;
+import uk.ac.diamond.daq.persistence.data.PersistableItem;
+import uk.ac.diamond.daq.persistence.json.JsonDeserialiser;
+import uk.ac.diamond.daq.persistence.json.impl.DefaultJsonSerialisationFactory;
+import uk.ac.diamond.daq.persistence.service.impl.Neo4jJsonPersistenceService;
+import uk.ac.diamond.daq.persistence.service.impl.TestVisitService;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 
 public class Neo4JJsonPersistenceServiceTest extends PersistenceServiceTest{
 
@@ -41,6 +59,62 @@ public class Neo4JJsonPersistenceServiceTest extends PersistenceServiceTest{
         super.deleteExceptsContainerRetrieval();
     }
 
+    @Test
+    public void referencesAreStoredAsRelationships() throws PersistenceException {
+        ConcreteItemB concreteItemB = new ConcreteItemB("Referenced", 1, 2.0);
+        ConcreteItemContainer container = new ConcreteItemContainer("Container", concreteItemB, 12);
+        persistenceService.save(container);
+
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put("persistenceId", container.getId());
+        parameters.put("version", container.getVersion());
+        List<Long> referenced = new ArrayList<>();
+        for (Map<String, Object> row : Neo4jSessionFactory.getInstance().getNeo4jSession().query(
+                "MATCH (n:ItemContainer {persistenceId: $persistenceId, version: $version})-[:REFERENCES]->(m)"
+                        + " RETURN m.persistenceId AS id", parameters).queryResults()) {
+            referenced.add(((Number) row.get("id")).longValue());
+        }
+        assertEquals(Collections.singletonList(concreteItemB.getId()), referenced);
+    }
+
+    @Test
+    public void graphsArePrefetchedToTheirDepth() throws PersistenceException {
+        CountingPersistenceService countingService = new CountingPersistenceService();
+        ConcreteItemB concreteItemB = new ConcreteItemB("Referenced", 1, 2.0);
+        ConcreteListContainer plan = new ConcreteListContainer("Plan");
+        plan.addTrigger(new ConcreteItemContainer("Container", concreteItemB, 12));
+        countingService.save(plan);
+
+        countingService.lookups = 0;
+        ConcreteListContainer shallow = countingService.getGraph(plan.getId(), ConcreteListContainer.class, 1);
+        assertNull("Items beyond the depth should be left unset",
+                shallow.getAbstractItemContainers().get(0).getAbstractItem());
+        assertEquals("Items within the depth should be prefetched", 0, countingService.lookups);
+
+        countingService.lookups = 0;
+        ConcreteListContainer deep = countingService.getGraph(plan.getId(), ConcreteListContainer.class, 2);
+        assertEquals(concreteItemB, deep.getAbstractItemContainers().get(0).getAbstractItem());
+        assertEquals("Items within the depth should be prefetched", 0, countingService.lookups);
+    }
+
+    /**
+     * Counts the references the deserialiser has to look up itself.
+     */
+    private static final class CountingPersistenceService extends Neo4jJsonPersistenceService {
+        private int lookups;
+
+        private CountingPersistenceService() {
+            super(new DefaultJsonSerialisationFactory(), new TestVisitService("current"));
+        }
+
+        @Override
+        public <T extends PersistableItem> T get(ItemReference itemReference, JsonDeserialiser jsonDeserialiser,
+                                                 String visitId) throws PersistenceException {
+            lookups++;
+            return super.get(itemReference, jsonDeserialiser, visitId);
+        }
+    }
+
 //    @After
 //    public void tearDown() {
 //        ((Neo4jJsonPersistenceService) persistenceService).tearDown();
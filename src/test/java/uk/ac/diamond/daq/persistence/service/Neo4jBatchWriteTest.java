@@ -0,0 +1,74 @@
+package uk.ac.diamond.daq.persistence.service;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.ac.diamond.daq.persistence.data.ConcreteItemA;
+import uk.ac.diamond.daq.persistence.data.PersistableItem;
+import uk.ac.diamond.daq.persistence.service.impl.neo4j.PersistableItemService;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares the throughput of writing items one per transaction with writing them as one batch, against a Neo4j server.
+ */
+public class Neo4jBatchWriteTest {
+    private static final Logger log = LoggerFactory.getLogger(Neo4jBatchWriteTest.class);
+
+    private static final int ITEMS = 1000;
+
+    private PersistableItemService service;
+
+    @Before
+    public void setUp() {
+        service = new PersistableItemService(Neo4jSessionFactory.getInstance());
+        service.purgeDatabase();
+    }
+
+    @Test
+    public void batchAndPerItemWritesSaveTheSameItems() throws PersistenceException {
+        List<PersistableItem> items = items(1);
+        long start = System.nanoTime();
+        for (PersistableItem item : items) {
+            service.createOrUpdate(item);
+        }
+        long perItem = System.nanoTime() - start;
+        assertEquals(ITEMS, count());
+
+        service.purgeDatabase();
+        items = items(ITEMS + 1);
+        start = System.nanoTime();
+        service.createOrUpdateAll(items);
+        long batch = System.nanoTime() - start;
+        assertEquals(ITEMS, count());
+
+        log.info("Wrote {} items at {}/s one per transaction and {}/s as one batch", ITEMS, rate(perItem),
+                rate(batch));
+    }
+
+    private static List<PersistableItem> items(long firstId) {
+        List<PersistableItem> items = new ArrayList<>();
+        for (int i = 0; i < ITEMS; i++) {
+            ConcreteItemA item = new ConcreteItemA("Item " + i, i, i, "batch");
+            item.setId(firstId + i);
+            items.add(item);
+        }
+        return items;
+    }
+
+    private int count() {
+        int count = 0;
+        for (PersistableItem ignored : service.findAll(LoadProfile.LISTING)) {
+            count++;
+        }
+        return count;
+    }
+
+    private static long rate(long nanos) {
+        return ITEMS * 1_000_000_000L / Math.max(nanos, 1);
+    }
+}
@@ -0,0 +1,32 @@
+package uk.ac.diamond.daq.persistence.service;
+
+import org.junit.Test;
+import org.neo4j.driver.v1.exceptions.ClientException;
+import org.neo4j.driver.v1.exceptions.TransientException;
+
+import static org.junit.Assert.*;
+
+public class Neo4jSessionFactoryTest {
+
+    @Test
+    public void driverTransientErrorsAreRetried() {
+        TransientException deadlock = new TransientException("Neo.TransientError.Transaction.DeadlockDetected",
+                "Deadlock");
+        assertTrue(Neo4jSessionFactory.isTransient(deadlock));
+        assertTrue("Wrapped errors should be found by cause", Neo4jSessionFactory.isTransient(
+                new RuntimeException("Failed to commit", deadlock)));
+    }
+
+    @Test
+    public void transientStatusCodesAreRetried() {
+        assertTrue(Neo4jSessionFactory.isTransient(new RuntimeException(
+                "Neo.TransientError.Transaction.LockClientStopped; Description: lock client stopped")));
+    }
+
+    @Test
+    public void otherErrorsAreNotRetried() {
+        assertFalse(Neo4jSessionFactory.isTransient(new ClientException(
+                "Neo.ClientError.Statement.SyntaxError", "Invalid input")));
+        assertFalse(Neo4jSessionFactory.isTransient(new IllegalStateException()));
+    }
+}
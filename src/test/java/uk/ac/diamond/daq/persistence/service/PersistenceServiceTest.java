@@ -250,6 +250,55 @@ public abstract class PersistenceServiceTest {
 
     }
 
+    /**
+     * Pages are ordered by persistence id and continue from the last id of the previous page
+     */
+    @Test
+    public void testSearchInPages() throws PersistenceException {
+        final SearchResultPage firstPage = persistenceService.get(AbstractItem.class, PageRequest.first(3));
+        assertEquals("First page should be full", 3, firstPage.getRows().size());
+        assertTrue("Expected a second page", firstPage.hasNextPage());
+
+        final SearchResultPage secondPage = persistenceService.get(AbstractItem.class, firstPage.getNextPage());
+        assertEquals("Second page should hold the remaining item", 1, secondPage.getRows().size());
+        assertFalse("Expected no third page", secondPage.hasNextPage());
+
+        List<Long> resultIds = new ArrayList<>();
+        for (SearchResultRow row : firstPage.getRows()) {
+            resultIds.add(row.getPersistenceId());
+        }
+        resultIds.add(secondPage.getRows().get(0).getPersistenceId());
+        List<Long> sortedIds = new ArrayList<>(resultIds);
+        Collections.sort(sortedIds);
+        assertEquals("Rows must come back in persistence id order", sortedIds, resultIds);
+        assertTrue(resultIds.containsAll(Arrays.asList(concreteItemA.getId(), concreteItemB.getId(),
+                concreteItemA2.getId(), concreteItemB2.getId())));
+
+        final SearchResultPage offsetPage = persistenceService.get(AbstractItem.class, PageRequest.of(2, 10));
+        assertEquals("Offset should skip the first two items", 2, offsetPage.getRows().size());
+        assertEquals(resultIds.get(2).longValue(), offsetPage.getRows().get(0).getPersistenceId());
+    }
+
+    /**
+     * Items of other types are left out when getting by an abstract type whose ancestors are all abstract
+     */
+    @Test
+    public void testGetByAbstractType() throws PersistenceException {
+        persistenceService.save(new ConcreteListContainer(COMMON_NAME));
+
+        assertEquals(4, persistenceService.get(AbstractItem.class).getRows().size());
+        assertEquals(4, persistenceService.count(AbstractItem.class));
+        assertEquals(3, persistenceService.count(SearchPredicate.eq(AbstractItem.SEARCH_NAME_FIELD, COMMON_NAME),
+                AbstractItem.class));
+        assertEquals(Long.valueOf(3), persistenceService.countBy(AbstractItem.SEARCH_NAME_FIELD,
+                SearchPredicate.and(), AbstractItem.class).get(COMMON_NAME));
+        assertEquals(3, persistenceService.search("diff", AbstractItem.class).size());
+
+        final SearchResultPage page = persistenceService.get(AbstractItem.class, PageRequest.first(10));
+        assertEquals(4, page.getRows().size());
+        assertFalse(page.hasNextPage());
+    }
+
     /**
      * Searching for ConcreteItemB also returns all ConcreteItemBsubAs- listable properties of subAs should be shown
      * Matches behaviour of getting all listable fields for e.g. searching by Abstract class.
@@ -399,6 +448,95 @@ public abstract class PersistenceServiceTest {
         printSearchResults("Search for " + ConcreteItemA.CLASS_UNIQUE_FIELD + ": " + CONCRETE_ITEM_A_CLASS_UNIQUE, searchResult);
     }
 
+    /**
+     * Predicate values given as strings are compared as the type of the searchable field
+     */
+    @Test
+    public void testSearchWithPredicates() throws PersistenceException {
+        final SearchResult range = persistenceService.get(SearchPredicate.range("property1", "60", null),
+                ConcreteItemB.class);
+        assertEquals("Both ConcreteItemBs have property1 of at least 60", 2, range.size());
+
+        final SearchResult prefix = persistenceService.get(
+                SearchPredicate.prefix(AbstractItem.SEARCH_NAME_FIELD, "Tomo"), AbstractItem.class);
+        assertEquals("Only one item is named Tomo...", 1, prefix.size());
+        assertEquals(concreteItemB.getId(), prefix.getPersistenceId(0));
+
+        final SearchResult either = persistenceService.get(SearchPredicate.or(
+                SearchPredicate.eq(AbstractItem.SEARCH_NAME_FIELD, CONCRETE_ITEM_B_NAME_1),
+                SearchPredicate.and(SearchPredicate.eq(AbstractItem.SEARCH_NAME_FIELD, COMMON_NAME),
+                        SearchPredicate.ne("property1", 63))), ConcreteItemB.class);
+        assertEquals("ConcreteItemB2 has property1 of 63", 1, either.size());
+        assertEquals(concreteItemB.getId(), either.getPersistenceId(0));
+
+        final SearchResult in = persistenceService.get(SearchPredicate.in("property1", Arrays.asList(100, 63, 1)),
+                ConcreteItemB.class);
+        assertEquals(2, in.size());
+    }
+
+    @Test
+    public void testSortedSearch() throws PersistenceException {
+        final SearchResult sorted = persistenceService.get(SearchPredicate.and(),
+                SortRequest.descending("property1"), ConcreteItemB.class);
+        assertEquals(2, sorted.size());
+        assertEquals(concreteItemB.getId(), sorted.getPersistenceId(0));
+        assertEquals(concreteItemB2.getId(), sorted.getPersistenceId(1));
+
+        final SearchResult top = persistenceService.get(SearchPredicate.eq(AbstractItem.SEARCH_NAME_FIELD, COMMON_NAME),
+                SortRequest.ascending(SortRequest.PERSISTENCE_ID).top(2), AbstractItem.class);
+        assertEquals("Only the first two of the three items named " + COMMON_NAME, 2, top.size());
+        assertEquals(concreteItemA.getId(), top.getPersistenceId(0));
+        assertEquals(concreteItemA2.getId(), top.getPersistenceId(1));
+    }
+
+    @Test
+    public void testSortedListing() throws PersistenceException {
+        final SearchResult byHeading = persistenceService.get(ConcreteItemB.class,
+                SortRequest.ascending("Property 1"));
+        assertEquals(2, byHeading.size());
+        assertEquals(concreteItemB2.getId(), byHeading.getPersistenceId(0));
+        assertEquals(concreteItemB.getId(), byHeading.getPersistenceId(1));
+
+        final SearchResult byKey = persistenceService.get(ConcreteItemB.class, SortRequest.descending("property1"));
+        assertEquals(concreteItemB.getId(), byKey.getPersistenceId(0));
+    }
+
+    @Test(expected = PersistenceException.class)
+    public void testSortByUnsearchableHeading() throws PersistenceException {
+        persistenceService.get(ConcreteItemA.class, SortRequest.ascending("Property 2"));
+    }
+
+    @Test
+    public void testFullTextSearch() throws PersistenceException {
+        final SearchResult tomo = persistenceService.search("tomo", ConcreteItemB.class);
+        assertEquals("Only " + CONCRETE_ITEM_B_NAME_1 + " has the word", 1, tomo.size());
+        assertEquals(concreteItemB.getId(), tomo.getPersistenceId(0));
+
+        assertEquals(3, persistenceService.search("diff", AbstractItem.class).size());
+        assertEquals(1, persistenceService.search("Irn bru", ConcreteItemA.class).size());
+        assertEquals(0, persistenceService.search("Irn coffee", ConcreteItemA.class).size());
+    }
+
+    @Test
+    public void testFullTextSearchByPrefix() throws PersistenceException {
+        final SearchResult tomo = persistenceService.search("tom sca", ConcreteItemB.class);
+        assertEquals(1, tomo.size());
+        assertEquals(concreteItemB.getId(), tomo.getPersistenceId(0));
+    }
+
+    @Test
+    public void testCounts() throws PersistenceException {
+        assertEquals(2, persistenceService.count(ConcreteItemA.class));
+        assertEquals(3, persistenceService.count(SearchPredicate.eq(AbstractItem.SEARCH_NAME_FIELD, COMMON_NAME),
+                AbstractItem.class));
+
+        final Map<String, Long> byName = persistenceService.countBy(AbstractItem.SEARCH_NAME_FIELD,
+                SearchPredicate.and(), AbstractItem.class);
+        assertEquals(2, byName.size());
+        assertEquals(Long.valueOf(3), byName.get(COMMON_NAME));
+        assertEquals(Long.valueOf(1), byName.get(CONCRETE_ITEM_B_NAME_1));
+    }
+
     @Test
     public void testSaveRetrieveTrigger() throws PersistenceException {
         final AbstractItemContainer abstractItemContainer = new ConcreteItemContainer("Load Trigger", concreteItemB, 78);
@@ -411,6 +549,37 @@ public abstract class PersistenceServiceTest {
         assertNotSame("Retrieved item should have new reference", abstractItemContainer, retrievedContainer);
     }
 
+    @Test
+    public void testLoadProfiles() throws PersistenceException {
+        final AbstractItemContainer abstractItemContainer = new ConcreteItemContainer("Load Trigger", concreteItemB, 78);
+        persistenceService.save(abstractItemContainer);
+
+        AbstractItemContainer listed = persistenceService.get(abstractItemContainer.getId(), AbstractItemContainer.class,
+                LoadProfile.LISTING);
+        assertEquals("Listing should load the item's own properties", "Load Trigger", listed.getName());
+        assertNull("Listing should not load referenced items", listed.getAbstractItem());
+
+        AbstractItemContainer entity = persistenceService.get(abstractItemContainer.getId(), AbstractItemContainer.class,
+                LoadProfile.ENTITY);
+        assertEquals("Entity should load referenced items", concreteItemB, entity.getAbstractItem());
+
+        final ConcreteListContainer plan = new ConcreteListContainer("Load Plan");
+        plan.addTrigger(abstractItemContainer);
+        persistenceService.save(plan);
+
+        ConcreteListContainer planEntity = persistenceService.get(plan.getId(), ConcreteListContainer.class,
+                LoadProfile.ENTITY);
+        assertEquals("Entity should load referenced items", "Load Trigger",
+                planEntity.getAbstractItemContainers().get(0).getName());
+        assertNull("Entity should not load items referenced indirectly",
+                planEntity.getAbstractItemContainers().get(0).getAbstractItem());
+
+        ConcreteListContainer planGraph = persistenceService.get(plan.getId(), ConcreteListContainer.class,
+                LoadProfile.graph(2));
+        assertEquals("Graph should load items within its depth", concreteItemB,
+                planGraph.getAbstractItemContainers().get(0).getAbstractItem());
+    }
+
     @Test
     public void testVersionIncrementedOnEdit() throws PersistenceException {
         final long originalVersion = concreteItemB.getVersion();
@@ -815,6 +984,24 @@ public abstract class PersistenceServiceTest {
         assertNotEquals("Got new version from archive", 12, oldVersion.getProperty1());
     }
 
+    @Test
+    public void getRangeOfOldVersions() throws PersistenceException {
+        concreteItemB.setProperty1(12);
+        persistenceService.save(concreteItemB);
+        concreteItemB.setProperty1(13);
+        persistenceService.save(concreteItemB);
+
+        assertEquals("Versions should be listed in order", Arrays.asList(0L, 1L, 2L),
+                persistenceService.getVersions(concreteItemB.getId()));
+
+        List<ConcreteItemB> archives = persistenceService.getArchives(concreteItemB.getId(), 1, 2, ConcreteItemB.class);
+        assertEquals("Only the requested versions should be returned", 2, archives.size());
+        assertEquals(1, archives.get(0).getVersion());
+        assertEquals(12, archives.get(0).getProperty1());
+        assertEquals(2, archives.get(1).getVersion());
+        assertEquals(13, archives.get(1).getProperty1());
+    }
+
     @Test(expected = PersistenceException.class)
     public void getInvalidIdFromArchive() throws PersistenceException {
 
@@ -853,6 +1040,23 @@ public abstract class PersistenceServiceTest {
         assertNotNull("Couldn't find latest version after deletion", persistenceService.getArchive(concreteItemB.getId(), 1, ConcreteItemB.class));
     }
 
+    @Test
+    public void deletedItemIsOnlyInArchive() throws PersistenceException {
+        final long id = concreteItemA.getId();
+        assertTrue(persistenceService.delete(id));
+
+        assertEquals(1, persistenceService.get(ConcreteItemA.class).getRows().size());
+        assertEquals(1, persistenceService.count(ConcreteItemA.class));
+        assertEquals(Long.valueOf(2), persistenceService.countBy(AbstractItem.SEARCH_NAME_FIELD,
+                SearchPredicate.and(), AbstractItem.class).get(COMMON_NAME));
+        assertEquals(0, persistenceService.search("irn", ConcreteItemA.class).size());
+        assertEquals(3, persistenceService.get(AbstractItem.class, PageRequest.first(10)).getRows().size());
+
+        assertEquals(Collections.singletonList(0L), persistenceService.getVersions(id));
+        assertEquals(CONCRETE_ITEM_A_CLASS_UNIQUE,
+                persistenceService.getArchive(id, 0, ConcreteItemA.class).getProperty3());
+    }
+
     @Test
     public void persistingIdenticalObjects() throws PersistenceException {
 
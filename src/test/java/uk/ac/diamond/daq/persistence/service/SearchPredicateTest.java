@@ -0,0 +1,70 @@
+package uk.ac.diamond.daq.persistence.service;
+
+import org.junit.Test;
+import uk.ac.diamond.daq.persistence.annotation.Persisted;
+import uk.ac.diamond.daq.persistence.annotation.Searchable;
+import uk.ac.diamond.daq.persistence.data.ConcreteItemA;
+import uk.ac.diamond.daq.persistence.data.ConcreteItemContainer;
+import uk.ac.diamond.daq.persistence.data.PersistableItem;
+import uk.ac.diamond.daq.persistence.service.impl.CypherPredicate;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SearchPredicateTest {
+
+    @Test
+    public void valuesOfNestedMembersAreConverted() throws PersistenceException {
+        SearchPredicate predicate = SearchPredicate.range("exposures", "10", null).forClass(Scan.class);
+
+        assertFalse(predicate.test(Collections.singletonMap("exposures", 9)));
+        assertTrue(predicate.test(Collections.singletonMap("exposures", 10)));
+    }
+
+    @Test
+    public void searchableMembersOfPersistedFieldsAreSearchable() throws PersistenceException {
+        Scan scan = new Scan();
+        scan.detector = new Detector();
+        scan.detector.exposures = 5;
+        Map<String, Object> values = new HashMap<>();
+        ItemExtractor.forSearching(Scan.class).getSearchableValues(scan, values);
+
+        assertEquals(5, values.get("exposures"));
+        assertEquals(int.class, ItemExtractor.forSearching(Scan.class).getTypes().get("exposures"));
+    }
+
+    @Test
+    public void valuesOfTheItemWinOverThoseOfItsFields() throws PersistenceException {
+        ConcreteItemContainer container = new ConcreteItemContainer("Trigger",
+                new ConcreteItemA("Scan", 1, 2, "Tea"), 3);
+        Map<String, Object> values = new HashMap<>();
+        ItemExtractor.forSearching(ConcreteItemContainer.class).getSearchableValues(container, values);
+
+        assertEquals("Trigger", values.get(ConcreteItemContainer.CONTAINER_NAME));
+    }
+
+    @Test
+    public void cypherKeysAreQuoted() {
+        CypherPredicate cypherPredicate = CypherPredicate.of(SearchPredicate.eq("name` = 1 OR true //", "x"),
+                "searchable.");
+
+        assertEquals("n.`searchable.name`` = 1 OR true //` = $`predicate0`", cypherPredicate.getExpression());
+    }
+
+    static class Detector {
+        @Searchable("exposures")
+        private int exposures;
+    }
+
+    static class Scan extends PersistableItem {
+        private static final long serialVersionUID = 1L;
+
+        @Persisted
+        private Detector detector;
+    }
+}
@@ -0,0 +1,82 @@
+package uk.ac.diamond.daq.persistence.service;
+
+import org.junit.Before;
+import org.junit.Test;
+import uk.ac.diamond.daq.persistence.data.ConcreteItemA;
+import uk.ac.diamond.daq.persistence.data.ConcreteItemB;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SearchResultTest {
+    private static final SearchResultHeading NAME = new SearchResultHeading("Name", 0);
+    private static final SearchResultHeading PROPERTY_3 = new SearchResultHeading("Property 3", 0);
+
+    private SearchResult searchResult;
+
+    @Before
+    public void setUp() throws PersistenceException {
+        searchResult = new SearchResult();
+        for (int i = 0; i < 40; i++) {
+            ConcreteItemA concreteItemA = new ConcreteItemA("Shared", i, i, "x");
+            concreteItemA.setId(i);
+            searchResult.addResult(concreteItemA);
+        }
+        ConcreteItemB concreteItemB = new ConcreteItemB("B", 1, 2.5);
+        concreteItemB.setId(100);
+        searchResult.addResult(concreteItemB);
+    }
+
+    @Test
+    public void columnsHoldEveryRow() {
+        assertEquals(41, searchResult.size());
+        assertEquals(41, searchResult.getRows().size());
+        assertEquals(100, searchResult.getPersistenceId(40));
+
+        List<String> names = searchResult.getColumn(NAME);
+        assertEquals("Shared", names.get(0));
+        assertEquals("Shared", names.get(39));
+        assertEquals("B", names.get(40));
+    }
+
+    @Test
+    public void rowsOnlyHoldTheirOwnValues() {
+        assertNull("Rows added before a heading existed have no value for it", searchResult.getValue(0, PROPERTY_3));
+        assertEquals("2.5", searchResult.getValue(40, PROPERTY_3));
+
+        SearchResultRow row = searchResult.getRows().get(40);
+        assertEquals(100, row.getPersistenceId());
+        assertEquals("B", row.getValues().get(NAME));
+        assertEquals(Arrays.asList("1", "2.5", "B"), sortedValues(row));
+    }
+
+    @Test
+    public void headingsKeepTheHighestPriority() {
+        for (SearchResultHeading heading : searchResult.getHeadings()) {
+            if (heading.getTitle().equals("Property 1")) {
+                assertEquals(1, heading.getPriority());
+                return;
+            }
+        }
+        fail("Property 1 heading missing");
+    }
+
+    @Test
+    public void headingsAndValuesAreInPriorityOrder() {
+        List<SearchResultHeading> headings = new ArrayList<>(searchResult.getHeadings());
+        assertEquals(Arrays.asList(ConcreteItemA.CLASS_UNIQUE_FIELD, "Property 2", "Property 1"),
+                Arrays.asList(headings.get(0).getTitle(), headings.get(1).getTitle(), headings.get(2).getTitle()));
+
+        SearchResultRow row = searchResult.getRows().get(0);
+        assertEquals(headings.subList(0, row.getValues().size()), new ArrayList<>(row.getValues().keySet()));
+    }
+
+    private static List<String> sortedValues(SearchResultRow row) {
+        String[] values = row.getValues().values().toArray(new String[0]);
+        Arrays.sort(values);
+        return Arrays.asList(values);
+    }
+}